@@ -0,0 +1,144 @@
+package benchmark;
+
+import gridscheduler.model.CheckpointFile;
+import gridscheduler.model.Job;
+import gridscheduler.model.JobJournal;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Measures the checkpoints of the job queue of a grid scheduler node (see
+ * JobJournal.checkpoint and CheckpointFile), for a queue of jobs some of which are dispatched
+ * from its head and replaced at its tail between two checkpoints:
+ * <ul>
+ * <li>the time the state is taken, which is what a grid scheduler node pauses its dispatch
+ * for, and the time the checkpoint is written;</li>
+ * <li>the pages of the image a checkpoint writes, the first one writing all of them;</li>
+ * <li>restarting from the last checkpoint and the journal cut at it, against replaying a
+ * journal of the same changes without checkpoints.</li>
+ * </ul>
+ * Usage: CheckpointBenchmark [directory] [nrJobs] [nrCheckpoints]
+ */
+public class CheckpointBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		int nrJobs = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int nrCheckpoints = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		File file = new File(directory, "CheckpointBenchmark.journal");
+		File checkpoints = new File(directory, "CheckpointBenchmark.checkpoint");
+
+		System.out.println(String.format("%-8s %8s %10s %10s %10s %10s %12s", "churn", "jobs", "pause", "write", "write p99",
+				"full write", "pages"));
+		for (int round = 0; round < 2; round++) {
+			run(file, checkpoints, nrJobs, nrCheckpoints, nrJobs / 1000);
+			run(file, checkpoints, nrJobs, nrCheckpoints, nrJobs / 100);
+			run(file, checkpoints, nrJobs, nrCheckpoints, nrJobs / 10);
+		}
+
+		// restart from the last checkpoint and its tail
+		long size = file.length();
+		JobJournal journal = new JobJournal(file, new CheckpointFile(checkpoints));
+		JobJournal.Recovery recovery = journal.getRecovery();
+		System.out.println(String.format("checkpoint %d: %d records and %d journal records (%d KB) in %d ms, %d jobs queued",
+				recovery.getCheckpointGeneration(), recovery.getCheckpointRecords(), recovery.getRecords(), size / 1024,
+				recovery.getReplayTime() / 1000000, recovery.getQueuedJobs().size()));
+		journal.close();
+
+		// the same changes, in a journal that is never cut
+		delete(file, checkpoints);
+		journal = new JobJournal(file);
+		churn(journal, new ArrayDeque<Job>(), nrJobs, nrCheckpoints, nrJobs / 10);
+		journal.close();
+		size = file.length();
+		journal = new JobJournal(file);
+		recovery = journal.getRecovery();
+		System.out.println(String.format("no checkpoint: %d journal records (%d KB) in %d ms, %d jobs queued",
+				recovery.getRecords(), size / 1024, recovery.getReplayTime() / 1000000, recovery.getQueuedJobs().size()));
+		journal.close();
+		delete(file, checkpoints);
+	}
+
+	private static void run(File file, File checkpoints, int nrJobs, int nrCheckpoints, int churn) throws Exception {
+		delete(file, checkpoints);
+		CheckpointFile checkpointFile = new CheckpointFile(checkpoints);
+		JobJournal journal = new JobJournal(file, checkpointFile);
+		ArrayDeque<Job> queue = new ArrayDeque<Job>();
+		HashMap<String, Integer> resourceManagers = new HashMap<String, Integer>();
+		HashMap<String, Integer> loads = new HashMap<String, Integer>();
+		for (int i = 0; i < 64; i++) {
+			journal.join("cluster" + i, 32);
+			resourceManagers.put("cluster" + i, 32);
+			loads.put("cluster" + i, i % 32);
+		}
+
+		long nextId = churn(journal, queue, nrJobs, 0, churn);
+		long pauses = 0;
+		long fullWrite = 0;
+		long pagesWritten = 0;
+		long pagesCompared = 0;
+		for (int i = 0; i <= nrCheckpoints; i++) {
+			if (i > 0) {
+				nextId = churn(journal, queue, (int) nextId, 1, churn);
+			}
+			// what a grid scheduler node takes while its dispatch waits
+			long start = System.nanoTime();
+			long generation = journal.mark();
+			ByteBuffer queuedJobs = journal.encodeQueue(queue);
+			HashMap<String, Integer> capacities = new HashMap<String, Integer>(resourceManagers);
+			HashMap<String, Integer> knownLoads = new HashMap<String, Integer>(loads);
+			long pause = System.nanoTime() - start;
+
+			long written = checkpointFile.getPagesWritten();
+			long compared = checkpointFile.getPagesCompared();
+			start = System.nanoTime();
+			journal.checkpoint(generation, queuedJobs, capacities, knownLoads, new HashMap<Long, String[]>());
+			if (i == 0) {
+				fullWrite = System.nanoTime() - start;
+			} else {
+				pauses += pause;
+				pagesWritten += checkpointFile.getPagesWritten() - written;
+				pagesCompared += checkpointFile.getPagesCompared() - compared;
+			}
+		}
+		journal.sync();
+
+		System.out.println(String.format("%6.1f %% %8d %7d us %7d us %7d us %7d ms %5d/%-6d", 100.0 * churn / nrJobs,
+				queue.size(), pauses / nrCheckpoints / 1000, checkpointFile.getWriteTimes().getPercentile(50) / 1000,
+				checkpointFile.getWriteTimes().getPercentile(99) / 1000, fullWrite / 1000000, pagesWritten / nrCheckpoints,
+				pagesCompared / nrCheckpoints));
+		journal.close();
+	}
+
+	// fills the queue with 'nrJobs' jobs, then 'rounds' times dispatches 'churn' jobs from its
+	// head and enqueues as many, and returns the next job id
+	private static long churn(JobJournal journal, ArrayDeque<Job> queue, int nrJobs, int rounds, int churn) {
+		long nextId = nrJobs;
+		if (queue.isEmpty()) {
+			for (long id = 0; id < nrJobs; id++) {
+				Job job = new Job(1000, id);
+				queue.add(job);
+				journal.enqueue(job);
+			}
+		}
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < churn; i++) {
+				Job job = queue.poll();
+				journal.dispatch(job.getId(), "cluster" + (job.getId() % 64), false);
+				job = new Job(1000, nextId++);
+				queue.add(job);
+				journal.enqueue(job);
+			}
+		}
+		return nextId;
+	}
+
+	private static void delete(File file, File checkpoints) {
+		file.delete();
+		new File(checkpoints.getPath() + ".0").delete();
+		new File(checkpoints.getPath() + ".1").delete();
+	}
+}
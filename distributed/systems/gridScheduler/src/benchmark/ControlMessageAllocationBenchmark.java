@@ -0,0 +1,120 @@
+package benchmark;
+
+import core.SynchronizedSocket;
+import gridscheduler.model.Cluster;
+import gridscheduler.model.ControlMessage;
+import gridscheduler.model.ControlMessagePool;
+import gridscheduler.model.ControlMessageType;
+import gridscheduler.model.GridSchedulerNode;
+import gridscheduler.model.Job;
+import gridscheduler.model.Supervisor;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap allocated by the control message path, with and without the
+ * ControlMessagePool:
+ * <ul>
+ * <li>per load poll cycle, with one RequestLoad and one ReplyLoad per resource manager
+ * delivered through the mailboxes (all the threads of the JVM are accounted for);</li>
+ * <li>per NotifyJobCompletion broadcast to the GS node and all the resource managers,
+ * delivered synchronously on the benchmark thread.</li>
+ * </ul>
+ * Requires a JVM supporting thread allocation accounting (HotSpot).
+ * <p>
+ * Usage: ControlMessageAllocationBenchmark [nrClusters] [seconds]
+ */
+public class ControlMessageAllocationBenchmark {
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		int nrClusters = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Supervisor supervisor = new Supervisor("Supervisor", 1, false);
+		supervisor.setAsynchronousDelivery(true);
+		supervisor.setBatchedLoadPolling(false);
+
+		Cluster[] clusters = new Cluster[nrClusters];
+		for (int i = 0; i < nrClusters; i++) {
+			clusters[i] = new Cluster("cluster" + i, supervisor, 1);
+		}
+		GridSchedulerNode gsNode = supervisor.getGridSchedulerNodes().get(0);
+
+		System.out.println(String.format("%-8s %8s %14s %14s", "pooled", "cycles", "bytes/cycle", "bytes/message"));
+		for (boolean pooled : new boolean[] { false, true, false, true }) {
+			measurePolling(gsNode, pooled, seconds);
+		}
+
+		supervisor.setAsynchronousDelivery(false);
+		System.out.println();
+		System.out.println(String.format("%-8s %14s %18s", "pooled", "completions", "bytes/completion"));
+		for (boolean pooled : new boolean[] { false, true, false, true }) {
+			measureCompletions(gsNode.getSyncSocket(), pooled, 200000);
+		}
+
+		for (Cluster cluster : clusters) {
+			cluster.stopPollThread();
+		}
+		supervisor.stopPollThread();
+		System.exit(0);
+	}
+
+	private static void measurePolling(GridSchedulerNode gsNode, boolean pooled, int seconds) throws InterruptedException {
+		ControlMessagePool.setEnabled(pooled);
+		// warm up the pool and the JIT
+		Thread.sleep(1000);
+
+		SynchronizedSocket socket = gsNode.getSyncSocket();
+		long roundsBefore = gsNode.getLoadPollRounds();
+		long sentBefore = socket.getSentMessages();
+		long bytesBefore = allocatedBytes();
+
+		Thread.sleep(seconds * 1000L);
+
+		long bytes = allocatedBytes() - bytesBefore;
+		long rounds = gsNode.getLoadPollRounds() - roundsBefore;
+		long sent = socket.getSentMessages() - sentBefore;
+
+		System.out.println(String.format("%-8s %8d %14d %14d", pooled, rounds,
+				rounds > 0 ? bytes / rounds : 0, sent > 0 ? bytes / sent : 0));
+	}
+
+	private static void measureCompletions(SynchronizedSocket socket, boolean pooled, int count) {
+		ControlMessagePool.setEnabled(pooled);
+		Job job = new Job(1000, -1);
+
+		// warm up
+		sendCompletions(socket, job, count);
+
+		long thread = Thread.currentThread().getId();
+		long bytesBefore = threads.getThreadAllocatedBytes(thread);
+		sendCompletions(socket, job, count);
+		long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+
+		System.out.println(String.format("%-8s %14d %18d", pooled, count, bytes / count));
+	}
+
+	private static void sendCompletions(SynchronizedSocket socket, Job job, int count) {
+		for (int i = 0; i < count; i++) {
+			ControlMessage message = ControlMessagePool.acquire(ControlMessageType.NotifyJobCompletion);
+			message.setSource("cluster0");
+			message.setDestination(socket.getGridSchdulerNodeAddress());
+			message.setJob(job);
+			socket.sendMessage(message);
+		}
+	}
+
+	// heap allocated so far by all the live threads
+	private static long allocatedBytes() {
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,115 @@
+package benchmark;
+
+import gridscheduler.model.ControlMessage;
+import gridscheduler.model.ControlMessageCodec;
+import gridscheduler.model.ControlMessageType;
+import gridscheduler.model.Job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the size and the cost of a ControlMessage round trip (encode and decode) using
+ * Java serialization and using {@link ControlMessageCodec}, for the two most frequent message
+ * shapes: an AddJob carrying a job that visited a few clusters and a ReplyLoad.
+ * <p>
+ * Usage: ControlMessageCodecBenchmark [iterations]
+ */
+public class ControlMessageCodecBenchmark {
+
+	private static final int WARMUP = 200000;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		Job job = new Job(40000, 123456);
+		job.addClusterToVisited("cluster3");
+		job.addClusterToVisited("gridSchedulerNode0");
+		job.addClusterToVisited("cluster5");
+
+		ControlMessage addJob = new ControlMessage(ControlMessageType.AddJob);
+		addJob.setSource("gridSchedulerNode0");
+		addJob.setDestination("cluster5");
+		addJob.setJob(job);
+
+		ControlMessage replyLoad = new ControlMessage(ControlMessageType.ReplyLoad);
+		replyLoad.setSource("cluster5");
+		replyLoad.setDestination("gridSchedulerNode0");
+		replyLoad.setLoad(17);
+
+		System.out.println(String.format("%-12s %-13s %10s %10s %14s", "message", "format", "bytes/msg", "ns/msg", "alloc B/msg"));
+		for (ControlMessage message : new ControlMessage[] { addJob, replyLoad }) {
+			javaSerialization(message, WARMUP);
+			report(message, "serialization", javaSerialization(message, iterations), iterations);
+			codec(message, WARMUP);
+			report(message, "codec", codec(message, iterations), iterations);
+		}
+	}
+
+	private static void report(ControlMessage message, String format, long[] result, int iterations) {
+		System.out.println(String.format("%-12s %-13s %10d %10d %14d", message.getType(), format,
+				result[0], result[1] / iterations, result[2] / iterations));
+	}
+
+	// returns {bytes per message, elapsed ns, allocated bytes}
+	private static long[] javaSerialization(ControlMessage message, int iterations) throws IOException, ClassNotFoundException {
+		long size = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(message);
+			out.close();
+			size = bytes.size();
+
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			if (in.readObject() == null) {
+				throw new IllegalStateException();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { size, elapsed, allocatedBytes() - allocatedBefore };
+	}
+
+	// returns {bytes per message, elapsed ns, allocated bytes}
+	private static long[] codec(ControlMessage message, int iterations) {
+		ControlMessageCodec encoder = new ControlMessageCodec();
+		ControlMessageCodec decoder = new ControlMessageCodec();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+		// the first message of a stream carries the header and the endpoint names
+		encoder.encode(message, buffer);
+		buffer.flip();
+		decoder.decode(buffer);
+		buffer.clear();
+
+		long size = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			encoder.encode(message, buffer);
+			size = buffer.position();
+			buffer.flip();
+			if (decoder.decode(buffer) == null) {
+				throw new IllegalStateException();
+			}
+			buffer.clear();
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { size, elapsed, allocatedBytes() - allocatedBefore };
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import core.ExecutionModel;
+import gridscheduler.model.Cluster;
+import gridscheduler.model.GridSchedulerNode;
+import gridscheduler.model.Job;
+import gridscheduler.model.Supervisor;
+
+/**
+ * Measures how level the grid scheduler nodes keep the loads of clusters of different sizes,
+ * dispatching their queue one job at a time or in batches (see GridSchedulerNode.setBatchDispatch).
+ * Jobs arrive on a few small clusters, which offload them to their grid scheduler node; for
+ * every node that dispatched jobs the variance of the loads per node of its clusters before and
+ * after the dispatch pass of a poll cycle is reported, averaged over the cycles.
+ * <p>
+ * Usage: DispatchBalanceBenchmark [greedy|batch] [nrJobs] [seconds]
+ */
+public class DispatchBalanceBenchmark {
+
+	// nodes of the clusters, every grid scheduler node gets clusters of all sizes
+	private static final int[] CLUSTER_SIZES = {4, 8, 16, 32, 4, 8, 16, 32};
+
+	public static void main(String[] args) throws Exception {
+		boolean batch = args.length > 0 && args[0].equals("batch");
+		int nrJobs = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		ExecutionModel.setDefault(ExecutionModel.SharedPool);
+		Supervisor supervisor = new Supervisor("Supervisor", 2, false);
+		supervisor.setAsynchronousDelivery(true);
+		supervisor.setEventDrivenDispatch(true);
+		supervisor.setBatchDispatch(batch);
+		Cluster[] clusters = new Cluster[CLUSTER_SIZES.length];
+		for (int i = 0; i < clusters.length; i++) {
+			clusters[i] = new Cluster("cluster" + i, supervisor, CLUSTER_SIZES[i]);
+		}
+		Thread.sleep(500);
+
+		// jobs arrive on the two smallest clusters, faster than they can run them
+		for (int jobId = 0; jobId < nrJobs; jobId++) {
+			clusters[jobId % 2].getResourceManager().addJob(new Job(3000, jobId));
+			if (jobId % 10 == 0) {
+				Thread.sleep(5);
+			}
+		}
+		Thread.sleep(seconds * 1000L);
+
+		System.out.println(String.format("%-8s %-20s %8s %16s %16s", "dispatch", "GS node", "cycles", "variance before", "variance after"));
+		for (GridSchedulerNode gsNode : supervisor.getGridSchedulerNodes()) {
+			if (gsNode.getDispatchCycles() > 0) {
+				System.out.println(String.format("%-8s %-20s %8d %16.3f %16.3f", batch ? "batch" : "greedy", gsNode.getAddress(),
+						gsNode.getDispatchCycles(), gsNode.getAverageVarianceBeforeDispatch(), gsNode.getAverageVarianceAfterDispatch()));
+			}
+		}
+		StringBuilder waiting = new StringBuilder("waiting jobs (nodes):");
+		for (Cluster cluster : clusters) {
+			waiting.append(' ').append(cluster.getResourceManager().getNumberOfNonReplicatedJobsWaiting())
+					.append(" (").append(cluster.getNodeCount()).append(')');
+		}
+		System.out.println(waiting);
+
+		for (Cluster cluster : clusters) {
+			cluster.stopPollThread();
+		}
+		supervisor.stopPollThread();
+		System.exit(0);
+	}
+}
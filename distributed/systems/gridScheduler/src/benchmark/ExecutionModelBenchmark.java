@@ -0,0 +1,67 @@
+package benchmark;
+
+import core.ExecutionModel;
+import gridscheduler.model.Cluster;
+import gridscheduler.model.Job;
+import gridscheduler.model.Supervisor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the threads, the memory and the start-up time of a grid of many clusters under one
+ * execution model, and the number of jobs it completes while jobs keep arriving. Run it once
+ * per model, as the shared threads of a model live as long as the JVM.
+ * <p>
+ * Usage: ExecutionModelBenchmark [PlatformThreads|SharedPool|VirtualThreads] [nrClusters] [seconds]
+ */
+public class ExecutionModelBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		ExecutionModel model = args.length > 0 ? ExecutionModel.valueOf(args[0]) : ExecutionModel.SharedPool;
+		int nrClusters = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		ExecutionModel.setDefault(model);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Runtime runtime = Runtime.getRuntime();
+
+		long start = System.nanoTime();
+		Supervisor supervisor = new Supervisor("Supervisor", 4, false);
+		supervisor.setAsynchronousDelivery(true);
+		supervisor.setBatchedLoadPolling(true);
+		Cluster[] clusters = new Cluster[nrClusters];
+		for (int i = 0; i < nrClusters; i++) {
+			clusters[i] = new Cluster("cluster" + i, supervisor, 4);
+		}
+		long startupTime = System.nanoTime() - start;
+
+		// jobs arrive on a few hot clusters, so that the grid has to move them
+		long jobId = 0;
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		while (System.nanoTime() < deadline) {
+			for (int i = 0; i < 100; i++) {
+				clusters[(int) (jobId % 10)].getResourceManager().addJob(new Job(200, jobId++));
+			}
+			Thread.sleep(10);
+		}
+
+		long completed = 0;
+		for (Cluster cluster : clusters) {
+			completed += cluster.getResourceManager().getCompletedJobs();
+		}
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+
+		System.out.println(String.format("%-16s %8s %8s %8s %10s %10s %10s", "model", "clusters", "threads", "peak", "heap MB",
+				"startup ms", "jobs done"));
+		System.out.println(String.format("%-16s %8d %8d %8d %10d %10d %10d", ExecutionModel.getDefault(), nrClusters,
+				threads.getThreadCount(), threads.getPeakThreadCount(), heap / (1024 * 1024), startupTime / 1000000, completed));
+
+		for (Cluster cluster : clusters) {
+			cluster.stopPollThread();
+		}
+		supervisor.stopPollThread();
+		System.exit(0);
+	}
+}
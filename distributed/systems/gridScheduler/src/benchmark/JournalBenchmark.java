@@ -0,0 +1,89 @@
+package benchmark;
+
+import gridscheduler.model.Job;
+import gridscheduler.model.JobJournal;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of journaling the job queue of a grid scheduler node (see JobJournal):
+ * <ul>
+ * <li>appending without waiting, as a grid scheduler node does, with the forces to disk
+ * shared by the records appended meanwhile (group commit);</li>
+ * <li>waiting for every record to be on disk before the next one, from one thread, which
+ * takes a force per record, and from several threads, whose records share the forces;</li>
+ * <li>replaying a journal of enqueued and dispatched jobs, as after a restart.</li>
+ * </ul>
+ * Usage: JournalBenchmark [directory] [nrJobs] [nrThreads]
+ */
+public class JournalBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		int nrJobs = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int nrThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		File file = new File(directory, "JournalBenchmark.journal");
+
+		System.out.println(String.format("%-22s %8s %8s %10s %10s %12s %10s", "mode", "threads", "jobs", "ms", "ns/job",
+				"commits", "batch"));
+		for (int round = 0; round < 2; round++) {
+			run("group commit", file, nrJobs, 1, false);
+			run("group commit", file, nrJobs, nrThreads, false);
+			run("sync every job", file, Math.min(nrJobs, 2000), 1, true);
+			run("sync every job", file, Math.min(nrJobs, 20000), nrThreads, true);
+		}
+
+		// a queue of jobs half of which were dispatched, replayed on opening
+		file.delete();
+		JobJournal journal = new JobJournal(file);
+		for (int i = 0; i < nrJobs; i++) {
+			journal.enqueue(new Job(1000, i));
+			if (i % 2 == 0) {
+				journal.dispatch(i, "cluster" + (i % 64), false);
+			}
+		}
+		journal.close();
+		long size = file.length();
+		journal = new JobJournal(file);
+		JobJournal.Recovery recovery = journal.getRecovery();
+		System.out.println(String.format("replayed %d records (%d KB) in %d ms, %d ns/record, %d jobs queued",
+				recovery.getRecords(), size / 1024, recovery.getReplayTime() / 1000000,
+				recovery.getReplayTime() / Math.max(1, recovery.getRecords()), recovery.getQueuedJobs().size()));
+		journal.close();
+		file.delete();
+	}
+
+	private static void run(String mode, File file, int nrJobs, int nrThreads, boolean syncEveryJob) throws Exception {
+		file.delete();
+		JobJournal journal = new JobJournal(file);
+		AtomicLong nextId = new AtomicLong();
+		Thread[] threads = new Thread[nrThreads];
+
+		long start = System.nanoTime();
+		for (int t = 0; t < nrThreads; t++) {
+			threads[t] = new Thread(() -> {
+				try {
+					for (long id = nextId.getAndIncrement(); id < nrJobs; id = nextId.getAndIncrement()) {
+						long sequence = journal.enqueue(new Job(1000, id));
+						if (syncEveryJob) {
+							journal.awaitDurable(sequence);
+						}
+					}
+				} catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journal.sync();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("%-22s %8d %8d %10d %10d %12d %10.1f", mode, nrThreads, nrJobs, elapsed / 1000000,
+				elapsed / nrJobs, journal.getCommits(), journal.getAverageBatchSize()));
+		journal.close();
+	}
+}
@@ -0,0 +1,62 @@
+package benchmark;
+
+import core.SynchronizedSocket;
+import gridscheduler.model.Cluster;
+import gridscheduler.model.GridSchedulerNode;
+import gridscheduler.model.Supervisor;
+
+/**
+ * Measures the number of messages and the latency of one load poll cycle of a grid scheduler
+ * node, with one RequestLoad per resource manager and with a single batched LoadQuery.
+ * <p>
+ * Usage: LoadPollingBenchmark [nrClusters] [seconds]
+ */
+public class LoadPollingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int nrClusters = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Supervisor supervisor = new Supervisor("Supervisor", 1, false);
+		supervisor.setAsynchronousDelivery(true);
+
+		Cluster[] clusters = new Cluster[nrClusters];
+		for (int i = 0; i < nrClusters; i++) {
+			clusters[i] = new Cluster("cluster" + i, supervisor, 1);
+		}
+
+		GridSchedulerNode gsNode = supervisor.getGridSchedulerNodes().get(0);
+		System.out.println(String.format("%-10s %8s %12s %16s %16s", "mode", "cycles", "sent/cycle", "delivered/cycle", "latency us/cycle"));
+		for (boolean batched : new boolean[] { false, true, false, true }) {
+			run(supervisor, gsNode, batched, seconds);
+		}
+
+		for (Cluster cluster : clusters) {
+			cluster.stopPollThread();
+		}
+		supervisor.stopPollThread();
+		System.exit(0);
+	}
+
+	private static void run(Supervisor supervisor, GridSchedulerNode gsNode, boolean batched, int seconds) throws InterruptedException {
+		supervisor.setBatchedLoadPolling(batched);
+		// let the previous mode drain
+		Thread.sleep(500);
+
+		SynchronizedSocket socket = gsNode.getSyncSocket();
+		long roundsBefore = gsNode.getLoadPollRounds();
+		long sentBefore = socket.getSentMessages();
+		long deliveredBefore = socket.getDeliveredMessages();
+		long latencyBefore = gsNode.getAverageLoadPollLatency() * roundsBefore;
+
+		Thread.sleep(seconds * 1000L);
+
+		long rounds = gsNode.getLoadPollRounds() - roundsBefore;
+		long sent = socket.getSentMessages() - sentBefore;
+		long delivered = socket.getDeliveredMessages() - deliveredBefore;
+		long latency = gsNode.getAverageLoadPollLatency() * gsNode.getLoadPollRounds() - latencyBefore;
+
+		System.out.println(String.format("%-10s %8d %12d %16d %16d", batched ? "batched" : "per-RM", rounds,
+				rounds > 0 ? sent / rounds : 0, rounds > 0 ? delivered / rounds : 0, rounds > 0 ? latency / rounds / 1000 : 0));
+	}
+}
@@ -0,0 +1,88 @@
+package benchmark;
+
+import core.ExecutionModel;
+import core.Mailbox;
+import core.Message;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures two endpoints whose handlers post to each other, as a grid scheduler node sending
+ * jobs to a resource manager that replies and offloads to it: messages posted from outside
+ * flood the first mailbox, and every message then bounces between the two mailboxes a number
+ * of times before it is done. Both mailboxes are full most of the time, so a consumer thread
+ * posting to the other mailbox finds it full; the run reports whether all the messages were
+ * done, the time they took and how many messages overflowed a mailbox rather than blocking a
+ * consumer thread (see Mailbox). With two lanes, as with priority lanes, the messages bounce
+ * in the lane of the jobs while the control lane stays empty, which on its own does not keep
+ * the job lanes from filling each other.
+ * <p>
+ * Usage: MailboxCycleBenchmark [PlatformThreads|SharedPool|VirtualThreads] [nrMessages] [capacity] [hops]
+ */
+public class MailboxCycleBenchmark {
+
+	// a message with the number of times it still has to bounce
+	private static final class Hop extends Message {
+		private static final long serialVersionUID = 1L;
+
+		final int remaining;
+
+		Hop(int remaining) {
+			this.remaining = remaining;
+		}
+	}
+
+	private static Mailbox first;
+	private static Mailbox second;
+	// the lane the messages bounce in
+	private static int lane;
+
+	public static void main(String[] args) throws Exception {
+		ExecutionModel model = args.length > 0 ? ExecutionModel.valueOf(args[0]) : ExecutionModel.PlatformThreads;
+		int nrMessages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		int hops = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+		ExecutionModel.setDefault(model);
+		System.out.println(String.format("%-16s %6s %10s %8s %6s %10s %10s %12s %8s", "model", "lanes", "messages", "capacity",
+				"hops", "ms", "msg/s", "overflowed", "done"));
+		for (int round = 0; round < 2; round++) {
+			run(model, 1, nrMessages, capacity, hops);
+			run(model, 2, nrMessages, capacity, hops);
+		}
+		System.exit(0);
+	}
+
+	private static void run(ExecutionModel model, int lanes, int nrMessages, int capacity, int hops) throws Exception {
+		CountDownLatch done = new CountDownLatch(nrMessages);
+		int[] weights = lanes > 1 ? new int[] { 4, 1 } : null;
+		first = new Mailbox("first", message -> bounce(message, second, done), capacity, lanes, weights);
+		second = new Mailbox("second", message -> bounce(message, first, done), capacity, lanes, weights);
+		lane = lanes - 1;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < nrMessages; i++) {
+			first.post(new Hop(hops), lane);
+		}
+		// both consumers blocked on each other would never finish
+		boolean finished = done.await(10, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+		long messages = first.getDeliveredMessages() + second.getDeliveredMessages();
+
+		System.out.println(String.format("%-16s %6d %10d %8d %6d %10d %10d %12d %8s", model, lanes, nrMessages, capacity, hops,
+				elapsed / 1000000, messages * 1000000000L / elapsed, first.getOverflowedMessages() + second.getOverflowedMessages(),
+				finished ? "all" : "deadlock"));
+		first.close();
+		second.close();
+	}
+
+	private static void bounce(Message message, Mailbox target, CountDownLatch done) {
+		int remaining = ((Hop) message).remaining;
+		if (remaining == 0) {
+			done.countDown();
+		} else {
+			target.post(new Hop(remaining - 1), lane);
+		}
+	}
+}
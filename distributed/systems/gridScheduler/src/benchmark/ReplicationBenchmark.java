@@ -0,0 +1,81 @@
+package benchmark;
+
+import gridscheduler.model.ControlMessage;
+import gridscheduler.model.ControlMessageType;
+import gridscheduler.model.GridSchedulerNode;
+import gridscheduler.model.Job;
+import gridscheduler.model.ReplicationLog;
+import gridscheduler.model.Supervisor;
+
+/**
+ * Measures the replication of the job queue of a grid scheduler node to its replica (see
+ * ReplicationLog), for a pair of nodes without resource managers, so that the jobs stay queued:
+ * <ul>
+ * <li>the cost of adding a job to the queue of the primary, which appends it to the log;</li>
+ * <li>the lag of the replica, from appending a record until the replica acknowledged it;</li>
+ * <li>the time to detect the failure of the primary and to promote the replica, and the jobs
+ * in the queue of the replica when it took over, against those of the failed primary;</li>
+ * <li>the jobs still queued at the promoted replica after a resource manager reported all of
+ * them completed, with a copy of each job as a transport decodes it, which has to be none.</li>
+ * </ul>
+ * Usage: ReplicationBenchmark [nrJobs] [maxLag]
+ */
+public class ReplicationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int nrJobs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int maxLag = args.length > 1 ? Integer.parseInt(args[1]) : ReplicationLog.DEFAULT_MAX_LAG;
+
+		System.out.println(String.format("%-12s %8s %8s %10s %10s %10s %10s %10s %10s %10s %10s", "delivery", "max lag", "jobs",
+				"ns/job", "lag p50", "lag p99", "batches", "detect", "promote", "queued", "completed"));
+		for (int round = 0; round < 2; round++) {
+			run(false, nrJobs, maxLag);
+			run(true, nrJobs, maxLag);
+			run(true, nrJobs, Math.max(1, maxLag / 16));
+		}
+		System.exit(0);
+	}
+
+	private static void run(boolean asynchronous, int nrJobs, int maxLag) throws Exception {
+		Supervisor supervisor = new Supervisor("Supervisor", 2, false);
+		supervisor.setAsynchronousDelivery(asynchronous);
+		supervisor.setReplicationMaxLag(maxLag);
+		GridSchedulerNode primary = supervisor.getGridSchedulerNodes().get(0);
+		GridSchedulerNode replica = supervisor.getGridSchedulerNodes().get(1);
+		ReplicationLog log = primary.getReplicationLog();
+		// let the supervisor learn the intervals of the heartbeats of the primary
+		Thread.sleep(500);
+
+		long start = System.nanoTime();
+		for (long id = 0; id < nrJobs; id++) {
+			primary.addJob(new Job(1000, id));
+		}
+		long elapsed = System.nanoTime() - start;
+		for (int i = 0; i < 100 && log.getLag() > 0; i++) {
+			Thread.sleep(10);
+		}
+		int queued = primary.getWaitingJobs();
+
+		supervisor.injectGSnodeFault(true);
+		for (int i = 0; i < 300 && supervisor.getFailovers() == 0; i++) {
+			Thread.sleep(10);
+		}
+		long detect = supervisor.getLastTimeToDetect();
+		long promote = supervisor.getLastTimeToRecover() - detect;
+		int promoted = replica.getWaitingJobs();
+
+		// the completions of the queued jobs, each with its own copy of the job
+		for (long id = 0; id < nrJobs; id++) {
+			ControlMessage completion = new ControlMessage(ControlMessageType.NotifyJobCompletion);
+			completion.setSource("cluster");
+			completion.setJob(new Job(1000, id));
+			replica.onMessageReceived(completion);
+		}
+
+		System.out.println(String.format("%-12s %8d %8d %10d %8d us %8d us %10d %7d ms %7d us %4d/%-5d %4d left", asynchronous
+				? "asynchronous" : "synchronous", maxLag, nrJobs, elapsed / nrJobs, log.getLagLatencies().getPercentile(50) / 1000,
+				log.getLagLatencies().getPercentile(99) / 1000, log.getBatches(), detect / 1000000, promote / 1000, promoted, queued,
+				replica.getWaitingJobs()));
+		supervisor.stopPollThread();
+	}
+}
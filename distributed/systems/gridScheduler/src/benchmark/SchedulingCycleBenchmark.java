@@ -0,0 +1,80 @@
+package benchmark;
+
+import gridscheduler.model.LoadIndex;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the cost of the least-loaded selection of a grid scheduler node scheduling cycle:
+ * for every queued job, pick the two least loaded resource managers and count the job in the
+ * load of both, as with job replication. The full scan of a load map, as done before the
+ * loads were indexed, is compared to the LoadIndex heap. The scan is too slow to run for every
+ * job, so it runs for <CODE>scanJobs</CODE> jobs only and both are reported per job.
+ * <p>
+ * Usage: SchedulingCycleBenchmark [nrResourceManagers] [nrJobs] [scanJobs]
+ */
+public class SchedulingCycleBenchmark {
+
+	public static void main(String[] args) {
+		int nrResourceManagers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int nrJobs = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int scanJobs = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+		System.out.println(String.format("%-8s %8s %8s %12s %12s", "loads", "RMs", "jobs", "cycle ms", "ns/job"));
+		for (int round = 0; round < 3; round++) {
+			report("scan", nrResourceManagers, scanJobs, scan(nrResourceManagers, scanJobs));
+			report("heap", nrResourceManagers, nrJobs, indexed(nrResourceManagers, nrJobs));
+		}
+	}
+
+	private static void report(String loads, int nrResourceManagers, int nrJobs, long elapsed) {
+		System.out.println(String.format("%-8s %8d %8d %12d %12d", loads, nrResourceManagers, nrJobs, elapsed / 1000000, elapsed / nrJobs));
+	}
+
+	private static long scan(int nrResourceManagers, int nrJobs) {
+		ConcurrentHashMap<String, Integer> loads = new ConcurrentHashMap<String, Integer>();
+		for (int i = 0; i < nrResourceManagers; i++) {
+			loads.put("cluster" + i, ThreadLocalRandom.current().nextInt(100));
+		}
+
+		long start = System.nanoTime();
+		for (int job = 0; job < nrJobs; job++) {
+			String least = null;
+			int minLoad = Integer.MAX_VALUE;
+			for (String rmAddress : loads.keySet()) {
+				if (loads.get(rmAddress) <= minLoad) {
+					least = rmAddress;
+					minLoad = loads.get(rmAddress);
+				}
+			}
+			loads.put(least, loads.get(least) + 1);
+
+			String second = null;
+			minLoad = Integer.MAX_VALUE;
+			for (String rmAddress : loads.keySet()) {
+				if (loads.get(rmAddress) <= minLoad && !rmAddress.equals(least)) {
+					second = rmAddress;
+					minLoad = loads.get(rmAddress);
+				}
+			}
+			loads.put(second, loads.get(second) + 1);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long indexed(int nrResourceManagers, int nrJobs) {
+		LoadIndex loads = new LoadIndex();
+		for (int i = 0; i < nrResourceManagers; i++) {
+			loads.put("cluster" + i, ThreadLocalRandom.current().nextInt(100));
+		}
+
+		long start = System.nanoTime();
+		for (int job = 0; job < nrJobs; job++) {
+			String[] leastLoaded = loads.getLeastLoaded(2);
+			loads.add(leastLoaded[0], 1);
+			loads.add(leastLoaded[1], 1);
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,96 @@
+package benchmark;
+
+import gridscheduler.model.LoadIndex;
+
+import java.util.Random;
+
+/**
+ * Compares the least loaded choice of a resource manager with the least loaded of d random
+ * choices (see GridSchedulerNode.setDispatchChoices) when several schedulers dispatch jobs to
+ * the same resource managers on stale loads.
+ * <p>
+ * The grid is simulated in ticks of a millisecond. Every scheduler keeps its own LoadIndex of
+ * the queue lengths of all the resource managers, counts the jobs it dispatches itself in it,
+ * as a grid scheduler node does, and refreshes it with the real queue lengths once per poll
+ * period; the refreshes of the schedulers are spread over the period, so the loads a
+ * scheduler acts on are at most a poll period old. Jobs arrive at the schedulers at random,
+ * and every resource manager runs one job at a time, for a random time. The mean number of
+ * jobs in the grid gives the mean response time of a job (Little's law), and the longest queue
+ * seen shows the herding on a single resource manager.
+ * <p>
+ * Usage: StaleLoadDispatchBenchmark [nrSchedulers] [nrResourceManagers] [pollPeriod] [utilization] [ticks]
+ */
+public class StaleLoadDispatchBenchmark {
+
+	// mean time a job runs, in ticks
+	private static final int MEAN_SERVICE_TIME = 100;
+
+	public static void main(String[] args) {
+		int nrSchedulers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int nrResourceManagers = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int pollPeriod = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		double utilization = args.length > 3 ? Double.parseDouble(args[3]) : 0.9;
+		int ticks = args.length > 4 ? Integer.parseInt(args[4]) : 300000;
+
+		System.out.println(String.format("%-14s %6s %6s %6s %6s %12s %12s %10s", "policy", "GSs", "RMs", "poll", "util",
+				"mean jobs", "response", "max queue"));
+		// 0 is the least loaded of all, 1 a random one
+		for (int choices : new int[] {0, 1, 2, 3, 5}) {
+			run(choices, nrSchedulers, nrResourceManagers, pollPeriod, utilization, ticks);
+		}
+	}
+
+	private static void run(int choices, int nrSchedulers, int nrResourceManagers, int pollPeriod, double utilization, int ticks) {
+		Random random = new Random(42);
+		int[] queues = new int[nrResourceManagers];
+		LoadIndex[] views = new LoadIndex[nrSchedulers];
+		for (int s = 0; s < nrSchedulers; s++) {
+			views[s] = new LoadIndex();
+			refresh(views[s], queues);
+		}
+
+		// the schedulers share the arrivals, which keep the resource managers at the utilization
+		double arrivalRate = utilization * nrResourceManagers / MEAN_SERVICE_TIME / nrSchedulers;
+		assert(arrivalRate <= 1) : "too many arrivals per scheduler and tick";
+		long jobTicks = 0;
+		long arrivals = 0;
+		int maxQueue = 0;
+
+		for (int tick = 0; tick < ticks; tick++) {
+			for (int s = 0; s < nrSchedulers; s++) {
+				if (tick % pollPeriod == s * pollPeriod / nrSchedulers) {
+					refresh(views[s], queues);
+				}
+				if (random.nextDouble() < arrivalRate) {
+					String target = choices > 0
+							? views[s].getLeastLoadedOfSample(choices, 1, random)[0]
+							: views[s].getLeastLoaded();
+					views[s].add(target, 1);
+					int rm = Integer.parseInt(target.substring(2));
+					maxQueue = Math.max(maxQueue, ++queues[rm]);
+					arrivals++;
+				}
+			}
+			for (int rm = 0; rm < nrResourceManagers; rm++) {
+				if (queues[rm] > 0) {
+					jobTicks += queues[rm];
+					if (random.nextInt(MEAN_SERVICE_TIME) == 0) {
+						queues[rm]--;
+					}
+				}
+			}
+		}
+
+		double meanJobs = (double) jobTicks / ticks;
+		double response = meanJobs * ticks / arrivals;
+		String policy = choices == 0 ? "least loaded" : choices == 1 ? "random" : "d = " + choices;
+		System.out.println(String.format("%-14s %6d %6d %6d %6.2f %12.1f %12.1f %10d", policy, nrSchedulers, nrResourceManagers,
+				pollPeriod, utilization, meanJobs, response, maxQueue));
+	}
+
+	private static void refresh(LoadIndex view, int[] queues) {
+		for (int rm = 0; rm < queues.length; rm++) {
+			view.put("rm" + rm, queues[rm]);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package core;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs an action whenever something happened that it has to react to, coalescing bursts of
+ * events into as few runs as possible.
+ * <p>
+ * <CODE>trigger</CODE> never blocks and never runs the action on the caller's thread. The
+ * action runs on a thread of its own, or on the executor of the execution model (see
+ * ExecutionModel.getEventExecutor), one run at a time. Events arriving while the action runs
+ * cause exactly one more run after it, however many they are, so every event is followed by
+ * a complete run of the action.
+ */
+public class CoalescingTask {
+
+	private static final int IDLE = 0;
+	private static final int SCHEDULED = 1;
+	// scheduled, and triggered again since the current run started
+	private static final int TRIGGERED_AGAIN = 2;
+
+	private final String name;
+	private final Runnable action;
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+
+	// the executor the action runs on, or the thread running it
+	private final Executor executor;
+	private final Thread thread;
+	private volatile boolean open = true;
+
+	// statistics
+	private final AtomicLong triggers = new AtomicLong();
+	private final AtomicLong runs = new AtomicLong();
+
+	private final static Logger logger = Logger.getLogger(CoalescingTask.class.getName());
+
+	/**
+	 * Creates a task on the threads of the default execution model.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>action</CODE> cannot be null
+	 * </DL>
+	 * @param name the name of the task, e.g. the address of its owner
+	 * @param action the action to run after events
+	 */
+	public CoalescingTask(String name, Runnable action) {
+		assert(action != null) : "parameter 'action' cannot be null";
+
+		this.name = name;
+		this.action = action;
+		ExecutionModel model = ExecutionModel.getDefault();
+		this.executor = model.getEventExecutor();
+		if (executor == null) {
+			thread = model.newThread("events-" + name, this::loop);
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			thread = null;
+		}
+	}
+
+	/**
+	 * Makes the action run soon, unless a run that has not started yet is already due.
+	 */
+	public void trigger() {
+		triggers.incrementAndGet();
+		while (true) {
+			int current = state.get();
+			if (current == TRIGGERED_AGAIN) {
+				return;
+			}
+			if (current == SCHEDULED) {
+				if (state.compareAndSet(SCHEDULED, TRIGGERED_AGAIN)) {
+					return;
+				}
+			} else if (state.compareAndSet(IDLE, SCHEDULED)) {
+				if (executor != null) {
+					executor.execute(this::runScheduled);
+				} else {
+					LockSupport.unpark(thread);
+				}
+				return;
+			}
+		}
+	}
+
+	// runs the action until no event arrived during the last run
+	private void runScheduled() {
+		while (open) {
+			runs.incrementAndGet();
+			try {
+				action.run();
+			} catch (RuntimeException ex) {
+				logger.error("Event-driven task of " + name + " failed", ex);
+			}
+			if (state.compareAndSet(SCHEDULED, IDLE)) {
+				return;
+			}
+			state.set(SCHEDULED);
+		}
+		state.set(IDLE);
+	}
+
+	private void loop() {
+		while (open) {
+			if (state.get() == IDLE) {
+				LockSupport.park(this);
+				continue;
+			}
+			runScheduled();
+		}
+	}
+
+	/**
+	 * Stops the task; later triggers are ignored.
+	 */
+	public void close() {
+		open = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public long getTriggers() {
+		return triggers.get();
+	}
+
+	/**
+	 * @return the number of times the action ran, at most the number of triggers
+	 */
+	public long getRuns() {
+		return runs.get();
+	}
+
+	public String toString() {
+		return "CoalescingTask {name = " + name + ", triggers = " + getTriggers() + ", runs = " + getRuns() + "}";
+	}
+}
@@ -0,0 +1,85 @@
+package core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global table interning endpoint names (GS node addresses, RM names, the supervisor) to
+ * small integer endpoint ids. Ids are handed out densely starting from 0 and never change,
+ * so they can be used to index arrays and bitsets instead of comparing strings.
+ */
+public final class Endpoints {
+
+	public static final int UNKNOWN = -1;
+
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] names = new String[64];
+	private static int nextId = 0;
+
+	/**
+	 * Private constructor in order to mimic the functionality of
+	 * a top-level static class that is unavailable in Java.
+	 */
+	private Endpoints() {
+
+	}
+
+	/**
+	 * Returns the id of the endpoint called <CODE>name</CODE>, assigning a new one if the
+	 * name has not been seen before.
+	 * @param name the endpoint name, cannot be null
+	 * @return the endpoint id
+	 */
+	public static int idOf(String name) {
+		assert(name != null) : "parameter 'name' cannot be null";
+
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		return register(name);
+	}
+
+	/**
+	 * Looks up the id of an endpoint without registering it.
+	 * @param name the endpoint name
+	 * @return the endpoint id, or UNKNOWN if the name was never interned
+	 */
+	public static int lookup(String name) {
+		if (name == null) {
+			return UNKNOWN;
+		}
+		Integer id = ids.get(name);
+		return id != null ? id : UNKNOWN;
+	}
+
+	/**
+	 * @param id an endpoint id
+	 * @return the name interned under that id, or null if the id is unknown
+	 */
+	public static String nameOf(int id) {
+		String[] current = names;
+		return id >= 0 && id < current.length ? current[id] : null;
+	}
+
+	/**
+	 * @return the number of endpoint ids handed out so far
+	 */
+	public static synchronized int size() {
+		return nextId;
+	}
+
+	private static synchronized int register(String name) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		if (nextId == names.length) {
+			String[] grown = new String[names.length * 2];
+			System.arraycopy(names, 0, grown, 0, names.length);
+			names = grown;
+		}
+		names[nextId] = name;
+		ids.put(name, nextId);
+		return nextId++;
+	}
+}
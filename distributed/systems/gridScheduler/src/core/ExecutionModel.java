@@ -0,0 +1,157 @@
+package core;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Threads the clusters, grid scheduler nodes, supervisor and mailboxes run on.
+ * <p>
+ * Originally every component owns a platform thread that sleeps between two polls, and every
+ * mailbox owns a consumer thread, so a simulation of thousands of clusters needs thousands of
+ * OS threads, most of them asleep. The other models decouple the components from the threads:
+ * <ul>
+ * <li><CODE>SharedPool</CODE> runs the polls of all components on a scheduled pool and the
+ * mailboxes on a work-stealing pool, both sized to the processors. A poll blocked on a full
+ * mailbox only delays the other polls, while a mailbox handler blocked on a full mailbox lets
+ * the work-stealing pool start a spare thread, so that the mailboxes are always drained.
+ * <li><CODE>VirtualThreads</CODE> gives every component and every mailbox drain a virtual
+ * thread (Java 21 and later), which costs a few hundred bytes of heap while it sleeps or
+ * blocks. On older JVMs it falls back to <CODE>SharedPool</CODE>.
+ * </ul>
+ * A mailbox drained on an executor is scheduled only while it holds messages, and never by
+ * two threads at once, so the handler of every endpoint still sees its messages one at a
+ * time and in order.
+ * <p>
+ * The model is chosen once per JVM, before the components are created (see
+ * <CODE>setDefault</CODE>); components and mailboxes keep the model they were created with.
+ */
+public enum ExecutionModel {
+
+	// a platform thread per component and per mailbox
+	PlatformThreads,
+
+	// the polls and the mailboxes of all components share a pool of platform threads
+	SharedPool,
+
+	// a virtual thread per component and per mailbox drain, if the JVM has them
+	VirtualThreads;
+
+	private static volatile ExecutionModel defaultModel = PlatformThreads;
+
+	// creates unstarted virtual threads, null if the JVM has none
+	private static final Object virtualThreadBuilder;
+	private static final Method unstarted;
+
+	private final static Logger logger = Logger.getLogger(ExecutionModel.class.getName());
+
+	static {
+		Object builder = null;
+		Method method = null;
+		try {
+			// Thread.ofVirtual().unstarted(runnable), looked up so that the code still runs on Java 8
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			method = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			builder = null;
+			method = null;
+		}
+		virtualThreadBuilder = builder;
+		unstarted = method;
+	}
+
+	/**
+	 * Lazily created shared threads, so that a JVM running platform threads only never starts them.
+	 */
+	private static final class SharedThreads {
+		static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+				ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		static final AtomicInteger pollers = new AtomicInteger();
+		static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable, "periodic-task-" + pollers.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Sets the model of the components and mailboxes created from now on. A request for virtual
+	 * threads on a JVM without them selects the shared pool.
+	 * @param model the execution model
+	 */
+	public static void setDefault(ExecutionModel model) {
+		assert(model != null) : "parameter 'model' cannot be null";
+		if (model == VirtualThreads && !isVirtualThreadsAvailable()) {
+			logger.warn("Virtual threads are not available on this JVM, falling back to a shared pool");
+			model = SharedPool;
+		}
+		defaultModel = model;
+	}
+
+	public static ExecutionModel getDefault() {
+		return defaultModel;
+	}
+
+	/**
+	 * @return true if this JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return virtualThreadBuilder != null;
+	}
+
+	/**
+	 * Creates a thread of this model, which has to be started by the caller.
+	 * @param name the name of the thread
+	 * @param runnable the code the thread runs
+	 * @return a virtual thread for <CODE>VirtualThreads</CODE>, a platform thread otherwise
+	 */
+	public Thread newThread(String name, Runnable runnable) {
+		if (this == VirtualThreads && virtualThreadBuilder != null) {
+			try {
+				Thread thread = (Thread) unstarted.invoke(virtualThreadBuilder, runnable);
+				thread.setName(name);
+				return thread;
+			} catch (ReflectiveOperationException ex) {
+				throw new IllegalStateException("Could not create a virtual thread", ex);
+			}
+		}
+		return new Thread(runnable, name);
+	}
+
+	/**
+	 * @return the executor mailboxes and event-driven tasks run on, or null if each of them
+	 * has a thread of its own
+	 */
+	public Executor getEventExecutor() {
+		switch (this) {
+		case SharedPool:
+			return SharedThreads.pool;
+		case VirtualThreads:
+			return runnable -> newThread("event-task", runnable).start();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Runs <CODE>poll</CODE> every <CODE>periodMillis</CODE> milliseconds, measured from the
+	 * end of one poll to the start of the next, as long as <CODE>condition</CODE> holds. The
+	 * condition is checked before every poll, including the first one.
+	 * @param name the name of the task, e.g. the address of the component
+	 * @param periodMillis the time between two polls
+	 * @param condition the task ends the first time it is false
+	 * @param poll one poll of the component
+	 * @return the running task
+	 */
+	public PeriodicTask schedule(String name, long periodMillis, BooleanSupplier condition, Runnable poll) {
+		if (this == SharedPool) {
+			return PeriodicTask.onPool(periodMillis, condition, poll, SharedThreads.scheduler);
+		}
+		return PeriodicTask.onThread(name, periodMillis, condition, poll, this);
+	}
+}
@@ -1,6 +1,26 @@
 package core;
 
-
+/**
+ * Contract of every component that can be the destination of a message, such as a
+ * grid scheduler node or a resource manager. Sockets hand the messages addressed to a
+ * component to its <CODE>onMessageReceived</CODE> method.
+ */
 public interface IMessageReceivedHandler {
 
+	/**
+	 * Receives a message addressed to this component.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>message</CODE> cannot be null
+	 * </DL>
+	 * @param message a message
+	 */
+	void onMessageReceived(Message message);
+
+	/**
+	 * @return the dispatcher of the incoming messages of this component, which keeps their statistics
+	 */
+	MessageDispatcher getDispatcher();
+
 }
@@ -0,0 +1,43 @@
+package core;
+
+import gridscheduler.model.ControlMessage;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries messages between a {@link SynchronizedSocket} and endpoints living in other
+ * processes. Implementations: {@link example.LocalSocket} (TCP) and
+ * {@link example.SharedMemorySocket} (memory-mapped ring buffers between processes on the same host).
+ */
+public interface ITransport {
+
+	/**
+	 * Sets the consumer of the messages received from other processes.
+	 * @param receiver the consumer of incoming messages
+	 */
+	public void setMessageReceiver(Consumer<ControlMessage> receiver);
+
+	/**
+	 * @param endpoint an endpoint name
+	 * @return true if messages to <CODE>endpoint</CODE> can be sent through this transport
+	 */
+	public boolean isRoutable(String endpoint);
+
+	/**
+	 * Queues a message for its destination.
+	 * @param message the message to send
+	 * @return false if the destination is not reachable or the message was dropped
+	 */
+	public boolean send(ControlMessage message);
+
+	/**
+	 * Sends a message once to every process this transport is talking to.
+	 * @param message the message to broadcast
+	 */
+	public void broadcast(ControlMessage message);
+
+	/**
+	 * Releases the threads and the resources of the transport.
+	 */
+	public void close();
+}
@@ -0,0 +1,121 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Values are counted in logarithmic buckets: every power of two is split into
+ * <CODE>SUB_BUCKETS</CODE> linear sub-buckets, so percentiles are accurate to within 25% from
+ * a nanosecond up to the longest durations, in a fixed amount of memory. Recording a value
+ * costs a few bit operations and an atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private volatile long max = 0;
+
+	/**
+	 * Records a duration. Negative durations, e.g. of a clock read on another JVM, count as 0.
+	 * @param value the duration, in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		if (value > max) {
+			updateMax(value);
+		}
+	}
+
+	private synchronized void updateMax(long value) {
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	// values below SUB_BUCKETS have a bucket each, the others share one per quarter of a power of two
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// the largest value counted in a bucket
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long lowerBound = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the average of the recorded values, in nanoseconds
+	 */
+	public long getMean() {
+		long n = count.sum();
+		return n > 0 ? sum.sum() / n : 0;
+	}
+
+	/**
+	 * @return the largest recorded value, in nanoseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>percentile</CODE> must be between 0 and 100
+	 * </DL>
+	 * @param percentile the percentile, e.g. 99
+	 * @return an upper bound of the value below which <CODE>percentile</CODE> percent of the
+	 * recorded values fall, in nanoseconds, or 0 if no value was recorded
+	 */
+	public long getPercentile(double percentile) {
+		assert(percentile >= 0 && percentile <= 100) : "parameter 'percentile' must be between 0 and 100";
+
+		long n = count.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(n * percentile / 100), 1);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(bucket), max);
+			}
+		}
+		return max;
+	}
+
+	public String toString() {
+		return "{count = " + getCount() + ", mean = " + getMean() + "ns, p50 = " + getPercentile(50)
+				+ "ns, p99 = " + getPercentile(99) + "ns, max = " + getMax() + "ns}";
+	}
+}
@@ -0,0 +1,589 @@
+package core;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded multi-producer/single-consumer mailbox owned by a single endpoint.
+ * <p>
+ * Any thread may post messages into the mailbox; they are handed to the owner's handler
+ * in FIFO order by a dedicated consumer thread. Senders therefore never run the receiver's
+ * code on their own thread and never hold the receiver's monitor. When the mailbox is full
+ * the sender blocks until the consumer catches up, which bounds the memory used per endpoint.
+ * <p>
+ * A handler posting from a consumer thread never blocks, though: two endpoints whose handlers
+ * post to each other would wait for each other forever once both mailboxes are full, as
+ * the consumer that would make room is the one waiting. The message of such a sender
+ * overflows the mailbox instead, behind the messages already queued, and only the senders
+ * outside the handlers are held back while the mailbox is full, see getOverflowedMessages.
+ * <p>
+ * The mailbox keeps track of the number of delivered messages and of the time each message
+ * spent in the queue, so that the throughput and queueing delay of every handler can be
+ * inspected at runtime.
+ * <p>
+ * A mailbox may have several lanes, each a bounded FIFO of its own, e.g. one per
+ * PriorityClass. A sender blocks only while the lane it posts to is full, and the consumer
+ * drains the lanes either by strict priority, lane 0 first, or by weight, taking up to
+ * <i>weight</i> messages of a lane before moving to the next non-empty one. The queueing
+ * delay and the overflow of every lane are kept apart. Lanes keep the messages of one class
+ * from queueing behind those of another; they do not keep two handlers from filling each
+ * other's lane of the same class, which is what the overflow above is for.
+ * <p>
+ * Under a shared execution model (see ExecutionModel) the mailbox has no consumer thread: it
+ * is drained on the executor of the model, by a single task at a time that is scheduled when
+ * the first message arrives and that hands over after <CODE>DRAIN_BATCH</CODE> messages, so
+ * that busy endpoints do not starve the other ones.
+ */
+public class Mailbox implements Runnable {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	// messages a drain task delivers before it reschedules itself
+	public static final int DRAIN_BATCH = 64;
+
+	// name of the endpoint owning this mailbox
+	private final String owner;
+	private final Consumer<Message> handler;
+
+	/**
+	 * Ring buffer holding the pending messages of one lane and the time they were enqueued.
+	 */
+	private static final class Lane {
+		final Message[] slots;
+		final long[] enqueueTimes;
+		int head = 0;
+		int tail = 0;
+		int count = 0;
+		// messages posted from consumer threads while the ring was full, in order; the ring
+		// stays full for as long as there are some
+		final ArrayDeque<Message> overflow = new ArrayDeque<Message>();
+		final ArrayDeque<Long> overflowTimes = new ArrayDeque<Long>();
+		long overflowedMessages = 0;
+		final Condition notFull;
+		final AtomicLong deliveredMessages = new AtomicLong();
+		final LatencyHistogram queueingDelays = new LatencyHistogram();
+
+		Lane(int capacity, Condition notFull) {
+			this.slots = new Message[capacity];
+			this.enqueueTimes = new long[capacity];
+			this.notFull = notFull;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Lane[] lanes;
+	// number of messages pending in all the lanes, overflow included
+	private int count = 0;
+
+	// set on the threads running the handler of a mailbox, whose posts do not block
+	private static final ThreadLocal<Boolean> delivering = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	// messages taken from each lane in a row, null for strict priority
+	private final int[] weights;
+	private int currentLane = 0;
+	private int credit = 0;
+
+	// consumer thread, or the executor the mailbox is drained on
+	private final Thread consumerThread;
+	private final Executor executor;
+	// set while a drain task is scheduled or running
+	private boolean draining = false;
+	private volatile boolean running;
+
+	// statistics
+	private final long startTime;
+	private final AtomicLong deliveredMessages = new AtomicLong();
+	private final AtomicLong totalQueueingDelay = new AtomicLong();
+	private final AtomicLong maxQueueingDelay = new AtomicLong();
+	private final AtomicLong totalHandlerTime = new AtomicLong();
+
+	private final static Logger logger = Logger.getLogger(Mailbox.class.getName());
+
+	/**
+	 * Creates a mailbox for the endpoint <CODE>owner</CODE> and starts its consumer thread.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>handler</CODE> cannot be null
+	 * <DD>parameter <CODE>capacity</CODE> must be positive
+	 * </DL>
+	 * @param owner the name of the endpoint this mailbox belongs to
+	 * @param handler the handler that consumes the messages
+	 * @param capacity the maximum number of pending messages
+	 */
+	public Mailbox(String owner, Consumer<Message> handler, int capacity) {
+		this(owner, handler, capacity, 1, null);
+	}
+
+	/**
+	 * Creates a mailbox with several lanes for the endpoint <CODE>owner</CODE> and starts its
+	 * consumer thread.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>handler</CODE> cannot be null
+	 * <DD>parameter <CODE>capacity</CODE> must be positive
+	 * <DD>parameter <CODE>laneCount</CODE> must be positive
+	 * <DD>parameter <CODE>weights</CODE> must be null or hold a positive weight for every lane
+	 * </DL>
+	 * @param owner the name of the endpoint this mailbox belongs to
+	 * @param handler the handler that consumes the messages
+	 * @param capacity the maximum number of pending messages of each lane
+	 * @param laneCount the number of lanes
+	 * @param weights the number of messages the consumer takes from each lane in a row, or null
+	 * to always drain the lanes in order
+	 */
+	public Mailbox(String owner, Consumer<Message> handler, int capacity, int laneCount, int[] weights) {
+		// preconditions
+		assert(handler != null) : "parameter 'handler' cannot be null";
+		assert(capacity > 0) : "parameter 'capacity' must be positive";
+		assert(laneCount > 0) : "parameter 'laneCount' must be positive";
+		assert(weights == null || weights.length == laneCount) : "parameter 'weights' must hold a weight for every lane";
+
+		this.owner = owner;
+		this.handler = handler;
+		this.lanes = new Lane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new Lane(capacity, lock.newCondition());
+		}
+		this.weights = weights != null ? weights.clone() : null;
+		if (weights != null) {
+			for (int weight : weights) {
+				assert(weight > 0) : "lane weights must be positive";
+			}
+			credit = weights[0];
+		}
+		this.startTime = System.nanoTime();
+
+		running = true;
+		executor = ExecutionModel.getDefault().getEventExecutor();
+		if (executor == null) {
+			consumerThread = new Thread(this, "mailbox-" + owner);
+			consumerThread.setDaemon(true);
+			consumerThread.start();
+		} else {
+			consumerThread = null;
+		}
+	}
+
+	/**
+	 * Enqueues a message for the owner of this mailbox and returns as soon as it is queued.
+	 * Blocks while the mailbox is full, unless called from the handler of a mailbox.
+	 * @param message the message to deliver
+	 * @return false if the mailbox has been closed and the message was dropped
+	 */
+	public boolean post(Message message) {
+		return post(message, 0);
+	}
+
+	/**
+	 * Enqueues a message in the lane <CODE>lane</CODE>. Blocks while that lane is full, unless
+	 * called from the handler of a mailbox, whose message overflows the lane instead.
+	 * @param message the message to deliver
+	 * @param lane the index of the lane
+	 * @return false if the mailbox has been closed and the message was dropped
+	 */
+	public boolean post(Message message, int lane) {
+		assert(message != null) : "parameter 'message' cannot be null";
+
+		Lane target = lanes[lane];
+		boolean consumer = delivering.get();
+		lock.lock();
+		try {
+			while (target.count == target.slots.length && running && !consumer) {
+				awaitNotFull(target);
+			}
+			if (!running) {
+				return false;
+			}
+			enqueue(target, message);
+			signalConsumer();
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Enqueues a batch of messages at once, taking the lock and waking up the consumer once
+	 * rather than once per message. Blocks while the mailbox is full, unless called from the
+	 * handler of a mailbox.
+	 * @param messages the messages to deliver, in order
+	 * @return the number of messages enqueued, smaller than the size of the batch only if the
+	 * mailbox has been closed
+	 */
+	public int postAll(List<? extends Message> messages) {
+		return postAll(messages, 0);
+	}
+
+	/**
+	 * Enqueues a batch of messages in the lane <CODE>lane</CODE>, see <CODE>postAll(List)</CODE>.
+	 * @param messages the messages to deliver, in order
+	 * @param lane the index of the lane
+	 * @return the number of messages enqueued
+	 */
+	public int postAll(List<? extends Message> messages, int lane) {
+		Lane target = lanes[lane];
+		boolean consumer = delivering.get();
+		int posted = 0;
+		lock.lock();
+		try {
+			for (Message message : messages) {
+				while (target.count == target.slots.length && running && !consumer) {
+					// let the consumer make room for the rest of the batch
+					signalConsumer();
+					awaitNotFull(target);
+				}
+				if (!running) {
+					break;
+				}
+				enqueue(target, message);
+				posted++;
+			}
+			if (posted > 0) {
+				signalConsumer();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+		return posted;
+	}
+
+	// must hold the lock
+	private void enqueue(Lane lane, Message message) {
+		count++;
+		if (lane.count == lane.slots.length) {
+			// only a consumer thread gets here
+			lane.overflow.add(message);
+			lane.overflowTimes.add(System.nanoTime());
+			lane.overflowedMessages++;
+			return;
+		}
+		lane.slots[lane.tail] = message;
+		lane.enqueueTimes[lane.tail] = System.nanoTime();
+		lane.tail = (lane.tail + 1) % lane.slots.length;
+		lane.count++;
+	}
+
+	// wake up the consumer thread, or schedule a drain task; must hold the lock
+	private void signalConsumer() {
+		if (executor == null) {
+			notEmpty.signal();
+		} else if (!draining) {
+			draining = true;
+			executor.execute(this::drain);
+		}
+	}
+
+	// wait until the consumer took a message of the lane; must hold the lock
+	private void awaitNotFull(Lane lane) throws InterruptedException {
+		if (!ForkJoinTask.inForkJoinPool()) {
+			lane.notFull.await();
+			return;
+		}
+		// let a shared pool start another worker meanwhile, which may be the one draining this mailbox
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			public boolean block() throws InterruptedException {
+				if (!isReleasable()) {
+					lane.notFull.await();
+				}
+				return true;
+			}
+
+			public boolean isReleasable() {
+				return lane.count < lane.slots.length || !running;
+			}
+		});
+	}
+
+	// the lane the consumer takes its next message from; must hold the lock, with a message pending
+	private Lane nextLane() {
+		if (weights == null) {
+			for (Lane lane : lanes) {
+				if (lane.count > 0) {
+					return lane;
+				}
+			}
+		}
+		while (true) {
+			Lane lane = lanes[currentLane];
+			if (lane.count > 0 && credit > 0) {
+				credit--;
+				return lane;
+			}
+			currentLane = (currentLane + 1) % lanes.length;
+			credit = weights[currentLane];
+		}
+	}
+
+	/**
+	 * Consumer loop. Takes messages out of the mailbox one by one and hands them to the owner.
+	 */
+	public void run() {
+		while (running) {
+			Message message;
+			long enqueueTime;
+			Lane lane;
+
+			lock.lock();
+			try {
+				while (count == 0 && running) {
+					notEmpty.await();
+				}
+				if (!running) {
+					break;
+				}
+				lane = nextLane();
+				enqueueTime = lane.enqueueTimes[lane.head];
+				message = take(lane);
+			} catch (InterruptedException ex) {
+				break;
+			} finally {
+				lock.unlock();
+			}
+
+			handle(lane, message, enqueueTime);
+		}
+	}
+
+	// delivers up to DRAIN_BATCH messages on the executor, then hands over to the next task
+	private void drain() {
+		for (int i = 0; i < DRAIN_BATCH; i++) {
+			Message message;
+			long enqueueTime;
+			Lane lane;
+
+			lock.lock();
+			try {
+				if (count == 0 || !running) {
+					draining = false;
+					return;
+				}
+				lane = nextLane();
+				enqueueTime = lane.enqueueTimes[lane.head];
+				message = take(lane);
+			} finally {
+				lock.unlock();
+			}
+
+			handle(lane, message, enqueueTime);
+		}
+		// still draining, the next task goes on where this one stopped
+		executor.execute(this::drain);
+	}
+
+	// removes the oldest message of the lane; must hold the lock
+	private Message take(Lane lane) {
+		Message message = lane.slots[lane.head];
+		lane.slots[lane.head] = null;
+		lane.head = (lane.head + 1) % lane.slots.length;
+		lane.count--;
+		count--;
+		if (!lane.overflow.isEmpty()) {
+			// the oldest overflowed message takes the free slot, behind the others
+			lane.slots[lane.tail] = lane.overflow.poll();
+			lane.enqueueTimes[lane.tail] = lane.overflowTimes.poll();
+			lane.tail = (lane.tail + 1) % lane.slots.length;
+			lane.count++;
+		} else {
+			lane.notFull.signal();
+		}
+		return message;
+	}
+
+	private void handle(Lane lane, Message message, long enqueueTime) {
+		long dequeueTime = System.nanoTime();
+		recordQueueingDelay(dequeueTime - enqueueTime);
+		lane.queueingDelays.record(dequeueTime - enqueueTime);
+
+		boolean nested = delivering.get();
+		delivering.set(Boolean.TRUE);
+		try {
+			handler.accept(message);
+		} catch (RuntimeException ex) {
+			logger.error("Handler of " + owner + " failed to process a message", ex);
+		} finally {
+			if (!nested) {
+				delivering.set(Boolean.FALSE);
+			}
+		}
+
+		totalHandlerTime.addAndGet(System.nanoTime() - dequeueTime);
+		deliveredMessages.incrementAndGet();
+		lane.deliveredMessages.incrementAndGet();
+	}
+
+	private void recordQueueingDelay(long delay) {
+		totalQueueingDelay.addAndGet(delay);
+		long max = maxQueueingDelay.get();
+		while (delay > max && !maxQueueingDelay.compareAndSet(max, delay)) {
+			max = maxQueueingDelay.get();
+		}
+	}
+
+	/**
+	 * Stops the consumer thread. Messages still pending are discarded.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+			for (Lane lane : lanes) {
+				lane.notFull.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (consumerThread != null && Thread.currentThread() != consumerThread) {
+			try {
+				consumerThread.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return the number of messages waiting to be handled
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * @return the number of messages waiting in the lane <CODE>lane</CODE>
+	 */
+	public int size(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of messages of the lane <CODE>lane</CODE> handed to the owner so far
+	 */
+	public long getDeliveredMessages(int lane) {
+		return lanes[lane].deliveredMessages.get();
+	}
+
+	/**
+	 * @return the number of messages posted from consumer threads while the lane
+	 * <CODE>lane</CODE> was full
+	 */
+	public long getOverflowedMessages(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].overflowedMessages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the distribution of the time the messages of the lane <CODE>lane</CODE> waited
+	 * in the mailbox, in nanoseconds
+	 */
+	public LatencyHistogram getQueueingDelays(int lane) {
+		return lanes[lane].queueingDelays;
+	}
+
+	/**
+	 * @return the number of messages posted from consumer threads while the mailbox was full,
+	 * which were queued beyond its capacity rather than blocking their sender
+	 */
+	public long getOverflowedMessages() {
+		lock.lock();
+		try {
+			long overflowed = 0;
+			for (Lane lane : lanes) {
+				overflowed += lane.overflowedMessages;
+			}
+			return overflowed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of messages handed to the owner so far
+	 */
+	public long getDeliveredMessages() {
+		return deliveredMessages.get();
+	}
+
+	/**
+	 * @return the number of messages handled per second since the mailbox was created
+	 */
+	public double getThroughput() {
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+		return elapsedSeconds > 0 ? deliveredMessages.get() / elapsedSeconds : 0;
+	}
+
+	/**
+	 * @return the average time a message waited in the mailbox, in nanoseconds
+	 */
+	public long getAverageQueueingDelay() {
+		long delivered = deliveredMessages.get();
+		return delivered > 0 ? totalQueueingDelay.get() / delivered : 0;
+	}
+
+	/**
+	 * @return the longest time a message waited in the mailbox, in nanoseconds
+	 */
+	public long getMaxQueueingDelay() {
+		return maxQueueingDelay.get();
+	}
+
+	/**
+	 * @return the average time the handler spent on a message, in nanoseconds
+	 */
+	public long getAverageHandlerTime() {
+		long delivered = deliveredMessages.get();
+		return delivered > 0 ? totalHandlerTime.get() / delivered : 0;
+	}
+
+	public String toString() {
+		StringBuilder builder = new StringBuilder("Mailbox {owner = ").append(owner).append(", pending = ").append(size())
+				.append(", delivered = ").append(getDeliveredMessages())
+				.append(", avgQueueingDelay = ").append(getAverageQueueingDelay()).append("ns");
+		if (lanes.length > 1) {
+			for (int i = 0; i < lanes.length; i++) {
+				builder.append(", lane ").append(i).append(" queueing ").append(lanes[i].queueingDelays)
+						.append(" overflowed ").append(getOverflowedMessages(i));
+			}
+		}
+		return builder.append("}").toString();
+	}
+}
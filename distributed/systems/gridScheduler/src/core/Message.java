@@ -1,5 +1,9 @@
 package core;
 
-public class Message {
+import java.io.Serializable;
+
+public class Message implements Serializable {
+
+	private static final long serialVersionUID = 4735716243913446587L;
 
 }
@@ -0,0 +1,166 @@
+package core;
+
+import gridscheduler.model.ControlMessage;
+import gridscheduler.model.ControlMessageType;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches control messages to the handler registered for their type.
+ * <p>
+ * Handlers are kept in an array indexed by the ordinal of the ControlMessageType, so that
+ * dispatching a message costs a single array lookup whatever the number of types. For every
+ * type the dispatcher counts the messages handled and the time spent in the handler, and keeps
+ * histograms of the handler times and of the queueing delays, from the time the message was
+ * sent until its handler started. Since every endpoint has its own dispatcher, this gives the
+ * volume and the latency of the traffic per type and per endpoint.
+ */
+public class MessageDispatcher {
+
+	private static final ControlMessageType[] types = ControlMessageType.values();
+
+	// name of the component the dispatcher belongs to
+	private final String owner;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final Consumer<ControlMessage>[] handlers = new Consumer[types.length];
+
+	// per type statistics
+	private final LongAdder[] messageCounts = new LongAdder[types.length];
+	private final LongAdder[] handlerTimes = new LongAdder[types.length];
+	private final LatencyHistogram[] queueingDelayHistograms = new LatencyHistogram[types.length];
+	private final LatencyHistogram[] handlerTimeHistograms = new LatencyHistogram[types.length];
+	private final LongAdder unhandledMessages = new LongAdder();
+
+	public MessageDispatcher(String owner) {
+		this.owner = owner;
+		for (int i = 0; i < types.length; i++) {
+			messageCounts[i] = new LongAdder();
+			handlerTimes[i] = new LongAdder();
+			queueingDelayHistograms[i] = new LatencyHistogram();
+			handlerTimeHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Registers the handler of the messages of type <CODE>type</CODE>, replacing any previous one.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>type</CODE> cannot be null
+	 * <DD>parameter <CODE>handler</CODE> cannot be null
+	 * </DL>
+	 * @param type the type of message
+	 * @param handler the handler of the messages of that type
+	 */
+	public void register(ControlMessageType type, Consumer<ControlMessage> handler) {
+		assert(type != null) : "parameter 'type' cannot be null";
+		assert(handler != null) : "parameter 'handler' cannot be null";
+
+		handlers[type.ordinal()] = handler;
+	}
+
+	/**
+	 * Hands <CODE>message</CODE> to the handler registered for its type.
+	 * @param message the message to dispatch
+	 * @return false if no handler is registered for the type of the message
+	 */
+	public boolean dispatch(ControlMessage message) {
+		int index = message.getType().ordinal();
+		Consumer<ControlMessage> handler = handlers[index];
+		if (handler == null) {
+			unhandledMessages.increment();
+			return false;
+		}
+
+		long start = System.nanoTime();
+		long sendTime = message.getSendTime();
+		if (sendTime != 0) {
+			queueingDelayHistograms[index].record(start - sendTime);
+		}
+		handler.accept(message);
+		long handlerTime = System.nanoTime() - start;
+		handlerTimes[index].add(handlerTime);
+		handlerTimeHistograms[index].record(handlerTime);
+		messageCounts[index].increment();
+		return true;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return the number of messages of type <CODE>type</CODE> handled so far
+	 */
+	public long getMessageCount(ControlMessageType type) {
+		return messageCounts[type.ordinal()].sum();
+	}
+
+	/**
+	 * @return the total time spent handling messages of type <CODE>type</CODE>, in nanoseconds
+	 */
+	public long getHandlerTime(ControlMessageType type) {
+		return handlerTimes[type.ordinal()].sum();
+	}
+
+	/**
+	 * @return the average time spent handling a message of type <CODE>type</CODE>, in nanoseconds
+	 */
+	public long getAverageHandlerTime(ControlMessageType type) {
+		long count = getMessageCount(type);
+		return count > 0 ? getHandlerTime(type) / count : 0;
+	}
+
+	/**
+	 * @return the distribution of the time from sending a message of type <CODE>type</CODE>
+	 * until its handler started, in nanoseconds
+	 */
+	public LatencyHistogram getQueueingDelays(ControlMessageType type) {
+		return queueingDelayHistograms[type.ordinal()];
+	}
+
+	/**
+	 * @return the distribution of the time spent handling a message of type <CODE>type</CODE>, in nanoseconds
+	 */
+	public LatencyHistogram getHandlerTimes(ControlMessageType type) {
+		return handlerTimeHistograms[type.ordinal()];
+	}
+
+	/**
+	 * @return one line per message type handled so far, with its volume and latencies
+	 */
+	public String report() {
+		StringBuilder builder = new StringBuilder();
+		for (ControlMessageType type : types) {
+			long count = getMessageCount(type);
+			if (count > 0) {
+				builder.append(owner).append(' ').append(type).append(": count = ").append(count)
+						.append(", handler time = ").append(getHandlerTime(type) / 1000).append("us")
+						.append(", queueing ").append(getQueueingDelays(type))
+						.append(", handler ").append(getHandlerTimes(type)).append('\n');
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return the number of messages dropped because no handler was registered for their type
+	 */
+	public long getUnhandledMessages() {
+		return unhandledMessages.sum();
+	}
+
+	public String toString() {
+		StringBuilder builder = new StringBuilder("MessageDispatcher {owner = ").append(owner);
+		for (ControlMessageType type : types) {
+			long count = getMessageCount(type);
+			if (count > 0) {
+				builder.append(", ").append(type).append(" = ").append(count)
+						.append(" (avg ").append(getAverageHandlerTime(type)).append("ns)");
+			}
+		}
+		return builder.append(", unhandled = ").append(getUnhandledMessages()).append("}").toString();
+	}
+}
@@ -0,0 +1,100 @@
+package core;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The poll loop of a component: a poll every period, for as long as a condition holds, either
+ * on a thread of its own or on a shared pool (see ExecutionModel.schedule).
+ * <p>
+ * A task ends on its own once the condition is false; <CODE>join</CODE> waits for that, like
+ * <CODE>Thread.join</CODE> on the thread of a component would.
+ */
+public class PeriodicTask {
+
+	private final long periodMillis;
+	private final BooleanSupplier condition;
+	private final Runnable poll;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	// the shared pool of a pooled task, null for a task with its own thread
+	private final ScheduledExecutorService pool;
+
+	private final static Logger logger = Logger.getLogger(PeriodicTask.class.getName());
+
+	private PeriodicTask(long periodMillis, BooleanSupplier condition, Runnable poll, ScheduledExecutorService pool) {
+		assert(periodMillis >= 0) : "parameter 'periodMillis' cannot be negative";
+		assert(condition != null) : "parameter 'condition' cannot be null";
+		assert(poll != null) : "parameter 'poll' cannot be null";
+
+		this.periodMillis = periodMillis;
+		this.condition = condition;
+		this.poll = poll;
+		this.pool = pool;
+	}
+
+	// a task sleeping between its polls on a thread of the model
+	static PeriodicTask onThread(String name, long periodMillis, BooleanSupplier condition, Runnable poll, ExecutionModel model) {
+		PeriodicTask task = new PeriodicTask(periodMillis, condition, poll, null);
+		model.newThread(name, task::loop).start();
+		return task;
+	}
+
+	// a task whose polls are scheduled on the pool, so that it holds no thread between two polls
+	static PeriodicTask onPool(long periodMillis, BooleanSupplier condition, Runnable poll, ScheduledExecutorService pool) {
+		PeriodicTask task = new PeriodicTask(periodMillis, condition, poll, pool);
+		pool.execute(task::pollOnce);
+		return task;
+	}
+
+	private void loop() {
+		try {
+			while (condition.getAsBoolean()) {
+				runPoll();
+				Thread.sleep(periodMillis);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	private void pollOnce() {
+		if (!condition.getAsBoolean()) {
+			finished.countDown();
+			return;
+		}
+		runPoll();
+		pool.schedule(this::pollOnce, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void runPoll() {
+		try {
+			poll.run();
+		} catch (RuntimeException ex) {
+			// keep polling, as the other components do not notice that this one stopped
+			logger.error("Poll failed", ex);
+		}
+	}
+
+	/**
+	 * Waits until the task has ended, which it does at its next poll after the condition
+	 * became false.
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 */
+	public void join() throws InterruptedException {
+		finished.await();
+	}
+
+	/**
+	 * @return true until the task has ended
+	 */
+	public boolean isAlive() {
+		return finished.getCount() > 0;
+	}
+}
@@ -0,0 +1,261 @@
+package core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.) over the heartbeats of a set of endpoints.
+ * <p>
+ * Instead of a fixed timeout, the detector learns the distribution of the inter-arrival times
+ * of the heartbeats of every endpoint, over a sliding window, and expresses how unlikely the
+ * current silence is as <i>phi</i> = -log10(P(the next heartbeat is still to come)). Phi grows
+ * continuously while no heartbeat arrives; an endpoint is suspected once it crosses the
+ * threshold, e.g. a threshold of 8 means a wrong suspicion once in 10^8 silences. Endpoints
+ * with jittery heartbeats are therefore given more time than regular ones.
+ * <p>
+ * Endpoints are monitored from their first heartbeat on. Until enough of their intervals are
+ * known, the history of an endpoint is seeded with the interval its heartbeats are expected
+ * at, so that an endpoint that stops right after its first heartbeat is suspected as well.
+ * <CODE>check</CODE> has to be called periodically by the monitoring thread; it fires the
+ * suspicion and recovery callbacks on that thread.
+ */
+public class PhiAccrualFailureDetector {
+
+	public static final double DEFAULT_THRESHOLD = 8.0;
+	public static final int DEFAULT_WINDOW_SIZE = 100;
+	// lower bound of the standard deviation, so that very regular heartbeats do not make phi
+	// explode at the slightest delay
+	public static final long DEFAULT_MIN_STD_DEVIATION_MILLIS = 25;
+
+	/**
+	 * Inter-arrival times of the heartbeats of one endpoint.
+	 */
+	private static final class History {
+		final double[] intervals;
+		int next = 0;
+		int count = 0;
+		double sum = 0;
+		double sumOfSquares = 0;
+		long lastHeartbeat;
+		boolean suspected = false;
+
+		History(int windowSize, long now, double expectedInterval) {
+			intervals = new double[Math.max(windowSize, 2)];
+			lastHeartbeat = now;
+			// two intervals around the expected one, a quarter of it apart, which the real
+			// intervals push out of the window
+			add(expectedInterval - expectedInterval / 4);
+			add(expectedInterval + expectedInterval / 4);
+		}
+
+		synchronized boolean heartbeat(long now) {
+			add((now - lastHeartbeat) / 1e6);
+			lastHeartbeat = now;
+
+			boolean recovered = suspected;
+			suspected = false;
+			return recovered;
+		}
+
+		private void add(double interval) {
+			if (count == intervals.length) {
+				double oldest = intervals[next];
+				sum -= oldest;
+				sumOfSquares -= oldest * oldest;
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % intervals.length;
+			sum += interval;
+			sumOfSquares += interval * interval;
+		}
+
+		synchronized double phi(long now, double minStdDeviation) {
+			double mean = sum / count;
+			double variance = Math.max(sumOfSquares / count - mean * mean, 0);
+			double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+			return PhiAccrualFailureDetector.phi((now - lastHeartbeat) / 1e6, mean, stdDeviation);
+		}
+	}
+
+	private final double threshold;
+	private final int windowSize;
+	private final double minStdDeviation;
+	private final double expectedInterval;
+	private final Consumer<String> onSuspected;
+	private final Consumer<String> onRecovered;
+
+	private final ConcurrentHashMap<String, History> histories = new ConcurrentHashMap<String, History>();
+
+	// statistics
+	private final AtomicLong suspicions = new AtomicLong();
+	private final AtomicLong recoveries = new AtomicLong();
+	private final AtomicLong totalDetectionTime = new AtomicLong();
+	private volatile long lastDetectionTime = 0;
+
+	/**
+	 * Creates a detector with the default window and standard deviation floor.
+	 * @param threshold the phi value above which an endpoint is suspected
+	 * @param expectedIntervalMillis the interval the heartbeats are sent at, in milliseconds
+	 * @param onSuspected called with the name of every endpoint that becomes suspected
+	 * @param onRecovered called with the name of every suspected endpoint that sends a heartbeat again
+	 */
+	public PhiAccrualFailureDetector(double threshold, long expectedIntervalMillis, Consumer<String> onSuspected,
+			Consumer<String> onRecovered) {
+		this(threshold, DEFAULT_WINDOW_SIZE, DEFAULT_MIN_STD_DEVIATION_MILLIS, expectedIntervalMillis, onSuspected, onRecovered);
+	}
+
+	/**
+	 * Creates a detector.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>threshold</CODE> must be positive
+	 * <DD>parameter <CODE>windowSize</CODE> must be positive
+	 * <DD>parameter <CODE>expectedIntervalMillis</CODE> must be positive
+	 * </DL>
+	 * @param threshold the phi value above which an endpoint is suspected
+	 * @param windowSize the number of inter-arrival times the distribution is estimated from
+	 * @param minStdDeviationMillis the lower bound of the standard deviation, in milliseconds
+	 * @param expectedIntervalMillis the interval the heartbeats are sent at, in milliseconds,
+	 * assumed until the intervals of an endpoint are known
+	 * @param onSuspected called with the name of every endpoint that becomes suspected
+	 * @param onRecovered called with the name of every suspected endpoint that sends a heartbeat again
+	 */
+	public PhiAccrualFailureDetector(double threshold, int windowSize, long minStdDeviationMillis, long expectedIntervalMillis,
+			Consumer<String> onSuspected, Consumer<String> onRecovered) {
+		assert(threshold > 0) : "parameter 'threshold' must be positive";
+		assert(windowSize > 0) : "parameter 'windowSize' must be positive";
+		assert(expectedIntervalMillis > 0) : "parameter 'expectedIntervalMillis' must be positive";
+
+		this.threshold = threshold;
+		this.windowSize = windowSize;
+		this.minStdDeviation = minStdDeviationMillis;
+		this.expectedInterval = expectedIntervalMillis;
+		this.onSuspected = onSuspected;
+		this.onRecovered = onRecovered;
+	}
+
+	/**
+	 * Records a heartbeat of <CODE>endpoint</CODE>, which is monitored from now on. A suspected
+	 * endpoint is reported as recovered.
+	 * @param endpoint the name of the endpoint
+	 */
+	public void heartbeat(String endpoint) {
+		long now = System.nanoTime();
+		History history = histories.get(endpoint);
+		if (history == null) {
+			histories.putIfAbsent(endpoint, new History(windowSize, now, expectedInterval));
+			return;
+		}
+		if (history.heartbeat(now)) {
+			recoveries.incrementAndGet();
+			onRecovered.accept(endpoint);
+		}
+	}
+
+	/**
+	 * Suspects every monitored endpoint whose phi crossed the threshold since the last check.
+	 */
+	public void check() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, History> entry : histories.entrySet()) {
+			History history = entry.getValue();
+			boolean suspect;
+			long silence;
+			synchronized (history) {
+				suspect = !history.suspected && history.phi(now, minStdDeviation) >= threshold;
+				if (suspect) {
+					history.suspected = true;
+				}
+				silence = now - history.lastHeartbeat;
+			}
+			if (suspect) {
+				suspicions.incrementAndGet();
+				totalDetectionTime.addAndGet(silence);
+				lastDetectionTime = silence;
+				onSuspected.accept(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Stops monitoring <CODE>endpoint</CODE>, until its next heartbeat.
+	 * @param endpoint the name of the endpoint
+	 */
+	public void remove(String endpoint) {
+		histories.remove(endpoint);
+	}
+
+	/**
+	 * @param endpoint the name of the endpoint
+	 * @return the current suspicion level of the endpoint, 0 if it is not monitored
+	 */
+	public double phi(String endpoint) {
+		History history = histories.get(endpoint);
+		return history != null ? history.phi(System.nanoTime(), minStdDeviation) : 0;
+	}
+
+	public boolean isSuspected(String endpoint) {
+		History history = histories.get(endpoint);
+		if (history == null) {
+			return false;
+		}
+		synchronized (history) {
+			return history.suspected;
+		}
+	}
+
+	/**
+	 * @param endpoint the name of the endpoint
+	 * @return the System.nanoTime of the last heartbeat of the endpoint, 0 if it is not monitored
+	 */
+	public long getLastHeartbeat(String endpoint) {
+		History history = histories.get(endpoint);
+		if (history == null) {
+			return 0;
+		}
+		synchronized (history) {
+			return history.lastHeartbeat;
+		}
+	}
+
+	public long getSuspicions() {
+		return suspicions.get();
+	}
+
+	public long getRecoveries() {
+		return recoveries.get();
+	}
+
+	/**
+	 * @return the average time from the last heartbeat of an endpoint until it was suspected, in nanoseconds
+	 */
+	public long getAverageDetectionTime() {
+		long count = suspicions.get();
+		return count > 0 ? totalDetectionTime.get() / count : 0;
+	}
+
+	/**
+	 * @return the time from the last heartbeat of the last suspected endpoint until it was suspected, in nanoseconds
+	 */
+	public long getLastDetectionTime() {
+		return lastDetectionTime;
+	}
+
+	/**
+	 * Phi of a silence of <CODE>elapsed</CODE> milliseconds given normally distributed
+	 * inter-arrival times, using the logistic approximation of the normal CDF.
+	 */
+	static double phi(double elapsed, double mean, double stdDeviation) {
+		double y = (elapsed - mean) / stdDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+}
@@ -0,0 +1,36 @@
+package core;
+
+import gridscheduler.model.ControlMessageType;
+
+/**
+ * Priority classes of the control messages. With priority lanes enabled (see
+ * SynchronizedSocket.setPriorityLanes), every class has its own lane in the mailbox of each
+ * endpoint, so that heartbeats, loads and completions are never queued behind a flood of jobs.
+ */
+public enum PriorityClass {
+
+	// liveness, loads, completions, credits and membership: small and latency sensitive
+	Control,
+
+	// jobs moving between clusters and grid scheduler nodes
+	Bulk;
+
+	private static final PriorityClass[] classes = new PriorityClass[ControlMessageType.values().length];
+
+	static {
+		for (ControlMessageType type : ControlMessageType.values()) {
+			classes[type.ordinal()] = Control;
+		}
+		classes[ControlMessageType.AddJob.ordinal()] = Bulk;
+		classes[ControlMessageType.ReplyJob.ordinal()] = Bulk;
+		classes[ControlMessageType.RequestJob.ordinal()] = Bulk;
+	}
+
+	/**
+	 * @param type a message type
+	 * @return the priority class of the messages of that type
+	 */
+	public static PriorityClass of(ControlMessageType type) {
+		return classes[type.ordinal()];
+	}
+}
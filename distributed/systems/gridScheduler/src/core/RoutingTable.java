@@ -0,0 +1,137 @@
+package core;
+
+/**
+ * Routing table of a socket, resolving a destination endpoint id to the route that
+ * delivers messages to it. Routes are kept in an array indexed by endpoint id, so a
+ * lookup costs a single array access regardless of the number of registered endpoints.
+ * <p>
+ * Lookups are lock free; registrations copy the array when it has to grow.
+ */
+public class RoutingTable {
+
+	/**
+	 * A single entry of the routing table. A route either delivers messages to a handler
+	 * living behind this socket, or forwards them to the socket of another GS node.
+	 */
+	public static final class Route {
+
+		private final int endpointId;
+		private final String name;
+		private final IMessageReceivedHandler handler;
+		private final SynchronizedSocket peerSocket;
+
+		// created lazily when the socket delivers messages asynchronously
+		volatile Mailbox mailbox;
+
+		Route(String name, IMessageReceivedHandler handler, SynchronizedSocket peerSocket) {
+			this.endpointId = Endpoints.idOf(name);
+			this.name = name;
+			this.handler = handler;
+			this.peerSocket = peerSocket;
+		}
+
+		public int getEndpointId() {
+			return endpointId;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public IMessageReceivedHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * @return the socket of the GS node this route forwards to, or null for local routes
+		 */
+		public SynchronizedSocket getPeerSocket() {
+			return peerSocket;
+		}
+
+		public boolean isLocal() {
+			return peerSocket == null;
+		}
+
+		public Mailbox getMailbox() {
+			return mailbox;
+		}
+	}
+
+	private volatile Route[] routes = new Route[16];
+
+	/**
+	 * Registers a route to a handler living behind this socket, replacing any previous
+	 * route to the same endpoint.
+	 * @param name the endpoint name
+	 * @param handler the handler receiving the messages addressed to <CODE>name</CODE>
+	 * @return the new route
+	 */
+	public Route addLocal(String name, IMessageReceivedHandler handler) {
+		assert(handler != null) : "parameter 'handler' cannot be null";
+		return put(new Route(name, handler, null));
+	}
+
+	/**
+	 * Registers a route forwarding the messages addressed to <CODE>name</CODE> to the socket
+	 * of another GS node.
+	 * @param name the endpoint name
+	 * @param peerSocket the socket the endpoint is registered to
+	 * @return the new route
+	 */
+	public Route addPeer(String name, SynchronizedSocket peerSocket) {
+		assert(peerSocket != null) : "parameter 'peerSocket' cannot be null";
+		return put(new Route(name, null, peerSocket));
+	}
+
+	private synchronized Route put(Route route) {
+		Route[] current = routes;
+		if (route.endpointId >= current.length) {
+			Route[] grown = new Route[Math.max(current.length * 2, route.endpointId + 1)];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			current = grown;
+		}
+		current[route.endpointId] = route;
+		routes = current;
+		return route;
+	}
+
+	/**
+	 * Removes the route to an endpoint.
+	 * @param endpointId the endpoint id
+	 * @return the removed route, or null if there was none
+	 */
+	public synchronized Route remove(int endpointId) {
+		Route[] current = routes;
+		if (endpointId < 0 || endpointId >= current.length) {
+			return null;
+		}
+		Route previous = current[endpointId];
+		current[endpointId] = null;
+		return previous;
+	}
+
+	/**
+	 * @param endpointId the destination endpoint id
+	 * @return the route to that endpoint, or null if it is not reachable from this socket
+	 */
+	public Route resolve(int endpointId) {
+		Route[] current = routes;
+		return endpointId >= 0 && endpointId < current.length ? current[endpointId] : null;
+	}
+
+	/**
+	 * @param name the destination endpoint name
+	 * @return the route to that endpoint, or null if it is not reachable from this socket
+	 */
+	public Route resolve(String name) {
+		return resolve(Endpoints.lookup(name));
+	}
+
+	/**
+	 * @return a snapshot of the routes array; unused slots are null
+	 */
+	public Route[] getRoutes() {
+		return routes;
+	}
+}
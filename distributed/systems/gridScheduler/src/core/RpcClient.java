@@ -0,0 +1,204 @@
+package core;
+
+import gridscheduler.model.ControlMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response calls on top of a SynchronizedSocket.
+ * <p>
+ * Every call stamps its request with a fresh, positive correlation id and returns a
+ * CompletableFuture that completes with the first reply to it (a message carrying the negated
+ * id, see <CODE>ControlMessage.setReplyTo</CODE>), or exceptionally with a TimeoutException
+ * once the deadline of the call has passed. Replies arriving after that are stale: they do not
+ * complete any call and are handed to the receiver's handler like any uncorrelated message.
+ * <p>
+ * The reply a future completes with is retained on behalf of the caller, who should
+ * <CODE>release</CODE> it once done (see ControlMessagePool).
+ */
+public class RpcClient {
+
+	// correlation ids are unique within the JVM, so they can never be mistaken across sockets
+	private static final AtomicLong nextCorrelationId = new AtomicLong(ControlMessage.NO_CORRELATION_ID);
+
+	// fires the deadlines of all the pending calls of the JVM
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "rpc-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * A call waiting for its reply.
+	 */
+	private static final class PendingCall {
+		final CompletableFuture<ControlMessage> future = new CompletableFuture<ControlMessage>();
+		volatile ScheduledFuture<?> timeout;
+	}
+
+	private final SynchronizedSocket socket;
+	private final ConcurrentHashMap<Long, PendingCall> pendingCalls = new ConcurrentHashMap<Long, PendingCall>();
+
+	// statistics
+	private final AtomicLong completedCalls = new AtomicLong();
+	private final AtomicLong timedOutCalls = new AtomicLong();
+	private final AtomicLong staleReplies = new AtomicLong();
+
+	RpcClient(SynchronizedSocket socket) {
+		this.socket = socket;
+	}
+
+	/**
+	 * Sends <CODE>request</CODE> and waits asynchronously for the reply to it.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>request</CODE> must have a source and a destination
+	 * <DD>parameter <CODE>timeoutMillis</CODE> must be positive
+	 * </DL>
+	 * @param request the request; the socket takes it over like with <CODE>sendMessage</CODE>
+	 * @param timeoutMillis the deadline of the call, in milliseconds
+	 * @return the future reply
+	 */
+	public CompletableFuture<ControlMessage> call(ControlMessage request, long timeoutMillis) {
+		assert(request.getSource() != null && request.getDestination() != null) : "the request must have a source and a destination";
+		assert(timeoutMillis > 0) : "parameter 'timeoutMillis' must be positive";
+
+		long correlationId = nextCorrelationId.incrementAndGet();
+		PendingCall call = new PendingCall();
+		pendingCalls.put(correlationId, call);
+		call.timeout = timer.schedule(() -> expire(correlationId), timeoutMillis, TimeUnit.MILLISECONDS);
+
+		request.setCorrelationId(correlationId);
+		socket.sendMessage(request);
+		return call.future;
+	}
+
+	/**
+	 * Sends all the <CODE>requests</CODE> at once, without waiting for any reply in between.
+	 * @param requests the requests, taken over by the socket
+	 * @param timeoutMillis the deadline of every call, in milliseconds
+	 * @return the future reply of every request, in the order of the requests
+	 */
+	public List<CompletableFuture<ControlMessage>> callAll(List<ControlMessage> requests, long timeoutMillis) {
+		List<CompletableFuture<ControlMessage>> replies = new ArrayList<CompletableFuture<ControlMessage>>(requests.size());
+		for (ControlMessage request : requests) {
+			replies.add(call(request, timeoutMillis));
+		}
+		return replies;
+	}
+
+	/**
+	 * Gathers the results of <CODE>futures</CODE> until <CODE>quorum</CODE> of them completed
+	 * normally. Results of futures completing after the quorum was reached are not included.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>quorum</CODE> must be between 0 and the number of futures
+	 * </DL>
+	 * @param futures the futures, e.g. the replies of <CODE>callAll</CODE>
+	 * @param quorum the number of results to wait for
+	 * @return a future completing with the first <CODE>quorum</CODE> results, or exceptionally
+	 * as soon as too many futures failed for the quorum to be reached
+	 */
+	public static <T> CompletableFuture<List<T>> quorum(List<CompletableFuture<T>> futures, int quorum) {
+		assert(quorum >= 0 && quorum <= futures.size()) : "parameter 'quorum' must be between 0 and the number of futures";
+
+		CompletableFuture<List<T>> gathered = new CompletableFuture<List<T>>();
+		List<T> results = new ArrayList<T>(quorum);
+		AtomicInteger failures = new AtomicInteger();
+		int maxFailures = futures.size() - quorum;
+
+		if (quorum == 0) {
+			gathered.complete(results);
+			return gathered;
+		}
+
+		for (CompletableFuture<T> future : futures) {
+			future.whenComplete((result, failure) -> {
+				if (failure != null) {
+					if (failures.incrementAndGet() > maxFailures) {
+						gathered.completeExceptionally(failure);
+					}
+					return;
+				}
+				synchronized (results) {
+					if (results.size() < quorum) {
+						results.add(result);
+						if (results.size() == quorum) {
+							gathered.complete(new ArrayList<T>(results));
+						}
+					}
+				}
+			});
+		}
+		return gathered;
+	}
+
+	/**
+	 * Completes the call <CODE>message</CODE> is the reply of, if it is still pending.
+	 * @param message a message being delivered by the socket
+	 * @return true if the message was consumed as the reply of a call
+	 */
+	boolean complete(ControlMessage message) {
+		// only replies carry a negative correlation id
+		long correlationId = -message.getCorrelationId();
+		if (correlationId <= ControlMessage.NO_CORRELATION_ID) {
+			return false;
+		}
+		PendingCall call = pendingCalls.remove(correlationId);
+		if (call == null) {
+			// the call timed out already
+			staleReplies.incrementAndGet();
+			return false;
+		}
+
+		call.timeout.cancel(false);
+		completedCalls.incrementAndGet();
+		call.future.complete(message.retain());
+		return true;
+	}
+
+	private void expire(long correlationId) {
+		PendingCall call = pendingCalls.remove(correlationId);
+		if (call != null) {
+			timedOutCalls.incrementAndGet();
+			call.future.completeExceptionally(new TimeoutException("no reply to call " + correlationId));
+		}
+	}
+
+	/**
+	 * @return the number of calls waiting for their reply
+	 */
+	public int getPendingCalls() {
+		return pendingCalls.size();
+	}
+
+	public long getCompletedCalls() {
+		return completedCalls.get();
+	}
+
+	public long getTimedOutCalls() {
+		return timedOutCalls.get();
+	}
+
+	/**
+	 * @return the number of replies that arrived after their call had timed out
+	 */
+	public long getStaleReplies() {
+		return staleReplies.get();
+	}
+}
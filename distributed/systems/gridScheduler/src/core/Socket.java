@@ -10,7 +10,7 @@ import java.util.ArrayList;
  */
 public final class Socket {
 
-    private static Supervisor supervisor = null;
+    private static volatile Supervisor supervisor = null;
     private static ArrayList<ResourceManager> resourceManagers = new ArrayList<>();
 
     // TODO possibly redundant
@@ -67,6 +67,16 @@ public final class Socket {
         supervisor = null;
     }
 
+    /**
+     * Delivers the heartbeat of the grid scheduler node @param address to the supervisor.
+     */
+    public static void heartbeat(String address){
+        Supervisor spv = supervisor;
+        if (spv != null){
+            spv.onHeartbeat(address);
+        }
+    }
+
     // TODO possibly redundant
     /*
     public static void register(String addr) {
@@ -0,0 +1,65 @@
+package core;
+
+/**
+ * Set of the endpoints subscribed to a topic, stored as a bitset over endpoint ids.
+ * <p>
+ * The set is copy-on-write: publishers iterate over the set bits of an immutable snapshot
+ * of the words, while subscriptions, which are rare, replace it.
+ */
+public class SubscriberSet {
+
+	private static final long[] EMPTY = new long[0];
+
+	private volatile long[] words = EMPTY;
+
+	/**
+	 * Adds the endpoint <CODE>endpointId</CODE> to the set.
+	 * @param endpointId an endpoint id, see Endpoints
+	 */
+	public synchronized void add(int endpointId) {
+		assert(endpointId >= 0) : "parameter 'endpointId' must be a valid endpoint id";
+
+		int word = endpointId >>> 6;
+		long[] updated = new long[Math.max(words.length, word + 1)];
+		System.arraycopy(words, 0, updated, 0, words.length);
+		updated[word] |= 1L << (endpointId & 63);
+		words = updated;
+	}
+
+	/**
+	 * Removes the endpoint <CODE>endpointId</CODE> from the set.
+	 * @param endpointId an endpoint id, see Endpoints
+	 */
+	public synchronized void remove(int endpointId) {
+		int word = endpointId >>> 6;
+		if (endpointId < 0 || word >= words.length) {
+			return;
+		}
+		long[] updated = words.clone();
+		updated[word] &= ~(1L << (endpointId & 63));
+		words = updated;
+	}
+
+	public boolean contains(int endpointId) {
+		long[] current = words;
+		int word = endpointId >>> 6;
+		return endpointId >= 0 && word < current.length && (current[word] & (1L << (endpointId & 63))) != 0;
+	}
+
+	/**
+	 * Returns the current members as a bitset: endpoint <i>i</i> is a member if bit <i>i % 64</i>
+	 * of word <i>i / 64</i> is set. The array must not be modified.
+	 * @return a snapshot of the set
+	 */
+	public long[] getWords() {
+		return words;
+	}
+
+	public int size() {
+		int size = 0;
+		for (long word : words) {
+			size += Long.bitCount(word);
+		}
+		return size;
+	}
+}
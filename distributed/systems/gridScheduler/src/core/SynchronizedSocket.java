@@ -1,49 +1,168 @@
 package core;
 
-import example.LocalSocket;
 import gridscheduler.model.ControlMessage;
 import gridscheduler.model.ControlMessageType;
 import gridscheduler.model.GridSchedulerNode;
+import gridscheduler.model.LoadVector;
 import gridscheduler.model.ResourceManager;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SynchronizedSocket {
 
-	private LocalSocket localSocket = null;
-	private ArrayList<ResourceManager> resourceManagers = new ArrayList<ResourceManager>(); //good
+	// carries the messages to and from endpoints living in other processes
+	private ITransport localSocket = null;
 	private GridSchedulerNode gridSchedulerNode = null;
 	//TODO find a use for this name
 	private String gridSchdulerNodeAddress = "Supervisor";
 
+	// resolves destination endpoint ids to the RMs, GS node and peer GS nodes reachable from this socket
+	private final RoutingTable routingTable = new RoutingTable();
+	private volatile RoutingTable.Route gridSchedulerRoute = null;
+	private final CopyOnWriteArrayList<RoutingTable.Route> resourceManagerRoutes = new CopyOnWriteArrayList<RoutingTable.Route>();
+
+	// when enabled, every endpoint receives its messages through its own mailbox
+	// and consumer thread instead of on the sender's thread
+	private volatile boolean asynchronousDelivery = false;
+	private int mailboxCapacity = Mailbox.DEFAULT_CAPACITY;
+	// when enabled, the mailboxes have a lane per PriorityClass; null weights drain them by strict priority
+	private boolean priorityLanes = false;
+	private int[] laneWeights = null;
+	private final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+
+	// number of messages sent through this socket and handed to one of its endpoints
+	private final AtomicLong sentMessages = new AtomicLong();
+	// sequence number of the last message stamped by this socket
+	private final AtomicLong sequenceNumber = new AtomicLong();
+	private final AtomicLong deliveredMessages = new AtomicLong();
+
+	// routes every outgoing message according to its type
+	private final MessageDispatcher sendDispatcher = new MessageDispatcher("socket");
+
+	// endpoints subscribed to every topic: local endpoints and peer GS nodes
+	private final SubscriberSet[] subscribers = new SubscriberSet[Topic.values().length];
+
+	// request/response calls made by the endpoints of this socket
+	private final RpcClient rpcClient = new RpcClient(this);
+
 	private final static Logger logger = Logger.getLogger(SynchronizedSocket.class.getName());
 
-	public SynchronizedSocket(LocalSocket lSocket){
-		this.localSocket = lSocket;
+	public SynchronizedSocket(ITransport lSocket){
+		setTransport(lSocket);
+
+		for (int i = 0; i < subscribers.length; i++) {
+			subscribers[i] = new SubscriberSet();
+		}
+
+		// RM to GS / GS to RM
+		sendDispatcher.register(ControlMessageType.AddJob, this::route);
+		sendDispatcher.register(ControlMessageType.ReplyJob, this::route);
+		sendDispatcher.register(ControlMessageType.RequestJob, this::route);
+		sendDispatcher.register(ControlMessageType.RequestLoad, this::route);
+		sendDispatcher.register(ControlMessageType.ResourceManagerJoin, this::route);
+		sendDispatcher.register(ControlMessageType.GrantCredits, this::route);
+		sendDispatcher.register(ControlMessageType.CancelJob, this::route);
+		sendDispatcher.register(ControlMessageType.ReplicateLog, this::route);
+		sendDispatcher.register(ControlMessageType.ReplyReplicateLog, this::route);
+		sendDispatcher.register(ControlMessageType.ReplyLoad, this::deliverToGridSchedulerNode);
+		sendDispatcher.register(ControlMessageType.ReplyLoadVector, this::deliverToGridSchedulerNode);
+		sendDispatcher.register(ControlMessageType.Heartbeat, this::deliverToGridSchedulerNode);
+		sendDispatcher.register(ControlMessageType.NotifyLoad, this::publishLoadSummary);
+		sendDispatcher.register(ControlMessageType.LoadQuery, this::multicastToResourceManagers);
+		sendDispatcher.register(ControlMessageType.NotifyJobCompletion, cMessage -> publish(Topic.JobCompletion, cMessage));
+	}
+
+	/**
+	 * Replaces the transport used to reach endpoints living in other processes. The previous
+	 * transport is closed.
+	 * @param transport the new transport, e.g. a LocalSocket or a SharedMemorySocket
+	 */
+	public synchronized void setTransport(ITransport transport) {
+		if (localSocket != null && localSocket != transport) {
+			localSocket.close();
+		}
+		this.localSocket = transport;
+		if (localSocket != null) {
+			// messages coming from other processes are delivered to the endpoints of this socket
+			localSocket.setMessageReceiver(this::receiveRemote);
+		}
 	}
 
 	public void addMessageReceivedHandler(ResourceManager resourceManager) {
 
-		resourceManagers.add(resourceManager);
+		RoutingTable.Route route = routingTable.addLocal(resourceManager.getName(), resourceManager);
+		resourceManagerRoutes.add(route);
+		// the GS node only tracks the copies it replicated, copies submitted to several clusters
+		// directly are removed by the completion itself
+		subscribe(Topic.JobCompletion, resourceManager.getName());
+
+		if(gridSchedulerRoute != null){
+			ControlMessage joinRequestMessage = new ControlMessage(ControlMessageType.ResourceManagerJoin);
+			joinRequestMessage.setSource(resourceManager.getName());
+			joinRequestMessage.setDestination(gridSchdulerNodeAddress);
+			// the grid scheduler node weighs the load of the RM by its number of nodes
+			joinRequestMessage.setLoad(resourceManager.getNodeCount());
 
-		if(gridSchedulerNode != null){
+			publishLocally(Topic.Membership, joinRequestMessage);
+		}else if(localSocket != null && localSocket.isRoutable(gridSchdulerNodeAddress)){
+			// the grid scheduler node lives in another JVM
 			ControlMessage joinRequestMessage = new ControlMessage(ControlMessageType.ResourceManagerJoin);
 			joinRequestMessage.setSource(resourceManager.getName());
 			joinRequestMessage.setDestination(gridSchdulerNodeAddress);
+			// the grid scheduler node weighs the load of the RM by its number of nodes
+			joinRequestMessage.setLoad(resourceManager.getNodeCount());
 
-			gridSchedulerNode.onMessageReceived(joinRequestMessage);
+			localSocket.send(joinRequestMessage);
 		}
 
 		//logger.info("RM: " + resourceManager.getName() + " registered to " + gridSchdulerNodeAddress);//gridSchedulerNode.getAddress());
 	}
 
 	public void addMessageReceivedHandler(GridSchedulerNode gsNode) {
+		GridSchedulerNode previous = gridSchedulerNode;
+		if (previous != null && previous != gsNode) {
+			// the GS node taking over replaces the previous one as a receiver
+			for (Topic topic : Topic.values()) {
+				unsubscribe(topic, previous.getAddress());
+			}
+			routingTable.remove(Endpoints.lookup(previous.getAddress()));
+		}
 		gridSchedulerNode = gsNode;
+		gridSchedulerRoute = routingTable.addLocal(gsNode.getAddress(), gsNode);
+		for (Topic topic : Topic.values()) {
+			subscribe(topic, gsNode.getAddress());
+		}
 		//logger.info("GS node: " + gridSchedulerNode.getAddress() + " registered to Supervisor");
 
 	}
 
+	/**
+	 * Makes <CODE>handler</CODE> reachable under <CODE>name</CODE> from this socket, besides the
+	 * GS node registered to it: its replica, or an endpoint of the GS node with a mailbox of its
+	 * own (see ReplicationLog). The endpoint receives only the messages addressed to it.
+	 * @param name the endpoint name
+	 * @param handler the handler of the messages addressed to <CODE>name</CODE>
+	 */
+	public void addLocalEndpoint(String name, IMessageReceivedHandler handler) {
+		routingTable.addLocal(name, handler);
+	}
+
+	/**
+	 * Makes the GS node at <CODE>address</CODE>, registered to <CODE>peerSocket</CODE>, reachable
+	 * from this socket. Messages addressed to it are handed to whichever GS node is currently
+	 * active behind the peer socket.
+	 * @param address the address of the peer GS node
+	 * @param peerSocket the socket of the peer GS node
+	 */
+	public void addPeerGridSchedulerNode(String address, SynchronizedSocket peerSocket) {
+		assert(peerSocket != this) : "a socket cannot be its own peer";
+		routingTable.addPeer(address, peerSocket);
+	}
+
 	public String getGridSchdulerNodeAddress(){
 		return this.gridSchdulerNodeAddress;
 	}
@@ -51,118 +170,454 @@ public class SynchronizedSocket {
 	public void registerGridSchedulerAddress(String address) {
 		this.gridSchdulerNodeAddress = address;
 	}
+
+	public RoutingTable getRoutingTable() {
+		return routingTable;
+	}
+
+	/**
+	 * @return the transport used to reach endpoints in other processes
+	 */
+	public ITransport getTransport() {
+		return localSocket;
+	}
+
+	/**
+	 * Switches between synchronous delivery, where the receiver's handler runs on the
+	 * sender's thread, and asynchronous delivery through per-endpoint mailboxes.
+	 * @param enabled true to deliver messages asynchronously
+	 */
+	public void setAsynchronousDelivery(boolean enabled) {
+		this.asynchronousDelivery = enabled;
+	}
+
+	public boolean isAsynchronousDelivery() {
+		return asynchronousDelivery;
+	}
+
+	/**
+	 * Sets the capacity of the mailboxes created from now on.
+	 * @param capacity the maximum number of pending messages per endpoint
+	 */
+	public void setMailboxCapacity(int capacity) {
+		assert(capacity > 0) : "parameter 'capacity' must be positive";
+		this.mailboxCapacity = capacity;
+	}
+
+	/**
+	 * Gives the mailboxes created from now on a lane per PriorityClass, so that control
+	 * messages do not wait behind the jobs queued for the same endpoint.
+	 * @param enabled true to separate the priority classes
+	 * @param controlLaneWeight the number of control messages delivered for every bulk message
+	 * while both lanes are backed up, or 0 to always deliver the control messages first
+	 */
+	public synchronized void setPriorityLanes(boolean enabled, int controlLaneWeight) {
+		assert(controlLaneWeight >= 0) : "parameter 'controlLaneWeight' cannot be negative";
+		this.priorityLanes = enabled;
+		this.laneWeights = controlLaneWeight > 0 ? new int[] { controlLaneWeight, 1 } : null;
+	}
+
+	public boolean hasPriorityLanes() {
+		return priorityLanes;
+	}
+
+	// the mailbox lane of a message
+	private int laneOf(ControlMessage cMessage) {
+		return priorityLanes ? PriorityClass.of(cMessage.getType()).ordinal() : 0;
+	}
+
+	/**
+	 * @param endpoint the name of a GS node or RM registered to this socket
+	 * @return the mailbox of that endpoint, or null if it has not received any asynchronous message yet
+	 */
+	public Mailbox getMailbox(String endpoint) {
+		RoutingTable.Route route = routingTable.resolve(endpoint);
+		return route != null ? route.getMailbox() : null;
+	}
+
+	public synchronized Iterable<Mailbox> getMailboxes() {
+		return new ArrayList<Mailbox>(mailboxes);
+	}
+
+	private void deliver(RoutingTable.Route route, ControlMessage cMessage) {
+		deliveredMessages.incrementAndGet();
+		if (!route.isLocal()) {
+			route.getPeerSocket().deliverToGridSchedulerNode(cMessage);
+			return;
+		}
+		if (rpcClient.complete(cMessage)) {
+			// the reply to a call made through this socket goes to the caller's future
+			return;
+		}
+		if (!asynchronousDelivery) {
+			// the sender keeps its reference to a pooled message until the handler returns
+			route.getHandler().onMessageReceived(cMessage);
+			return;
+		}
+		Mailbox mailbox = route.mailbox;
+		if (mailbox == null) {
+			mailbox = createMailbox(route);
+		}
+		// the mailbox owns a reference until the handler is done with the message
+		if (!mailbox.post(cMessage.retain(), Math.min(laneOf(cMessage), mailbox.getLaneCount() - 1))) {
+			cMessage.release();
+		}
+	}
+
+	private synchronized Mailbox createMailbox(RoutingTable.Route route) {
+		Mailbox mailbox = route.mailbox;
+		if (mailbox == null) {
+			IMessageReceivedHandler handler = route.getHandler();
+			mailbox = new Mailbox(route.getName(), message -> {
+				try {
+					handler.onMessageReceived(message);
+				} finally {
+					((ControlMessage) message).release();
+				}
+			}, mailboxCapacity, priorityLanes ? PriorityClass.values().length : 1, priorityLanes ? laneWeights : null);
+			mailboxes.add(mailbox);
+			route.mailbox = mailbox;
+		}
+		return mailbox;
+	}
+
+	/**
+	 * Stops the consumer threads of all the mailboxes of this socket and its transport.
+	 */
+	public synchronized void close() {
+		if (localSocket != null) {
+			localSocket.close();
+		}
+		for (Mailbox mailbox : mailboxes) {
+			mailbox.close();
+		}
+		mailboxes.clear();
+		for (RoutingTable.Route route : routingTable.getRoutes()) {
+			if (route != null) {
+				route.mailbox = null;
+			}
+		}
+	}
 /*
 	public void register(String url){
 		this.socketName = url;
 	}
 */
-	private void send(ControlMessage cMessage,String address) {
-
-		if (cMessage.getDestination().equals(gridSchedulerNode.getAddress())) {
-			gridSchedulerNode.onMessageReceived(cMessage);
+	// deliver the message to the endpoint it is addressed to, if it is reachable from this socket
+	private void route(ControlMessage cMessage) {
+		RoutingTable.Route route = routingTable.resolve(cMessage.getDestinationId());
+		if (route != null) {
+			deliver(route, cMessage);
 		}else {
+			forwardRemote(cMessage);
+		}
+	}
+
+	// send the message to an endpoint living in another JVM, if the transport knows it
+	private void forwardRemote(ControlMessage cMessage) {
+		if (localSocket != null && localSocket.isRoutable(cMessage.getDestination())) {
+			localSocket.send(cMessage);
+		}
+	}
 
-			for (ResourceManager resourceManager : resourceManagers) {
-				if (cMessage.getDestination().equals(resourceManager.getName())) {
-					//logger.info("GS: " + cMessage.getSource() + " is sending a " + cMessage.getType() + " message to RM: " + resourceManager.getName());
-					resourceManager.onMessageReceived(cMessage);
-					break;
+	/**
+	 * Delivers a message received from another JVM to the endpoints of this socket. Messages
+	 * are never forwarded back to the transport, so broadcasts cannot bounce between JVMs.
+	 * @param cMessage the received message
+	 */
+	private void receiveRemote(ControlMessage cMessage) {
+		// the clock of the sending JVM is not comparable with ours, time the message from its arrival
+		cMessage.stamp(sequenceNumber.incrementAndGet(), System.nanoTime());
+		try {
+			if (cMessage.getType() == ControlMessageType.NotifyJobCompletion) {
+				// the sending JVM relays the event to the peers of its own sockets
+				publishLocally(Topic.JobCompletion, cMessage);
+				return;
+			}
+			if (cMessage.getType() == ControlMessageType.LoadQuery) {
+				multicastLocally(cMessage);
+				return;
+			}
+			if (cMessage.getType() == ControlMessageType.NotifyLoad) {
+				publishLocally(Topic.LoadSummary, cMessage);
+				return;
+			}
+			if (cMessage.getType() == ControlMessageType.ReplyLoad || cMessage.getType() == ControlMessageType.Heartbeat) {
+				RoutingTable.Route route = gridSchedulerRoute;
+				if (route != null) {
+					deliver(route, cMessage);
 				}
+				return;
+			}
+			RoutingTable.Route route = routingTable.resolve(cMessage.getDestinationId());
+			if (route != null && route.isLocal()) {
+				deliver(route, cMessage);
 			}
+		} finally {
+			// the transport decoded the message into a pooled instance owned by this socket
+			cMessage.release();
 		}
 	}
-	// TODO rewrite this for the current architecture with multiple gs nodes
-	// broadcast the message to all RMs except the one that issued the request
-	private void broadcastToAll(ControlMessage cMessage){
 
-		gridSchedulerNode.onMessageReceived(cMessage);
+	/**
+	 * Hands a message to the GS node currently active behind this socket, regardless of
+	 * the address it was sent to.
+	 * @param cMessage the message
+	 */
+	public void deliverToGridSchedulerNode(ControlMessage cMessage) {
+		RoutingTable.Route route = gridSchedulerRoute;
+		if (route != null) {
+			deliver(route, cMessage);
+		}else {
+			forwardRemote(cMessage);
+		}
+	}
+
+	/**
+	 * Subscribes the endpoint <CODE>endpoint</CODE> to <CODE>topic</CODE>. The endpoint must be
+	 * registered to this socket, or be a peer GS node; a peer GS node receives the events on
+	 * behalf of all the subscribers of its own socket.
+	 * @param topic the topic
+	 * @param endpoint the name of the subscriber
+	 */
+	public void subscribe(Topic topic, String endpoint){
+		subscribers[topic.ordinal()].add(Endpoints.idOf(endpoint));
+	}
+
+	public void unsubscribe(Topic topic, String endpoint){
+		subscribers[topic.ordinal()].remove(Endpoints.lookup(endpoint));
+	}
+
+	public SubscriberSet getSubscribers(Topic topic){
+		return subscribers[topic.ordinal()];
+	}
+
+	/**
+	 * Publishes a grid-wide event: the subscribers of this socket and of its peer sockets
+	 * receive it, except its source, and so do the JVMs the transport talks to.
+	 * @param topic the topic of the event
+	 * @param cMessage the event
+	 */
+	public void publish(Topic topic, ControlMessage cMessage){
+		fanOut(topic, cMessage, true);
+		if (localSocket != null) {
+			localSocket.broadcast(cMessage);
+		}
+	}
 
-		for (ResourceManager resourceManager : resourceManagers) {
-			if (!cMessage.getSource().equals(resourceManager.getName())) {
-				//logger.info("GS: " + cMessage.getSource() + " is sending a job " + cMessage.getJob().getId() + " removal request to RM: " + resourceManager.getName());
-				resourceManager.onMessageReceived(cMessage);
+	/**
+	 * Publishes a batch of grid-wide events on behalf of the endpoint <CODE>publisher</CODE>,
+	 * which does not receive them. Every subscriber receives the whole batch at once, through
+	 * a single post to its mailbox when delivery is asynchronous. The socket does not take
+	 * over the publisher's references to pooled messages.
+	 * @param topic the topic of the events
+	 * @param batch the events
+	 * @param publisher the name of the publishing endpoint
+	 */
+	public void publish(Topic topic, List<ControlMessage> batch, String publisher){
+		if (batch.isEmpty()) {
+			return;
+		}
+		sentMessages.addAndGet(batch.size());
+		long now = System.nanoTime();
+		for (ControlMessage cMessage : batch) {
+			cMessage.stamp(sequenceNumber.incrementAndGet(), now);
+		}
+		fanOut(topic, batch, Endpoints.lookup(publisher), true);
+		if (localSocket != null) {
+			for (ControlMessage cMessage : batch) {
+				localSocket.broadcast(cMessage);
 			}
 		}
+	}
 
+	// deliver the event to the subscribers of this socket only
+	private int publishLocally(Topic topic, ControlMessage cMessage){
+		return fanOut(topic, cMessage, false);
 	}
 
-	//TODO check for defects
-	public void sendMessage(ControlMessage cMessage, String address){
-		// RM to GS / GS to RM
-		if(cMessage.getType() == ControlMessageType.AddJob){
-
-			if(cMessage.getDestination().equals(gridSchedulerNode.getAddress())){
-				gridSchedulerNode.onMessageReceived(cMessage);
-			}else{
-				for(ResourceManager resourceManager:resourceManagers){
-					if(resourceManager.getName().equals(cMessage.getDestination())){
-						resourceManager.onMessageReceived(cMessage);
-						break;
-					}
+	// a load summary goes to the local GS node, or to the GS node of another JVM if there is none
+	private void publishLoadSummary(ControlMessage cMessage){
+		if (publishLocally(Topic.LoadSummary, cMessage) == 0) {
+			forwardRemote(cMessage);
+		}
+	}
+
+	// hand the event to every subscriber except its source; peer GS nodes relay it to their own subscribers
+	private int fanOut(Topic topic, ControlMessage cMessage, boolean toPeers){
+		int receivers = 0;
+		long[] words = subscribers[topic.ordinal()].getWords();
+		for (int word = 0; word < words.length; word++) {
+			long bits = words[word];
+			while (bits != 0) {
+				int endpointId = (word << 6) | Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (endpointId == cMessage.getSourceId()) {
+					continue;
+				}
+				RoutingTable.Route route = routingTable.resolve(endpointId);
+				if (route == null) {
+					continue;
+				}
+				if (route.isLocal()) {
+					deliver(route, cMessage);
+					receivers++;
+				} else if (toPeers) {
+					receivers += route.getPeerSocket().fanOut(topic, cMessage, false);
 				}
 			}
 		}
+		return receivers;
+	}
 
-		if(cMessage.getType() == ControlMessageType.ReplyJob){
-			if(cMessage.getDestination().equals(gridSchedulerNode.getAddress())){
-				gridSchedulerNode.onMessageReceived(cMessage);
-			}else{
-				for(ResourceManager resourceManager:resourceManagers){
-					if(resourceManager.getName().equals(cMessage.getDestination())){
-						resourceManager.onMessageReceived(cMessage);
-						break;
-					}
+	private void fanOut(Topic topic, List<ControlMessage> batch, int publisherId, boolean toPeers){
+		long[] words = subscribers[topic.ordinal()].getWords();
+		for (int word = 0; word < words.length; word++) {
+			long bits = words[word];
+			while (bits != 0) {
+				int endpointId = (word << 6) | Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (endpointId == publisherId) {
+					continue;
+				}
+				RoutingTable.Route route = routingTable.resolve(endpointId);
+				if (route == null) {
+					continue;
+				}
+				if (route.isLocal()) {
+					deliverBatch(route, batch);
+				} else if (toPeers) {
+					route.getPeerSocket().fanOut(topic, batch, publisherId, false);
 				}
 			}
 		}
+	}
 
-		if(cMessage.getType() == ControlMessageType.RequestJob){
-			for(ResourceManager resourceManager:resourceManagers){
-				if(resourceManager.getName().equals(cMessage.getDestination())){
-					resourceManager.onMessageReceived(cMessage);
-					break;
-				}
+	// deliver a batch of messages to a local endpoint with a single mailbox post
+	private void deliverBatch(RoutingTable.Route route, List<ControlMessage> batch) {
+		deliveredMessages.addAndGet(batch.size());
+		if (!asynchronousDelivery) {
+			for (ControlMessage cMessage : batch) {
+				route.getHandler().onMessageReceived(cMessage);
 			}
+			return;
+		}
+		Mailbox mailbox = route.mailbox;
+		if (mailbox == null) {
+			mailbox = createMailbox(route);
+		}
+		for (ControlMessage cMessage : batch) {
+			cMessage.retain();
 		}
+		// the messages of a batch share their type
+		int posted = mailbox.postAll(batch, Math.min(laneOf(batch.get(0)), mailbox.getLaneCount() - 1));
+		for (int i = posted; i < batch.size(); i++) {
+			batch.get(i).release();
+		}
+	}
 
-		if(cMessage.getType() == ControlMessageType.RequestLoad){
+	// deliver the message to every RM of this socket and of the JVMs this socket talks to
+	private void multicastToResourceManagers(ControlMessage cMessage){
+		multicastLocally(cMessage);
+		if (localSocket != null) {
+			localSocket.broadcast(cMessage);
+		}
+	}
 
-			//System.out.println("GS: " + cMessage.getSource() + " to RM " + cMessage.getDestination()+ "- RequestLoad: ");
+	private void multicastLocally(ControlMessage cMessage){
+		for (RoutingTable.Route route : resourceManagerRoutes) {
+			deliver(route, cMessage);
+		}
+	}
 
-			for(ResourceManager resourceManager:resourceManagers){
-				if(resourceManager.getName().equals(cMessage.getDestination())){
-					resourceManager.onMessageReceived(cMessage);
-					break;
-				}
-			}
+	/**
+	 * Creates a load vector with one slot for each RM registered to this socket, to be sent
+	 * with a LoadQuery. RMs reached through the transport answer with a plain ReplyLoad.
+	 * @return the load vector
+	 */
+	public LoadVector newLoadVector(){
+		Object[] routes = resourceManagerRoutes.toArray();
+		int[] endpointIds = new int[routes.length];
+		for (int i = 0; i < routes.length; i++) {
+			endpointIds[i] = ((RoutingTable.Route) routes[i]).getEndpointId();
 		}
+		return new LoadVector(endpointIds);
+	}
 
-		if(cMessage.getType() == ControlMessageType.ReplyLoad){
+	/**
+	 * @return the number of messages sent through this socket so far
+	 */
+	public long getSentMessages(){
+		return sentMessages.get();
+	}
 
-			//System.out.println("RM " + cMessage.getSource() + "to GS " + cMessage.getDestination() + "- ReplyLoad");
-			if(gridSchedulerNode != null){
-				gridSchedulerNode.onMessageReceived(cMessage);
-			}
-		}
+	/**
+	 * @return the number of messages handed to the endpoints of this socket so far; a multicast
+	 * message counts once per receiver
+	 */
+	public long getDeliveredMessages(){
+		return deliveredMessages.get();
+	}
 
-		if(cMessage.getType() == ControlMessageType.ResourceManagerJoin){
+	/**
+	 * @return the facility the endpoints of this socket make request/response calls with
+	 */
+	public RpcClient getRpcClient(){
+		return rpcClient;
+	}
 
-			//System.out.println("RM " + cMessage.getSource() + "connected to GS " + cMessage.getDestination() + "- ResourceManagerJoin");
-			if(cMessage.getDestination().equals(gridSchedulerNode.getAddress())){
-				gridSchedulerNode.onMessageReceived(cMessage);
+	/**
+	 * @return the volume and latencies of the messages handled by every endpoint of this socket,
+	 * per type, one line per endpoint and type
+	 */
+	public String getTelemetryReport(){
+		StringBuilder builder = new StringBuilder(sendDispatcher.report());
+		for (RoutingTable.Route route : routingTable.getRoutes()) {
+			if (route != null && route.isLocal()) {
+				builder.append(route.getHandler().getDispatcher().report());
+				Mailbox mailbox = route.mailbox;
+				if (mailbox != null && mailbox.getLaneCount() > 1) {
+					for (int lane = 0; lane < mailbox.getLaneCount(); lane++) {
+						builder.append(route.getName()).append(" lane ").append(PriorityClass.values()[lane])
+								.append(" queueing ").append(mailbox.getQueueingDelays(lane))
+								.append(" overflowed ").append(mailbox.getOverflowedMessages(lane)).append('\n');
+					}
+				}
 			}
-			// send(cMessage,address);
 		}
+		return builder.toString();
+	}
 
-		if(cMessage.getType() == ControlMessageType.NotifyJobCompletion){
-			//System.out.println("Notify Job Completion from " + cMessage.getSource() + " to " + cMessage.getDestination());
-			broadcastToAll(cMessage);
-		}
+	/**
+	 * @return the dispatcher routing outgoing messages by type, which also counts them per type
+	 */
+	public MessageDispatcher getSendDispatcher(){
+		return sendDispatcher;
+	}
+
+	//TODO check for defects
+	public void sendMessage(ControlMessage cMessage, String address){
+		sendMessage(cMessage);
+	}
 
+	/**
+	 * Sends a message to the endpoint(s) its type and destination designate. The socket takes
+	 * over the caller's reference to a pooled message (see ControlMessagePool), the caller
+	 * must not use the message after this call.
+	 * @param cMessage the message to send
+	 */
+	public void sendMessage(ControlMessage cMessage){
+		sentMessages.incrementAndGet();
+		cMessage.stamp(sequenceNumber.incrementAndGet(), System.nanoTime());
+		try {
+			sendDispatcher.dispatch(cMessage);
+		} finally {
+			cMessage.release();
+		}
 	}
 
 
 	public int getNoOfConnectedRMs(){
-		return resourceManagers.size();
+		return resourceManagerRoutes.size();
 	}
 }
@@ -0,0 +1,17 @@
+package core;
+
+/**
+ * Topics the endpoints of a SynchronizedSocket can subscribe to.
+ */
+public enum Topic {
+
+	// a job finished somewhere in the grid, see ControlMessageType.NotifyJobCompletion
+	JobCompletion,
+
+	// a resource manager published its load, see ControlMessageType.NotifyLoad
+	LoadSummary,
+
+	// a resource manager joined, see ControlMessageType.ResourceManagerJoin
+	Membership
+
+}
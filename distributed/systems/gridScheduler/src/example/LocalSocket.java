@@ -1,5 +1,489 @@
 package example;
 
-public class LocalSocket {
+import core.ITransport;
+import gridscheduler.model.ControlMessage;
+import gridscheduler.model.ControlMessageCodec;
+import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking TCP transport used by a {@link core.SynchronizedSocket} to reach endpoints
+ * living in other JVMs.
+ * <p>
+ * Every LocalSocket owns a single selector thread (its event loop) which accepts connections,
+ * reads incoming frames and writes outgoing ones. Connections are reused: there is at most one
+ * outgoing connection per remote address, and replies to an endpoint are sent back over the
+ * connection that endpoint was last heard from. Senders encode their messages straight into the
+ * outbound buffer of the connection, so everything queued while the connection is busy goes out
+ * with a single write.
+ * <p>
+ * Frames consist of a 4 byte length followed by the message encoded with the connection's
+ * {@link ControlMessageCodec}. A LocalSocket that is never
+ * bound and has no routes does not start its event loop, so purely in-JVM sockets cost nothing.
+ */
+public class LocalSocket implements ITransport, Runnable {
+
+	// upper bound of a single frame, protects against corrupt length prefixes
+	private static final int MAX_FRAME_SIZE = 1 << 20;
+
+	// upper bound of the data queued on a single connection
+	private static final int MAX_OUTBOUND_SIZE = 64 << 20;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private Selector selector = null;
+	private ServerSocketChannel serverChannel = null;
+
+	// event loop thread
+	private Thread eventLoop = null;
+	private volatile boolean running = false;
+
+	// statically configured addresses of remote endpoints
+	private final ConcurrentHashMap<String, InetSocketAddress> routes = new ConcurrentHashMap<String, InetSocketAddress>();
+	// outgoing connections, one per remote address
+	private final ConcurrentHashMap<InetSocketAddress, Connection> outgoing = new ConcurrentHashMap<InetSocketAddress, Connection>();
+	// the connection every remote endpoint was last heard from
+	private final ConcurrentHashMap<String, Connection> learned = new ConcurrentHashMap<String, Connection>();
+
+	// work handed to the event loop by other threads
+	private final ConcurrentLinkedQueue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<Connection>();
+	private final ConcurrentLinkedQueue<Connection> pendingFlushes = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean serverRegistrationPending = false;
+
+	private volatile Consumer<ControlMessage> receiver = null;
+
+	private final static Logger logger = Logger.getLogger(LocalSocket.class.getName());
+
+	/**
+	 * A TCP connection to another LocalSocket. The outbound buffer and the encoder are guarded
+	 * by the connection's monitor; the read side is only touched by the event loop.
+	 */
+	private final class Connection {
+		final SocketChannel channel;
+		final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+		// frames encoded but not written yet, in write mode
+		ByteBuffer outbound = ByteBuffer.allocate(BUFFER_SIZE);
+		final ControlMessageCodec encoder = new ControlMessageCodec();
+
+		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		final ControlMessageCodec decoder = new ControlMessageCodec();
+
+		SelectionKey key = null;
+		volatile boolean connected;
+		InetSocketAddress remoteAddress = null;
+
+		Connection(SocketChannel channel, boolean connected) {
+			this.channel = channel;
+			this.connected = connected;
+		}
+	}
+
+	/**
+	 * Sets the consumer of the messages received from remote endpoints. It is invoked on
+	 * the event loop thread.
+	 * @param receiver the consumer of incoming messages
+	 */
+	public void setMessageReceiver(Consumer<ControlMessage> receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Starts accepting connections from remote endpoints on <CODE>address</CODE>.
+	 * @param address the local address to listen on
+	 * @throws IOException if the address cannot be bound
+	 */
+	public synchronized void bind(InetSocketAddress address) throws IOException {
+		assert(serverChannel == null) : "this socket is already bound";
+
+		ensureStarted();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(address);
+
+		// the selector is blocked in select(), register through the event loop
+		serverRegistrationPending = true;
+		selector.wakeup();
+		logger.info("LocalSocket listening on " + serverChannel.getLocalAddress());
+	}
+
+	/**
+	 * @return the address this socket listens on, or null if it is not bound
+	 */
+	public InetSocketAddress getBoundAddress() {
+		try {
+			return serverChannel != null ? (InetSocketAddress) serverChannel.getLocalAddress() : null;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Declares that the endpoint <CODE>endpoint</CODE> is reachable at <CODE>address</CODE>.
+	 * @param endpoint the name of a remote GS node or RM
+	 * @param address the address that endpoint's LocalSocket is bound to
+	 */
+	public void addRoute(String endpoint, InetSocketAddress address) {
+		assert(endpoint != null && address != null);
+		routes.put(endpoint, address);
+		try {
+			ensureStarted();
+		} catch (IOException ex) {
+			logger.error("Could not start the event loop", ex);
+		}
+	}
+
+	/**
+	 * @param endpoint an endpoint name
+	 * @return true if messages to <CODE>endpoint</CODE> can be sent through this socket
+	 */
+	public boolean isRoutable(String endpoint) {
+		return endpoint != null && (learned.containsKey(endpoint) || routes.containsKey(endpoint));
+	}
+
+	/**
+	 * Queues a message for its destination and returns without waiting for it to be written.
+	 * @param message the message to send
+	 * @return false if the destination is not reachable through this socket
+	 */
+	public boolean send(ControlMessage message) {
+		Connection connection = connectionTo(message.getDestination());
+		if (connection == null) {
+			return false;
+		}
+		return enqueue(connection, message);
+	}
+
+	/**
+	 * Sends a message once over every open connection, so that it reaches every remote JVM
+	 * this socket is talking to.
+	 * @param message the message to broadcast
+	 */
+	public void broadcast(ControlMessage message) {
+		if (!running) {
+			return;
+		}
+		Set<Connection> connections = new HashSet<Connection>(outgoing.values());
+		connections.addAll(learned.values());
+		for (Connection connection : connections) {
+			enqueue(connection, message);
+		}
+	}
+
+	private boolean enqueue(Connection connection, ControlMessage message) {
+		synchronized (connection) {
+			ByteBuffer out = connection.outbound;
+			while (true) {
+				int start = out.position();
+				try {
+					// reserve the length prefix and fill it in once the size is known
+					out.position(start + 4);
+					connection.encoder.encode(message, out);
+					out.putInt(start, out.position() - start - 4);
+					break;
+				} catch (BufferOverflowException | IllegalArgumentException ex) {
+					out.position(start);
+					if (out.capacity() >= MAX_OUTBOUND_SIZE) {
+						logger.warn("Dropping " + message.getType() + " to " + connection.remoteAddress + ": outbound buffer full");
+						return false;
+					}
+					ByteBuffer grown = ByteBuffer.allocate(out.capacity() * 2);
+					out.flip();
+					grown.put(out);
+					connection.outbound = out = grown;
+				}
+			}
+		}
+		// only the first sender since the last flush wakes the event loop up, the others
+		// piggyback on the same write
+		if (connection.flushScheduled.compareAndSet(false, true)) {
+			pendingFlushes.add(connection);
+			selector.wakeup();
+		}
+		return true;
+	}
+
+	private Connection connectionTo(String endpoint) {
+		if (endpoint == null) {
+			return null;
+		}
+		Connection connection = learned.get(endpoint);
+		if (connection != null && connection.channel.isOpen()) {
+			return connection;
+		}
+		InetSocketAddress address = routes.get(endpoint);
+		if (address == null) {
+			return null;
+		}
+		connection = outgoing.get(address);
+		if (connection != null && connection.channel.isOpen()) {
+			return connection;
+		}
+		return connect(address);
+	}
+
+	private synchronized Connection connect(InetSocketAddress address) {
+		Connection connection = outgoing.get(address);
+		if (connection != null && connection.channel.isOpen()) {
+			return connection;
+		}
+		try {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			boolean connected = channel.connect(address);
+
+			connection = new Connection(channel, connected);
+			connection.remoteAddress = address;
+			outgoing.put(address, connection);
+			pendingRegistrations.add(connection);
+			selector.wakeup();
+			return connection;
+		} catch (IOException ex) {
+			logger.error("Could not connect to " + address, ex);
+			return null;
+		}
+	}
+
+	private synchronized void ensureStarted() throws IOException {
+		if (running) {
+			return;
+		}
+		selector = Selector.open();
+		running = true;
+		eventLoop = new Thread(this, "localsocket-event-loop");
+		eventLoop.setDaemon(true);
+		eventLoop.start();
+	}
+
+	/**
+	 * Event loop. Handles registrations, flush requests and the readiness events of all
+	 * the channels of this socket.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+
+				registerPending();
+				flushPending();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							finishConnect(connection);
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(connection);
+						}
+					} catch (IOException ex) {
+						logger.warn("Connection to " + connection.remoteAddress + " closed: " + ex.getMessage());
+						closeConnection(connection);
+					}
+				}
+			} catch (IOException ex) {
+				logger.error("LocalSocket event loop failed", ex);
+			}
+		}
+	}
+
+	private void registerPending() throws IOException {
+		if (serverRegistrationPending) {
+			serverRegistrationPending = false;
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		Connection connection;
+		while ((connection = pendingRegistrations.poll()) != null) {
+			int ops = connection.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+			connection.key = connection.channel.register(selector, ops, connection);
+			if (connection.connected) {
+				flush(connection);
+			}
+		}
+	}
+
+	private void flushPending() {
+		Connection connection;
+		while ((connection = pendingFlushes.poll()) != null) {
+			flush(connection);
+		}
+	}
+
+	private void flush(Connection connection) {
+		// clear the flag before draining so that a frame queued meanwhile schedules another flush
+		connection.flushScheduled.set(false);
+		if (!connection.connected || connection.key == null) {
+			return;
+		}
+		try {
+			write(connection);
+		} catch (IOException ex) {
+			logger.warn("Connection to " + connection.remoteAddress + " closed: " + ex.getMessage());
+			closeConnection(connection);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+		Connection connection = new Connection(channel, true);
+		connection.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	private void finishConnect(Connection connection) throws IOException {
+		if (connection.channel.finishConnect()) {
+			connection.connected = true;
+			connection.key.interestOps(SelectionKey.OP_READ);
+			write(connection);
+		}
+	}
+
+	private void write(Connection connection) throws IOException {
+		synchronized (connection) {
+			ByteBuffer out = connection.outbound;
+			out.flip();
+			connection.channel.write(out);
+			boolean drained = !out.hasRemaining();
+			out.compact();
+
+			// if the kernel buffer is full, continue when the channel becomes writable
+			connection.key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void read(Connection connection) throws IOException {
+		if (connection.channel.read(connection.readBuffer) < 0) {
+			throw new IOException("end of stream");
+		}
+
+		ByteBuffer buffer = connection.readBuffer;
+		buffer.flip();
+		while (buffer.remaining() >= 4) {
+			int length = buffer.getInt(buffer.position());
+			if (length < 0 || length > MAX_FRAME_SIZE) {
+				throw new IOException("invalid frame length " + length);
+			}
+			if (buffer.remaining() < 4 + length) {
+				break;
+			}
+			buffer.getInt();
+			int end = buffer.position() + length;
+			int limit = buffer.limit();
+			buffer.limit(end);
+			ControlMessage message;
+			try {
+				message = connection.decoder.decode(buffer);
+			} catch (RuntimeException ex) {
+				throw new IOException("corrupt frame", ex);
+			}
+			if (buffer.position() != end) {
+				throw new IOException("frame length does not match its content");
+			}
+			buffer.limit(limit);
+
+			if (message.getSource() != null) {
+				learned.put(message.getSource(), connection);
+			}
+			Consumer<ControlMessage> currentReceiver = receiver;
+			if (currentReceiver != null) {
+				currentReceiver.accept(message);
+			}
+		}
+		buffer.compact();
+
+		// grow the buffer if the next frame does not fit
+		if (buffer.position() >= 4) {
+			int length = buffer.getInt(0);
+			if (length + 4 > buffer.capacity() && length <= MAX_FRAME_SIZE) {
+				ByteBuffer grown = ByteBuffer.allocate(length + 4);
+				buffer.flip();
+				grown.put(buffer);
+				connection.readBuffer = grown;
+			}
+		}
+	}
+
+	private void closeConnection(Connection connection) {
+		try {
+			connection.channel.close();
+		} catch (IOException ex) {
+			// already closed
+		}
+		if (connection.remoteAddress != null) {
+			outgoing.remove(connection.remoteAddress, connection);
+		}
+		learned.values().removeIf(c -> c == connection);
+	}
+
+	/**
+	 * Stops the event loop and closes every connection.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			selector.wakeup();
+		}
+		try {
+			eventLoop.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		ArrayList<Connection> connections = new ArrayList<Connection>(outgoing.values());
+		connections.addAll(learned.values());
+		for (Connection connection : connections) {
+			closeConnection(connection);
+		}
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+			selector.close();
+		} catch (IOException ex) {
+			logger.warn("Could not close LocalSocket cleanly: " + ex.getMessage());
+		}
+	}
 }
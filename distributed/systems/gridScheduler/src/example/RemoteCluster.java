@@ -0,0 +1,63 @@
+package example;
+
+import core.ITransport;
+import gridscheduler.model.Cluster;
+import gridscheduler.model.Job;
+import org.apache.log4j.BasicConfigurator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Runs a single cluster in its own JVM, connected to a grid scheduler node of a Simulation
+ * started with a listening port or a shared memory directory. Optionally submits jobs to its
+ * own resource manager so that the cluster offloads work to the grid.
+ * <p>
+ * Usage: RemoteCluster &lt;clusterName&gt; &lt;gsNodeAddress&gt; &lt;host&gt; &lt;port&gt; [nrNodes] [jobsPerSecond]
+ * <p>
+ * With the host <i>shm</i> the port argument is the shared memory directory instead, and the
+ * cluster talks to the co-located grid scheduler node through memory-mapped ring buffers.
+ */
+public class RemoteCluster {
+
+	private static final long jobDuration = 8000L;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 4) {
+			System.err.println("Usage: RemoteCluster <clusterName> <gsNodeAddress> <host> <port> [nrNodes] [jobsPerSecond]");
+			System.exit(1);
+		}
+
+		BasicConfigurator.configure();
+
+		String name = args[0];
+		String gridSchedulerAddress = args[1];
+		int nrNodes = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+		int jobsPerSecond = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+		ITransport transport;
+		if (args[2].equals("shm")) {
+			SharedMemorySocket shmSocket = new SharedMemorySocket(new File(args[3]), name);
+			shmSocket.addRoute(gridSchedulerAddress, gridSchedulerAddress);
+			transport = shmSocket;
+		} else {
+			LocalSocket lSocket = new LocalSocket();
+			lSocket.addRoute(gridSchedulerAddress, new InetSocketAddress(args[2], Integer.parseInt(args[3])));
+			transport = lSocket;
+		}
+
+		Cluster cluster = new Cluster(name, gridSchedulerAddress, transport, nrNodes);
+
+		// job ids of remote clusters start high enough not to collide with the simulation's ones
+		long jobId = (long) (name.hashCode() & 0x7fffffff) << 20;
+		while (true) {
+			if (jobsPerSecond > 0) {
+				cluster.getResourceManager().addJob(new Job(jobDuration + (int) (Math.random() * 5000), jobId++));
+				Thread.sleep(1000 / jobsPerSecond);
+			} else {
+				Thread.sleep(1000);
+			}
+		}
+	}
+}
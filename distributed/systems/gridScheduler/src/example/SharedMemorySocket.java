@@ -0,0 +1,472 @@
+package example;
+
+import core.ITransport;
+import gridscheduler.model.ControlMessage;
+import gridscheduler.model.ControlMessageCodec;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Transport exchanging ControlMessage frames with processes on the same host through
+ * memory-mapped ring buffers.
+ * <p>
+ * Every pair of processes shares two ring files in a common directory, one per direction:
+ * <i>&lt;producer&gt;-to-&lt;consumer&gt;.ring</i>. Each ring has exactly one producer and one
+ * consumer process, which coordinate through two sequence counters in the file header: the
+ * producer publishes the number of bytes written, the consumer the number of bytes read.
+ * Sending a message copies its encoding into the ring and publishes the new producer sequence;
+ * receiving polls the producer sequences. Neither side makes a system call on the fast path,
+ * the consumer only parks when it has been idle for a while.
+ * <p>
+ * A process creates its outbound ring when it first sends to a peer and discovers inbound rings
+ * by scanning the directory. Both ends of a ring have to be restarted together, because the
+ * endpoint dictionary of the codec lives in the processes.
+ */
+public class SharedMemorySocket implements ITransport, Runnable {
+
+	private static final int MAGIC = 0x47535231; // "GSR1"
+
+	// header layout, counters on separate cache lines
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int PRODUCER_SEQUENCE_OFFSET = 64;
+	private static final int CONSUMER_SEQUENCE_OFFSET = 128;
+	private static final int HEADER_SIZE = 192;
+
+	// frames are aligned so that their length prefix never straddles the end of the ring
+	private static final int FRAME_ALIGNMENT = 8;
+	private static final int PADDING = -1;
+
+	public static final int DEFAULT_CAPACITY = 4 << 20;
+
+	// consumer idle strategy: spin, then yield, then park
+	private static final int SPIN_LIMIT = 1000;
+	private static final int YIELD_LIMIT = 1100;
+	private static final long PARK_NANOS = 50000;
+	private static final long DIRECTORY_SCAN_INTERVAL = 100000000L;
+
+	// sun.misc.Unsafe fences, looked up reflectively since the class is not part of the public API
+	private static final MethodHandle storeFence;
+	private static final MethodHandle loadFence;
+
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodType voidType = MethodType.methodType(void.class);
+			storeFence = lookup.findVirtual(unsafeClass, "storeFence", voidType).bindTo(unsafe);
+			loadFence = lookup.findVirtual(unsafeClass, "loadFence", voidType).bindTo(unsafe);
+		} catch (ReflectiveOperationException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	private final File directory;
+	private final String processName;
+	private final int capacity;
+
+	// rings by peer process name
+	private final ConcurrentHashMap<String, Ring> outbound = new ConcurrentHashMap<String, Ring>();
+	private final CopyOnWriteArrayList<Ring> inbound = new CopyOnWriteArrayList<Ring>();
+	// the peer process every endpoint was last heard from, and statically configured peers
+	private final ConcurrentHashMap<String, String> peers = new ConcurrentHashMap<String, String>();
+
+	private volatile Consumer<ControlMessage> receiver = null;
+
+	// consumer thread
+	private final Thread pollingThread;
+	private volatile boolean running;
+
+	private final static Logger logger = Logger.getLogger(SharedMemorySocket.class.getName());
+
+	/**
+	 * One direction of the channel between two processes.
+	 */
+	private static final class Ring {
+		final String peer;
+		final MappedByteBuffer buffer;
+		// view of the data region
+		final ByteBuffer data;
+		final int capacity;
+		final int mask;
+		final ControlMessageCodec codec = new ControlMessageCodec();
+
+		// producer side: encoding scratch buffer, guarded by the ring's monitor
+		ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+
+		Ring(String peer, MappedByteBuffer buffer, int capacity) {
+			this.peer = peer;
+			this.buffer = buffer;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			buffer.position(HEADER_SIZE);
+			this.data = buffer.slice();
+			buffer.position(0);
+		}
+
+		long producerSequence() {
+			long sequence = buffer.getLong(PRODUCER_SEQUENCE_OFFSET);
+			loadFence();
+			return sequence;
+		}
+
+		long consumerSequence() {
+			long sequence = buffer.getLong(CONSUMER_SEQUENCE_OFFSET);
+			loadFence();
+			return sequence;
+		}
+
+		void publishProducerSequence(long sequence) {
+			storeFence();
+			buffer.putLong(PRODUCER_SEQUENCE_OFFSET, sequence);
+		}
+
+		void publishConsumerSequence(long sequence) {
+			storeFence();
+			buffer.putLong(CONSUMER_SEQUENCE_OFFSET, sequence);
+		}
+	}
+
+	/**
+	 * Creates a shared memory transport for this process and starts its consumer thread.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>capacity</CODE> must be a power of two
+	 * </DL>
+	 * @param directory the directory holding the ring files, e.g. under /dev/shm
+	 * @param processName the name of this process, unique among the processes sharing the directory
+	 * @param capacity the size of the data region of the rings created by this process
+	 */
+	public SharedMemorySocket(File directory, String processName, int capacity) {
+		assert(Integer.bitCount(capacity) == 1) : "parameter 'capacity' must be a power of two";
+
+		this.directory = directory;
+		this.processName = processName;
+		this.capacity = capacity;
+		directory.mkdirs();
+
+		running = true;
+		pollingThread = new Thread(this, "shm-" + processName);
+		pollingThread.setDaemon(true);
+		pollingThread.start();
+	}
+
+	public SharedMemorySocket(File directory, String processName) {
+		this(directory, processName, DEFAULT_CAPACITY);
+	}
+
+	public void setMessageReceiver(Consumer<ControlMessage> receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Declares that the endpoint <CODE>endpoint</CODE> lives in the process <CODE>peerProcess</CODE>.
+	 * @param endpoint the name of a GS node or RM
+	 * @param peerProcess the process name of the SharedMemorySocket of that endpoint
+	 */
+	public void addRoute(String endpoint, String peerProcess) {
+		peers.put(endpoint, peerProcess);
+	}
+
+	public boolean isRoutable(String endpoint) {
+		return endpoint != null && peers.containsKey(endpoint);
+	}
+
+	public boolean send(ControlMessage message) {
+		String peer = message.getDestination() != null ? peers.get(message.getDestination()) : null;
+		if (peer == null) {
+			return false;
+		}
+		Ring ring = outboundRing(peer);
+		return ring != null && write(ring, message);
+	}
+
+	public void broadcast(ControlMessage message) {
+		for (Ring ring : outbound.values()) {
+			write(ring, message);
+		}
+	}
+
+	private Ring outboundRing(String peer) {
+		Ring ring = outbound.get(peer);
+		if (ring != null) {
+			return ring;
+		}
+		synchronized (outbound) {
+			ring = outbound.get(peer);
+			if (ring == null) {
+				try {
+					ring = createRing(new File(directory, processName + "-to-" + peer + ".ring"), peer);
+					outbound.put(peer, ring);
+				} catch (IOException ex) {
+					logger.error("Could not create the ring to " + peer, ex);
+					return null;
+				}
+			}
+			return ring;
+		}
+	}
+
+	// producer side: a fresh file, published by writing the magic number last
+	private Ring createRing(File file, String peer) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		temporary.delete();
+		RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+		try {
+			raf.setLength(HEADER_SIZE + capacity);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+			buffer.putInt(CAPACITY_OFFSET, capacity);
+			buffer.putLong(PRODUCER_SEQUENCE_OFFSET, 0);
+			buffer.putLong(CONSUMER_SEQUENCE_OFFSET, 0);
+			storeFence();
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+
+			if (!temporary.renameTo(file)) {
+				throw new IOException("could not publish " + file);
+			}
+			return new Ring(peer, buffer, capacity);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// consumer side: map a ring published by a peer
+	private Ring openRing(File file, String peer) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < HEADER_SIZE) {
+				return null;
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+				return null;
+			}
+			loadFence();
+			int ringCapacity = buffer.getInt(CAPACITY_OFFSET);
+			if (raf.length() < HEADER_SIZE + ringCapacity) {
+				return null;
+			}
+			return new Ring(peer, buffer, ringCapacity);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private boolean write(Ring ring, ControlMessage message) {
+		synchronized (ring) {
+			ByteBuffer scratch = ring.scratch;
+			while (true) {
+				scratch.clear();
+				try {
+					ring.codec.encode(message, scratch);
+					break;
+				} catch (BufferOverflowException ex) {
+					ring.scratch = scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+				}
+			}
+			scratch.flip();
+
+			int length = scratch.remaining();
+			int frameSize = align(4 + length);
+			if (frameSize > ring.capacity / 2) {
+				logger.warn("Dropping " + message.getType() + ": frame larger than half the ring");
+				return false;
+			}
+
+			long sequence = ring.buffer.getLong(PRODUCER_SEQUENCE_OFFSET);
+			int position = (int) (sequence & ring.mask);
+			int untilEnd = ring.capacity - position;
+			int needed = frameSize <= untilEnd ? frameSize : untilEnd + frameSize;
+
+			// wait for the consumer to make room
+			int idle = 0;
+			while (ring.capacity - (sequence - ring.consumerSequence()) < needed) {
+				if (!running) {
+					return false;
+				}
+				idle = idle(idle);
+			}
+
+			if (frameSize > untilEnd) {
+				ring.data.putInt(position, PADDING);
+				sequence += untilEnd;
+				position = 0;
+			}
+
+			ring.data.putInt(position, length);
+			for (int i = 0; i < length; i++) {
+				ring.data.put(position + 4 + i, scratch.get(i));
+			}
+			ring.publishProducerSequence(sequence + frameSize);
+			return true;
+		}
+	}
+
+	/**
+	 * Consumer loop. Drains every inbound ring and hands the messages to the receiver.
+	 */
+	public void run() {
+		int idle = 0;
+		long lastScan = 0;
+		while (running) {
+			if (System.nanoTime() - lastScan > DIRECTORY_SCAN_INTERVAL) {
+				scanForInboundRings();
+				lastScan = System.nanoTime();
+			}
+
+			int received = 0;
+			for (Ring ring : inbound) {
+				received += drain(ring);
+			}
+
+			if (received > 0) {
+				idle = 0;
+			} else {
+				idle = idle(idle);
+			}
+		}
+	}
+
+	private int drain(Ring ring) {
+		long consumed = ring.buffer.getLong(CONSUMER_SEQUENCE_OFFSET);
+		long produced = ring.producerSequence();
+		int received = 0;
+
+		while (consumed < produced) {
+			int position = (int) (consumed & ring.mask);
+			int length = ring.data.getInt(position);
+			if (length == PADDING) {
+				consumed += ring.capacity - position;
+				continue;
+			}
+
+			ring.data.limit(position + 4 + length);
+			ring.data.position(position + 4);
+			ControlMessage message = null;
+			try {
+				message = ring.codec.decode(ring.data);
+			} catch (RuntimeException ex) {
+				logger.error("Corrupt frame from " + ring.peer, ex);
+			}
+			ring.data.clear();
+			consumed += align(4 + length);
+
+			if (message != null) {
+				if (message.getSource() != null) {
+					peers.put(message.getSource(), ring.peer);
+				}
+				Consumer<ControlMessage> currentReceiver = receiver;
+				if (currentReceiver != null) {
+					currentReceiver.accept(message);
+				}
+				received++;
+			}
+		}
+
+		if (received > 0) {
+			ring.publishConsumerSequence(consumed);
+		}
+		return received;
+	}
+
+	private void scanForInboundRings() {
+		String suffix = "-to-" + processName + ".ring";
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			if (!name.endsWith(suffix)) {
+				continue;
+			}
+			String peer = name.substring(0, name.length() - suffix.length());
+			if (hasInboundRing(peer)) {
+				continue;
+			}
+			try {
+				Ring ring = openRing(new File(directory, name), peer);
+				if (ring != null) {
+					inbound.add(ring);
+					logger.info("Shared memory ring from " + peer + " to " + processName + " opened");
+				}
+			} catch (IOException ex) {
+				logger.warn("Could not open the ring from " + peer + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	private boolean hasInboundRing(String peer) {
+		for (Ring ring : inbound) {
+			if (ring.peer.equals(peer)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int idle(int idle) {
+		if (idle < SPIN_LIMIT) {
+			// busy spin
+		} else if (idle < YIELD_LIMIT) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+			return idle;
+		}
+		return idle + 1;
+	}
+
+	private static int align(int size) {
+		return (size + FRAME_ALIGNMENT - 1) & ~(FRAME_ALIGNMENT - 1);
+	}
+
+	public void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			pollingThread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		for (Ring ring : outbound.values()) {
+			new File(directory, processName + "-to-" + ring.peer + ".ring").delete();
+		}
+	}
+
+	private static void storeFence() {
+		try {
+			storeFence.invokeExact();
+		} catch (Throwable ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void loadFence() {
+		try {
+			loadFence.invokeExact();
+		} catch (Throwable ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package gridscheduler;
 
+import core.ExecutionModel;
 import gridscheduler.gui.ClusterStatusPanel;
 import gridscheduler.gui.GridSchedulerPanel;
 import gridscheduler.model.Cluster;
+import gridscheduler.model.ControlMessagePool;
 import gridscheduler.model.Job;
+import gridscheduler.model.LoadReportPolicy;
+import gridscheduler.model.ReplicationLog;
+import gridscheduler.model.StagingService;
 import gridscheduler.model.Supervisor;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
@@ -11,6 +16,7 @@ import org.apache.log4j.Logger;
 import javax.swing.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.concurrent.ThreadLocalRandom;
@@ -31,6 +37,63 @@ public class Simulation implements Runnable,KeyListener {
 	// Number of nodes per cluster in the simulation
 	private final static int nrNodes = 1000;
 
+	// Threads the clusters, grid scheduler nodes and mailboxes run on; virtual threads fall back to a shared pool before Java 21
+	private final static ExecutionModel executionModel = ExecutionModel.VirtualThreads;
+
+	// Deliver messages through per-endpoint mailboxes instead of on the sender's thread
+	private final static boolean asynchronousDelivery = true;
+
+	// Give control messages their own mailbox lane so they never wait behind queued jobs
+	private final static boolean priorityLanes = true;
+
+	// Control messages delivered per job while both lanes are backed up, 0 always delivers control messages first
+	private final static int controlLaneWeight = 8;
+
+	// Dispatch the queued jobs of a grid scheduler node on job arrivals, load changes and joins instead of every poll
+	private final static boolean eventDrivenDispatch = true;
+
+	// Assign the whole queue of a grid scheduler node at once each poll cycle, leveling the load per node of its clusters
+	private final static boolean batchDispatch = true;
+
+	// Clusters sampled per job dispatched one at a time, the least loaded sampled one gets it, 0 picks the least loaded of all
+	private final static int dispatchChoices = 0;
+
+	// Poll the load of all the clusters of a grid scheduler node with a single multicast query
+	private final static boolean batchedLoadPolling = true;
+
+	// Fraction of the clusters a grid scheduler node waits for when it polls their load with calls, 0 disables it
+	private final static double loadPollQuorum = 0;
+
+	// Maximum number of jobs queued at a grid scheduler node, enforced with offload credits, 0 disables it
+	private final static int offloadCreditLimit = 1000;
+
+	// Reuse the control messages of load polling, load replies and completion notices
+	private final static boolean pooledMessages = true;
+
+	// Let the clusters publish their load on threshold crossings instead of being polled
+	private final static boolean pushLoadReporting = false;
+
+	// Port of the first primary grid scheduler node accepting remote clusters (see example.RemoteCluster), 0 disables it
+	private final static int remoteClusterBasePort = 0;
+
+	// Directory of the shared memory rings of remote clusters on the same host (see example.RemoteCluster), null disables it
+	private final static String remoteClusterSharedMemoryDirectory = null;
+
+	// Root of the spool directories the data files of the jobs are staged between, null disables staging
+	private final static String spoolDirectory = null;
+
+	// Directory of the journals that let the grid scheduler nodes recover their queue after a restart, null disables journaling
+	private final static String journalDirectory = null;
+
+	// Milliseconds between two checkpoints of the journaled state, which the journals are cut at, 0 disables them
+	private final static long checkpointPeriod = 1000;
+
+	// Number of changes to its job queue the replica of a grid scheduler node may lag behind
+	private final static int replicationMaxLag = ReplicationLog.DEFAULT_MAX_LAG;
+
+	// Suspicion level (phi) at which a grid scheduler node or a cluster is considered failed
+	private final static double failureDetectionThreshold = 8.0;
+
 	// Simulation components
 	Cluster clusters[];
 
@@ -62,7 +125,37 @@ public class Simulation implements Runnable,KeyListener {
 
 		// Setup the model. Create a grid scheduler and a set of clusters.
 		//scheduler = new GridSchedulerNode("scheduler1");
+		ExecutionModel.setDefault(executionModel);
 		supervisor = new Supervisor("Supervisor",4,false); // TODO change this in order to have variable number of grid scheduler nodes
+		supervisor.setAsynchronousDelivery(asynchronousDelivery);
+		supervisor.setPriorityLanes(priorityLanes, controlLaneWeight);
+		supervisor.setBatchedLoadPolling(batchedLoadPolling);
+		supervisor.setEventDrivenDispatch(eventDrivenDispatch);
+		supervisor.setBatchDispatch(batchDispatch);
+		supervisor.setDispatchChoices(dispatchChoices);
+		supervisor.setReplicationMaxLag(replicationMaxLag);
+		if (loadPollQuorum > 0) {
+			supervisor.setLoadPollQuorum(loadPollQuorum);
+		}
+		supervisor.setOffloadCreditLimit(offloadCreditLimit);
+		supervisor.setFailureDetectionThreshold(failureDetectionThreshold);
+		if (spoolDirectory != null) {
+			supervisor.setStagingService(new StagingService(new File(spoolDirectory)));
+		}
+		if (journalDirectory != null) {
+			supervisor.setCheckpointPeriod(checkpointPeriod);
+			supervisor.setJournalDirectory(new File(journalDirectory));
+		}
+		ControlMessagePool.setEnabled(pooledMessages);
+		if (pushLoadReporting) {
+			supervisor.setLoadReportPolicy(LoadReportPolicy.DEFAULT);
+		}
+		if (remoteClusterBasePort > 0) {
+			supervisor.listen("127.0.0.1", remoteClusterBasePort);
+		}
+		if (remoteClusterSharedMemoryDirectory != null) {
+			supervisor.listen(new File(remoteClusterSharedMemoryDirectory));
+		}
 
 		// Create a new gridscheduler panel so we can monitor our components
 		//gridSchedulerPanel = new GridSchedulerPanel(scheduler);
@@ -219,6 +312,11 @@ public class Simulation implements Runnable,KeyListener {
 			logger.warn("Job duration INCREASED to " + df2.format((double) jobDuration/1000)  + " sec.");
 		}
 
+		// on T key pressed log the message telemetry of every grid scheduler node
+		if (e.getKeyCode() == KeyEvent.VK_T) {
+			logger.warn("Message telemetry:\n" + supervisor.getTelemetryReport());
+		}
+
 		if (e.getKeyCode() == KeyEvent.VK_G) {
 
 		    if(!gsNodeFaultToggle) {
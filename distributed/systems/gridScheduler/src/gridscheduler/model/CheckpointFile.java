@@ -0,0 +1,303 @@
+package gridscheduler.model;
+
+import core.LatencyHistogram;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The checkpoints of the state of a component, as an image of records (see QueueRecords),
+ * kept in two memory-mapped files that are written in turn, so that a checkpoint torn by a
+ * crash leaves the previous one intact in the other file.
+ * <p>
+ * An image lies in a ring of a power of two bytes, at a position that only grows, so that a
+ * record keeps its place in the ring from one checkpoint to the next as long as it is in the
+ * image (see QueueImage). Writing a checkpoint compares the image with what the file holds,
+ * page by page, and only copies the pages that differ, which are then the only ones forced to
+ * disk; the header, with the generation, the position and the length of the image, is written
+ * and forced last. Opening a checkpoint file recovers the image of the newest checkpoint whose
+ * header and records are intact.
+ */
+public class CheckpointFile {
+
+	private static final int PAGE_SIZE = 4096;
+	private static final int MAGIC = 0x47534350;
+	private static final int VERSION = 1;
+	// magic, version, generation, position, length, capacity and the checksum of these
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+	private final File file;
+	private final Slot[] slots = new Slot[2];
+	// the newest checkpoint, and its image as recovered on opening
+	private long generation = 0;
+	private ByteBuffer recoveredImage = null;
+	private final CRC32 checksum = new CRC32();
+
+	// statistics
+	private long checkpoints = 0;
+	private long pagesWritten = 0;
+	private long pagesCompared = 0;
+	private final LatencyHistogram writeTimes = new LatencyHistogram();
+
+	private final static Logger logger = Logger.getLogger(CheckpointFile.class.getName());
+
+	// one of the two files, with the checkpoint it holds
+	private static final class Slot {
+		final File file;
+		FileChannel channel = null;
+		MappedByteBuffer map = null;
+		int capacity = 0;
+		long generation = 0;
+
+		Slot(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Opens the checkpoints in the files <CODE>file</CODE>.0 and <CODE>file</CODE>.1, which are
+	 * only created by the first checkpoint, and recovers the image of the newest one.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>file</CODE> cannot be null
+	 * </DL>
+	 * @param file the name of the checkpoint files, without the number
+	 * @throws IOException if an existing checkpoint file could not be read
+	 */
+	public CheckpointFile(File file) throws IOException {
+		assert(file != null) : "parameter 'file' cannot be null";
+
+		this.file = file;
+		for (int i = 0; i < slots.length; i++) {
+			Slot slot = new Slot(new File(file.getPath() + "." + i));
+			slots[i] = slot;
+			if (!slot.file.exists()) {
+				continue;
+			}
+			open(slot);
+			ByteBuffer image = recover(slot);
+			if (image != null && slot.generation > generation) {
+				generation = slot.generation;
+				recoveredImage = image;
+			}
+		}
+	}
+
+	private void open(Slot slot) throws IOException {
+		slot.channel = FileChannel.open(slot.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long size = slot.channel.size();
+		if (size > PAGE_SIZE) {
+			slot.map = slot.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			slot.capacity = (int) (size - PAGE_SIZE);
+		}
+	}
+
+	// the image of the checkpoint in the slot, null if there is none or it is damaged
+	private ByteBuffer recover(Slot slot) {
+		MappedByteBuffer map = slot.map;
+		if (map == null || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			return null;
+		}
+		checksum.reset();
+		for (int i = 0; i < HEADER_SIZE - 4; i++) {
+			checksum.update(map.get(i));
+		}
+		long generation = map.getLong(8);
+		long position = map.getLong(16);
+		int length = map.getInt(24);
+		int capacity = map.getInt(28);
+		if ((int) checksum.getValue() != map.getInt(32) || capacity != slot.capacity || length < 0 || length > capacity) {
+			logger.warn("Ignored the damaged header of the checkpoint " + slot.file);
+			return null;
+		}
+
+		ByteBuffer image = ByteBuffer.allocate(length);
+		for (int copied = 0; copied < length; ) {
+			int offset = (int) ((position + copied) & (capacity - 1));
+			int chunk = Math.min(length - copied, capacity - offset);
+			ByteBuffer source = map.duplicate();
+			source.position(PAGE_SIZE + offset);
+			source.limit(PAGE_SIZE + offset + chunk);
+			image.put(source);
+			copied += chunk;
+		}
+		image.flip();
+
+		// every record must be intact
+		CRC32 recordChecksum = new CRC32();
+		while (image.hasRemaining()) {
+			if (QueueRecords.next(image, recordChecksum) == null) {
+				logger.warn("Ignored the damaged checkpoint " + generation + " in " + slot.file);
+				return null;
+			}
+		}
+		image.rewind();
+		slot.generation = generation;
+		return image;
+	}
+
+	/**
+	 * @return the generation of the newest checkpoint, 0 if there is none
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return the records of the newest checkpoint when the files were opened, null if there
+	 * was none
+	 */
+	public synchronized ByteBuffer getRecoveredImage() {
+		return recoveredImage != null ? recoveredImage.duplicate() : null;
+	}
+
+	/**
+	 * Writes the checkpoint of generation <CODE>generation</CODE> over the older of the two
+	 * checkpoints, and waits until it is on disk.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>generation</CODE> must be newer than the newest checkpoint
+	 * <DD>the capacity of <CODE>ring</CODE> must be a power of two and at least a page
+	 * <DD>parameter <CODE>length</CODE> cannot exceed the capacity of <CODE>ring</CODE>
+	 * </DL>
+	 * @param generation the generation of the checkpoint
+	 * @param ring the ring the image lies in
+	 * @param position the position of the image, its first byte is at <CODE>position</CODE>
+	 * modulo the capacity of the ring
+	 * @param length the length of the image
+	 * @throws IOException if the checkpoint could not be written
+	 */
+	public synchronized void write(long generation, ByteBuffer ring, long position, int length) throws IOException {
+		int capacity = ring.capacity();
+		assert(generation > this.generation) : "parameter 'generation' must be newer than the newest checkpoint";
+		assert(capacity >= PAGE_SIZE && Integer.bitCount(capacity) == 1) : "the capacity of the ring must be a power of two of at least a page";
+		assert(length >= 0 && length <= capacity) : "parameter 'length' cannot exceed the capacity of the ring";
+
+		long start = System.nanoTime();
+		Slot slot = slots[0].generation <= slots[1].generation ? slots[0] : slots[1];
+		if (slot.capacity != capacity) {
+			resize(slot, capacity);
+		}
+
+		// copy the pages that differ from those of the older checkpoint
+		MappedByteBuffer map = slot.map;
+		long end = position + length;
+		for (long page = position & -PAGE_SIZE; page < end; page += PAGE_SIZE) {
+			int offset = (int) (page & (capacity - 1));
+			ByteBuffer source = ring.duplicate();
+			source.limit(offset + PAGE_SIZE);
+			source.position(offset);
+			ByteBuffer target = map.duplicate();
+			target.limit(PAGE_SIZE + offset + PAGE_SIZE);
+			target.position(PAGE_SIZE + offset);
+			pagesCompared++;
+			if (!source.equals(target)) {
+				target.put(source);
+				pagesWritten++;
+			}
+		}
+		map.force();
+
+		// the header makes the checkpoint the newest one
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putLong(8, generation);
+		map.putLong(16, position);
+		map.putInt(24, length);
+		map.putInt(28, capacity);
+		checksum.reset();
+		for (int i = 0; i < HEADER_SIZE - 4; i++) {
+			checksum.update(map.get(i));
+		}
+		map.putInt(32, (int) checksum.getValue());
+		map.force();
+
+		slot.generation = generation;
+		this.generation = generation;
+		recoveredImage = null;
+		checkpoints++;
+		writeTimes.record(System.nanoTime() - start);
+	}
+
+	// gives the file of the slot a ring of 'capacity' bytes, which holds no checkpoint then
+	private void resize(Slot slot, int capacity) throws IOException {
+		if (slot.channel == null) {
+			open(slot);
+		}
+		slot.generation = 0;
+		slot.map = null;
+		// a header without the magic number until the next one is written
+		slot.channel.write(ByteBuffer.allocate(PAGE_SIZE), 0);
+		slot.channel.force(false);
+		slot.channel.truncate(PAGE_SIZE + capacity);
+		if (slot.channel.size() < PAGE_SIZE + capacity) {
+			slot.channel.write(ByteBuffer.allocate(1), PAGE_SIZE + capacity - 1);
+		}
+		slot.map = slot.channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE + capacity);
+		slot.capacity = capacity;
+	}
+
+	/**
+	 * Closes the checkpoint files. The checkpoints written are on disk already.
+	 */
+	public synchronized void close() {
+		for (Slot slot : slots) {
+			slot.map = null;
+			if (slot.channel != null) {
+				try {
+					slot.channel.close();
+				} catch (IOException ex) {
+					logger.error("Could not close the checkpoint " + slot.file, ex);
+				}
+				slot.channel = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of checkpoints written
+	 */
+	public synchronized long getCheckpoints() {
+		return checkpoints;
+	}
+
+	/**
+	 * @return the number of pages of the images written that differed from the file, and were
+	 * copied and forced to disk
+	 */
+	public synchronized long getPagesWritten() {
+		return pagesWritten;
+	}
+
+	/**
+	 * @return the number of pages of the images written
+	 */
+	public synchronized long getPagesCompared() {
+		return pagesCompared;
+	}
+
+	/**
+	 * @return the distribution of the time writing a checkpoint took, in nanoseconds
+	 */
+	public LatencyHistogram getWriteTimes() {
+		return writeTimes;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized String toString() {
+		return "CheckpointFile {file = " + file + ", generation = " + generation + ", checkpoints = " + checkpoints
+				+ ", pages written = " + pagesWritten + "/" + pagesCompared + "}";
+	}
+}
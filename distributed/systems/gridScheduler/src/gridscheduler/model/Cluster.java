@@ -1,5 +1,8 @@
 package gridscheduler.model;
 
+import core.ExecutionModel;
+import core.ITransport;
+import core.PeriodicTask;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
@@ -14,17 +17,18 @@ import java.util.List;
  * @author Niels Brouwers
  *
  */
-public class Cluster implements Runnable {
+public class Cluster {
 	private List <Node> nodes;
 	private ResourceManager resourceManager;
 	private String address;
 	
 	// polling frequency, 10hz
-	private long pollSleep = 100;
+	public static final long POLL_PERIOD = 100;
+	private long pollSleep = POLL_PERIOD;
 	
-	// polling thread
-	private Thread pollingThread;
-	private boolean running;
+	// polling task, on the threads of the execution model the cluster was created with
+	private PeriodicTask pollingTask;
+	private volatile boolean running;
 
 	private final static Logger logger = Logger.getLogger(Cluster.class.getName());
 	
@@ -49,6 +53,48 @@ public class Cluster implements Runnable {
 
 		//logger.warn("Cluster " + name + " created.");
 
+		init(name, nodeCount);
+
+		// join once the nodes are there, the join tells the grid scheduler node their number
+		resourceManager.connectToAGridSchedulerNode(supervisor.getAddress());
+		
+		startPolling();
+	}
+
+	/**
+	 * Creates a new Cluster whose resource manager connects to a grid scheduler node running
+	 * in another JVM, e.g. over TCP (example.LocalSocket) or shared memory (example.SharedMemorySocket).
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>name</CODE> cannot be null<br>
+	 * <DD>parameter <CODE>gridSchedulerAddress</CODE> cannot be null<br>
+	 * <DD>parameter <CODE>transport</CODE> cannot be null<br>
+	 * <DD>parameter <CODE>nrNodes</code> must be greater than 0
+	 * </DL>
+	 * @param name the name of this cluster
+	 * @param gridSchedulerAddress the name of the remote grid scheduler node
+	 * @param transport the transport connecting this process to the one of the grid scheduler node
+	 * @param nodeCount the number of nodes in this cluster
+	 */
+	public Cluster(String name, String gridSchedulerAddress, ITransport transport, int nodeCount) throws IOException {
+		// Preconditions
+		assert(name != null) : "parameter 'name' cannot be null";
+		assert(gridSchedulerAddress != null) : "parameter 'gridSchedulerAddress' cannot be null";
+		assert(transport != null) : "parameter 'transport' cannot be null";
+		assert(nodeCount > 0) : "parameter 'nodeCount' cannot be smaller or equal to zero";
+
+		init(name, nodeCount);
+
+		// join once the nodes are there, the join tells the grid scheduler node their number
+		resourceManager.connectToRemoteGridSchedulerNode(gridSchedulerAddress, transport);
+
+		startPolling();
+	}
+
+	// creates the resource manager and the nodes reporting to it, the same for a local and a
+	// remote grid scheduler node
+	private void init(String name, int nodeCount) throws IOException {
 		// Initialize members
 		this.address = name;
 
@@ -56,7 +102,6 @@ public class Cluster implements Runnable {
 		
 		// Initialize the resource manager for this cluster
 		resourceManager = new ResourceManager(this);
-		resourceManager.connectToAGridSchedulerNode(supervisor.getAddress());
 
 		// Initialize the nodes 
 		for (int i = 0; i < nodeCount; i++) {
@@ -66,17 +111,14 @@ public class Cluster implements Runnable {
 			n.addNodeEventHandler(resourceManager);
 			nodes.add(n);
 		}
-		
+	}
+
+	private void startPolling() {
 		// Start the polling thread
 		running = true;
-		pollingThread = new Thread(this);
-		pollingThread.start();
-
-		
+		pollingTask = ExecutionModel.getDefault().schedule(address, pollSleep, () -> running, this::poll);
 	}
 
-
-
 	/**
 	 * Returns the number of nodes in this cluster. 
 	 * @return the number of nodes in this cluster
@@ -145,26 +187,23 @@ public class Cluster implements Runnable {
 	}
 
 	/**
-	 * Polling thread runner. This function polls each node in the system repeatedly. Polling
+	 * One cycle of the polling task. This function polls each node in the system. Polling
 	 * is needed to make each node check its internal state - whether a running job is 
 	 * finished for instance.
 	 */
-	public void run() {
-		
-		while (running) {
-			// poll the nodes
-			for (Node node : nodes)
-				node.poll();
-			
-			// sleep
-			try {
-				Thread.sleep(pollSleep);
-			} catch (InterruptedException ex) {
-				assert(false) : "Cluster poll thread was interrupted";
-			}
-			
-		}
-		
+	private void poll() {
+		// poll the nodes
+		for (Node node : nodes)
+			node.poll();
+
+		// tell the grid about the jobs that just finished
+		resourceManager.flushCompletions();
+
+		// let the grid scheduler node know the cluster is alive
+		resourceManager.sendHeartbeat();
+
+		// heartbeat of the resource manager's load reports
+		resourceManager.publishLoad();
 	}
 
 	/**
@@ -174,7 +213,7 @@ public class Cluster implements Runnable {
 	public void stopPollThread() {
 		running = false;
 		try {
-			pollingThread.join();
+			pollingTask.join();
 		} catch (InterruptedException ex) {
 			assert(false) : "Cluster stopPollThread was interrupted";
 		}
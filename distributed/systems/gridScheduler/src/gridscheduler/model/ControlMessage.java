@@ -1,7 +1,12 @@
 package gridscheduler.model;
 
+import core.Endpoints;
 import core.Message;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * 
  * Class that represents the messages being exchanged in the VGS. It has some members to
@@ -18,21 +23,52 @@ public class ControlMessage extends Message {
 	 */
 	private static final long serialVersionUID = -1453428681740343634L;
 
-	private final ControlMessageType type;
+	/**
+	 * Correlation id of the messages that are not part of a call
+	 */
+	public static final long NO_CORRELATION_ID = 0;
+
+	private ControlMessageType type;
 	private String url;
 	private Job job;
 	private int load;
 
+	// identifies the call a request belongs to; replies carry the negated id of their request
+	private long correlationId = NO_CORRELATION_ID;
+
+	// load vector shared by the resource managers answering a batched load query (in-JVM only)
+	private transient LoadVector loadVector;
+
+	// the queue records a GS node ships to its replica, see ReplicationLog
+	private byte[] payload;
+
 	//any message should have the source and the destination included into the payload
 	private String source;
 	private String destination;
 
+	// interned endpoint ids of the source and the destination, used for routing.
+	// Ids are local to a JVM, so they are recomputed when a message is deserialized.
+	private transient int sourceId = Endpoints.UNKNOWN;
+	private transient int destinationId = Endpoints.UNKNOWN;
+
+	// number of owners of a pooled message, see ControlMessagePool
+	private transient volatile int references = 0;
+	private transient boolean pooled = false;
+
+	private static final AtomicIntegerFieldUpdater<ControlMessage> referencesUpdater =
+			AtomicIntegerFieldUpdater.newUpdater(ControlMessage.class, "references");
+
+	// stamped by the socket that sends (or receives from another JVM) the message
+	private transient long sequenceNumber = 0;
+	private transient long sendTime = 0;
+
 	public String getSource() {
 		return source;
 	}
 
 	public void setSource(String source) {
 		this.source = source;
+		this.sourceId = source != null ? Endpoints.idOf(source) : Endpoints.UNKNOWN;
 	}
 
 	public String getDestination() {
@@ -41,6 +77,21 @@ public class ControlMessage extends Message {
 
 	public void setDestination(String destination) {
 		this.destination = destination;
+		this.destinationId = destination != null ? Endpoints.idOf(destination) : Endpoints.UNKNOWN;
+	}
+
+	/**
+	 * @return the endpoint id of the source
+	 */
+	public int getSourceId() {
+		return sourceId;
+	}
+
+	/**
+	 * @return the endpoint id of the destination
+	 */
+	public int getDestinationId() {
+		return destinationId;
 	}
 
 
@@ -86,6 +137,81 @@ public class ControlMessage extends Message {
 		this.load = load;
 	}
 
+	/**
+	 * @return the id of the call this message is a request (positive) or a reply (negative) of, or NO_CORRELATION_ID
+	 */
+	public long getCorrelationId() {
+		return correlationId;
+	}
+
+	/**
+	 * @param correlationId the id of the call this message belongs to
+	 */
+	public void setCorrelationId(long correlationId) {
+		this.correlationId = correlationId;
+	}
+
+	/**
+	 * Marks this message as the reply to <CODE>request</CODE>, so that it completes the call
+	 * the request was sent with, if any.
+	 * @param request the request being answered
+	 */
+	public void setReplyTo(ControlMessage request) {
+		this.correlationId = -request.getCorrelationId();
+	}
+
+	/**
+	 * Stamps this message as it enters a socket.
+	 * @param sequenceNumber the sequence number of the message within the socket
+	 * @param sendTime the System.nanoTime at which the message was sent
+	 */
+	public void stamp(long sequenceNumber, long sendTime) {
+		this.sequenceNumber = sequenceNumber;
+		this.sendTime = sendTime;
+	}
+
+	/**
+	 * @return the sequence number of this message within the socket it was sent through, 0 if not sent yet
+	 */
+	public long getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	/**
+	 * @return the System.nanoTime at which this message was sent, or received from another JVM, 0 if not sent yet
+	 */
+	public long getSendTime() {
+		return sendTime;
+	}
+
+	/**
+	 * @return the load vector of a LoadQuery or ReplyLoadVector message
+	 */
+	public LoadVector getLoadVector() {
+		return loadVector;
+	}
+
+	/**
+	 * @param loadVector the load vector to set
+	 */
+	public void setLoadVector(LoadVector loadVector) {
+		this.loadVector = loadVector;
+	}
+
+	/**
+	 * @return the records of a ReplicateLog message, or null
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @param payload the records of a ReplicateLog message
+	 */
+	public void setPayload(byte[] payload) {
+		this.payload = payload;
+	}
+
 	/**
 	 * @return the url
 	 */
@@ -107,5 +233,67 @@ public class ControlMessage extends Message {
 		return type;
 	}
 
+	/**
+	 * Adds an owner to this message. Has no effect on messages that are not pooled.
+	 * @return this message
+	 */
+	public ControlMessage retain() {
+		if (pooled) {
+			referencesUpdater.incrementAndGet(this);
+		}
+		return this;
+	}
+
+	/**
+	 * Removes an owner from this message. A pooled message returns to the pool when its last
+	 * owner releases it and must not be used by any of them afterwards.
+	 */
+	public void release() {
+		if (pooled) {
+			int remaining = referencesUpdater.decrementAndGet(this);
+			assert(remaining >= 0) : "message released more often than retained";
+			if (remaining == 0) {
+				pooled = false;
+				ControlMessagePool.recycle(this);
+			}
+		}
+	}
+
+	/**
+	 * @return true if this message comes from the ControlMessagePool
+	 */
+	public boolean isPooled() {
+		return pooled;
+	}
+
+	// hands the message to its first owner
+	void makePooled() {
+		references = 1;
+		pooled = true;
+	}
+
+	// clears the fields of a pooled message before it is reused
+	void reset(ControlMessageType type) {
+		this.type = type;
+		this.url = null;
+		this.job = null;
+		this.load = 0;
+		this.correlationId = NO_CORRELATION_ID;
+		this.sequenceNumber = 0;
+		this.sendTime = 0;
+		this.loadVector = null;
+		this.payload = null;
+		this.source = null;
+		this.destination = null;
+		this.sourceId = Endpoints.UNKNOWN;
+		this.destinationId = Endpoints.UNKNOWN;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		setSource(source);
+		setDestination(destination);
+	}
+
 
 }
@@ -0,0 +1,358 @@
+package gridscheduler.model;
+
+import core.Endpoints;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of {@link ControlMessage}s for the network transports.
+ * <p>
+ * A codec instance holds the state of one direction of one stream (e.g. one TCP connection):
+ * endpoint names are sent once, the first time they appear on the stream, and referred to by
+ * their endpoint id afterwards. The encoder therefore writes only small varints in the steady
+ * state, and neither encoding nor decoding creates temporary objects.
+ * <p>
+ * Stream layout: a single schema version byte, followed by the messages:
+ * <pre>
+ *  u8      type ordinal
+ *  u8      flags (1 = has source, 2 = has destination, 4 = has job, 8 = has correlation id,
+ *          16 = job has data files, 32 = has payload)
+ *  ref     source endpoint                       (if flag 1)
+ *  ref     destination endpoint                  (if flag 2)
+ *  varint  load, zigzag
+ *  varlong correlation id, zigzag                (if flag 8)
+ *  varlong job id, zigzag                        (if flag 4)
+ *  varlong job duration in ms                    (if flag 4)
+ *  u8      job status ordinal | 0x80 replicated  (if flag 4)
+ *  varint  hop count, followed by one ref each   (if flag 4)
+ *  ref     data location                         (if flag 16)
+ *  varint  file count, followed by one string each (if flag 16)
+ *  varint  payload length, followed by the bytes (if flag 32)
+ * </pre>
+ * A ref is the varint (endpointId &lt;&lt; 1 | defines); when <i>defines</i> is set it is followed
+ * by the endpoint name as a string. A string is the varint length and the UTF-8 bytes.
+ * <p>
+ * The unused <i>url</i> field of ControlMessage is not transmitted. Type ordinals are part of
+ * the schema, so new message types have to be appended to {@link ControlMessageType}.
+ */
+public class ControlMessageCodec {
+
+	public static final byte SCHEMA_VERSION = 4;
+
+	private static final int HAS_SOURCE = 1;
+	private static final int HAS_DESTINATION = 2;
+	private static final int HAS_JOB = 4;
+	private static final int HAS_CORRELATION_ID = 8;
+	private static final int HAS_DATA = 16;
+	private static final int HAS_PAYLOAD = 32;
+	private static final int REPLICATED = 0x80;
+
+	private static final ControlMessageType[] TYPES = ControlMessageType.values();
+	private static final JobStatus[] STATUSES = JobStatus.values();
+
+	// encoder state: which local endpoint ids have been announced on the stream
+	private long[] announced = new long[2];
+	private long[] snapshot = new long[2];
+	private boolean headerWritten = false;
+
+	// decoder state: local endpoint id of every remote endpoint id seen on the stream
+	private int[] remoteToLocal = new int[64];
+	private boolean headerRead = false;
+	private char[] nameBuffer = new char[64];
+
+	public ControlMessageCodec() {
+		Arrays.fill(remoteToLocal, Endpoints.UNKNOWN);
+	}
+
+	/**
+	 * Appends the encoding of <CODE>message</CODE> to <CODE>out</CODE>. If the buffer is too
+	 * small a {@link BufferOverflowException} is thrown, the buffer position and the stream
+	 * state are left untouched, and the caller can grow the buffer and encode again.
+	 * @param message the message to encode
+	 * @param out the destination buffer
+	 */
+	public void encode(ControlMessage message, ByteBuffer out) {
+		int start = out.position();
+		boolean headerBefore = headerWritten;
+		int announcedWords = announced.length;
+		if (snapshot.length < announcedWords) {
+			snapshot = new long[announcedWords];
+		}
+		System.arraycopy(announced, 0, snapshot, 0, announcedWords);
+
+		try {
+			encodeMessage(message, out);
+		} catch (BufferOverflowException ex) {
+			// leave the dictionary as it was so that the retry announces the same names
+			out.position(start);
+			Arrays.fill(announced, 0L);
+			System.arraycopy(snapshot, 0, announced, 0, announcedWords);
+			headerWritten = headerBefore;
+			throw ex;
+		}
+	}
+
+	private void encodeMessage(ControlMessage message, ByteBuffer out) {
+		if (!headerWritten) {
+			out.put(SCHEMA_VERSION);
+			headerWritten = true;
+		}
+
+		Job job = message.getJob();
+		int flags = (message.getSource() != null ? HAS_SOURCE : 0)
+				| (message.getDestination() != null ? HAS_DESTINATION : 0)
+				| (job != null ? HAS_JOB : 0)
+				| (message.getCorrelationId() != ControlMessage.NO_CORRELATION_ID ? HAS_CORRELATION_ID : 0)
+				| (job != null && job.hasData() && job.getDataLocation() != null ? HAS_DATA : 0)
+				| (message.getPayload() != null ? HAS_PAYLOAD : 0);
+
+		out.put((byte) message.getType().ordinal());
+		out.put((byte) flags);
+		if (message.getSource() != null) {
+			writeEndpoint(out, message.getSourceId());
+		}
+		if (message.getDestination() != null) {
+			writeEndpoint(out, message.getDestinationId());
+		}
+		writeVarInt(out, zigZag(message.getLoad()));
+		if ((flags & HAS_CORRELATION_ID) != 0) {
+			writeVarLong(out, zigZag(message.getCorrelationId()));
+		}
+
+		if (job != null) {
+			writeVarLong(out, zigZag(job.getId()));
+			writeVarLong(out, (long) job.getDuration());
+			out.put((byte) (job.getStatus().ordinal() | (job.getIsReplicated() ? REPLICATED : 0)));
+
+			ArrayList<String> hops = job.getVisitedClusters();
+			int hopCount = hops.size();
+			writeVarInt(out, hopCount);
+			for (int i = 0; i < hopCount; i++) {
+				writeEndpoint(out, Endpoints.idOf(hops.get(i)));
+			}
+		}
+
+		if ((flags & HAS_DATA) != 0) {
+			writeEndpoint(out, Endpoints.idOf(job.getDataLocation()));
+			ArrayList<String> files = job.getDataFiles();
+			int fileCount = files.size();
+			writeVarInt(out, fileCount);
+			for (int i = 0; i < fileCount; i++) {
+				writeString(out, files.get(i));
+			}
+		}
+
+		if ((flags & HAS_PAYLOAD) != 0) {
+			byte[] payload = message.getPayload();
+			writeVarInt(out, payload.length);
+			out.put(payload);
+		}
+	}
+
+	/**
+	 * Decodes the next message of the stream from <CODE>in</CODE>.
+	 * @param in a buffer positioned at the start of a message
+	 * @return the decoded message, taken from the ControlMessagePool and owned by the caller
+	 * @throws BufferUnderflowException if the buffer does not hold a complete message
+	 * @throws IllegalStateException if the stream was written with an unknown schema
+	 */
+	public ControlMessage decode(ByteBuffer in) {
+		if (!headerRead) {
+			byte version = in.get();
+			if (version != SCHEMA_VERSION) {
+				throw new IllegalStateException("unsupported ControlMessage schema version " + version);
+			}
+			headerRead = true;
+		}
+
+		ControlMessage message = ControlMessagePool.acquire(TYPES[in.get()]);
+		int flags = in.get();
+		if ((flags & HAS_SOURCE) != 0) {
+			message.setSource(Endpoints.nameOf(readEndpoint(in)));
+		}
+		if ((flags & HAS_DESTINATION) != 0) {
+			message.setDestination(Endpoints.nameOf(readEndpoint(in)));
+		}
+		message.setLoad(unZigZag(readVarInt(in)));
+		if ((flags & HAS_CORRELATION_ID) != 0) {
+			message.setCorrelationId(unZigZag(readVarLong(in)));
+		}
+
+		if ((flags & HAS_JOB) != 0) {
+			long id = unZigZag(readVarLong(in));
+			long duration = readVarLong(in);
+			int status = in.get() & 0xff;
+
+			Job job = new Job(duration, id);
+			job.setStatus(STATUSES[status & ~REPLICATED]);
+			job.setIsReplicated((status & REPLICATED) != 0);
+
+			int hopCount = readVarInt(in);
+			for (int i = 0; i < hopCount; i++) {
+				job.addClusterToVisited(Endpoints.nameOf(readEndpoint(in)));
+			}
+
+			if ((flags & HAS_DATA) != 0) {
+				job.setDataLocation(Endpoints.nameOf(readEndpoint(in)));
+				int fileCount = readVarInt(in);
+				for (int i = 0; i < fileCount; i++) {
+					job.addDataFile(readString(in));
+				}
+			}
+			message.setJob(job);
+		}
+
+		if ((flags & HAS_PAYLOAD) != 0) {
+			byte[] payload = new byte[readVarInt(in)];
+			in.get(payload);
+			message.setPayload(payload);
+		}
+		return message;
+	}
+
+	private void writeEndpoint(ByteBuffer out, int endpointId) {
+		int word = endpointId >>> 6;
+		if (word >= announced.length) {
+			long[] grown = new long[Math.max(announced.length * 2, word + 1)];
+			System.arraycopy(announced, 0, grown, 0, announced.length);
+			announced = grown;
+		}
+		long bit = 1L << (endpointId & 63);
+		if ((announced[word] & bit) != 0) {
+			writeVarInt(out, endpointId << 1);
+			return;
+		}
+
+		writeVarInt(out, (endpointId << 1) | 1);
+		writeString(out, Endpoints.nameOf(endpointId));
+		announced[word] |= bit;
+	}
+
+	private static void writeString(ByteBuffer out, String name) {
+		writeVarInt(out, utf8Length(name));
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			} else {
+				out.put((byte) (0xe0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	private int readEndpoint(ByteBuffer in) {
+		int ref = readVarInt(in);
+		int remoteId = ref >>> 1;
+		if ((ref & 1) == 0) {
+			if (remoteId >= remoteToLocal.length || remoteToLocal[remoteId] == Endpoints.UNKNOWN) {
+				throw new IllegalStateException("endpoint " + remoteId + " used before being defined");
+			}
+			return remoteToLocal[remoteId];
+		}
+
+		int localId = Endpoints.idOf(readString(in));
+
+		if (remoteId >= remoteToLocal.length) {
+			int[] grown = new int[Math.max(remoteToLocal.length * 2, remoteId + 1)];
+			Arrays.fill(grown, remoteToLocal.length, grown.length, Endpoints.UNKNOWN);
+			System.arraycopy(remoteToLocal, 0, grown, 0, remoteToLocal.length);
+			remoteToLocal = grown;
+		}
+		remoteToLocal[remoteId] = localId;
+		return localId;
+	}
+
+	private String readString(ByteBuffer in) {
+		int length = readVarInt(in);
+		if (nameBuffer.length < length) {
+			nameBuffer = new char[length];
+		}
+		int chars = 0;
+		int end = in.position() + length;
+		while (in.position() < end) {
+			int b = in.get() & 0xff;
+			if (b < 0x80) {
+				nameBuffer[chars++] = (char) b;
+			} else if (b < 0xe0) {
+				nameBuffer[chars++] = (char) (((b & 0x1f) << 6) | (in.get() & 0x3f));
+			} else {
+				nameBuffer[chars++] = (char) (((b & 0x0f) << 12) | ((in.get() & 0x3f) << 6) | (in.get() & 0x3f));
+			}
+		}
+		return new String(nameBuffer, 0, chars);
+	}
+
+	private static int utf8Length(String name) {
+		int length = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+		return length;
+	}
+
+	static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void writeVarInt(ByteBuffer out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	static void writeVarLong(ByteBuffer out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	static int readVarInt(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("malformed varint");
+	}
+
+	static long readVarLong(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			long b = in.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("malformed varlong");
+	}
+}
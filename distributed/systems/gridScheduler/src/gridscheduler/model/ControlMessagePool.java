@@ -0,0 +1,105 @@
+package gridscheduler.model;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable ControlMessage instances for the messages exchanged on every poll cycle.
+ * <p>
+ * Ownership rules for pooled messages:
+ * <ul>
+ * <li>the component acquiring a message owns it until it passes it to
+ * <CODE>SynchronizedSocket.sendMessage</CODE>, and must not touch it afterwards;</li>
+ * <li>the socket holds a reference for every receiver the message is handed to, and releases
+ * it once that receiver's <CODE>onMessageReceived</CODE> has returned;</li>
+ * <li>a receiver that wants to keep a message beyond its handler must <CODE>retain</CODE> it and
+ * <CODE>release</CODE> it later; the payload (job, load vector) can be kept freely.</li>
+ * </ul>
+ * A message returns to the pool when its last reference is released. Messages created with
+ * <CODE>new</CODE> are not pooled, retaining and releasing them has no effect.
+ * <p>
+ * When pooling is disabled, or the pool is empty, <CODE>acquire</CODE> allocates a new message.
+ */
+public final class ControlMessagePool {
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static volatile boolean enabled = false;
+	private static final ArrayBlockingQueue<ControlMessage> freeMessages = new ArrayBlockingQueue<ControlMessage>(DEFAULT_CAPACITY);
+
+	// statistics
+	private static final AtomicLong allocatedMessages = new AtomicLong();
+	private static final AtomicLong reusedMessages = new AtomicLong();
+
+	/**
+	 * Private constructor in order to mimic the functionality of
+	 * a top-level static class that is unavailable in Java.
+	 */
+	private ControlMessagePool() {
+
+	}
+
+	/**
+	 * Switches pooling on or off. Messages acquired while the pool was enabled still
+	 * return to it when released.
+	 * @param enabled true to reuse control messages
+	 */
+	public static void setEnabled(boolean enabled) {
+		ControlMessagePool.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Takes a message out of the pool, or allocates one if the pool is empty. The message
+	 * has no source, destination, job or load vector and a load of 0.
+	 * @param type the type of the message
+	 * @return a message of type <CODE>type</CODE>, owned by the caller
+	 */
+	public static ControlMessage acquire(ControlMessageType type) {
+		if (!enabled) {
+			return new ControlMessage(type);
+		}
+
+		ControlMessage message = freeMessages.poll();
+		if (message == null) {
+			allocatedMessages.incrementAndGet();
+			message = new ControlMessage(type);
+		} else {
+			reusedMessages.incrementAndGet();
+			message.reset(type);
+		}
+		message.makePooled();
+		return message;
+	}
+
+	// called by ControlMessage when its last reference is released
+	static void recycle(ControlMessage message) {
+		// drop the payload right away so that the pool does not keep it alive
+		message.reset(message.getType());
+		freeMessages.offer(message);
+	}
+
+	/**
+	 * @return the number of messages allocated because the pool was empty
+	 */
+	public static long getAllocatedMessages() {
+		return allocatedMessages.get();
+	}
+
+	/**
+	 * @return the number of messages taken out of the pool
+	 */
+	public static long getReusedMessages() {
+		return reusedMessages.get();
+	}
+
+	/**
+	 * @return the number of messages waiting in the pool
+	 */
+	public static int size() {
+		return freeMessages.size();
+	}
+}
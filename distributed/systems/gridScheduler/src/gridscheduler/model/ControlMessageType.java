@@ -24,7 +24,30 @@ public enum ControlMessageType {
 	AddJob,
 
 	//both ways
-	ReplyNotifyJobCompletion
+	ReplyNotifyJobCompletion,
+
+	// batched load polling: one query from GS to all its RMs, one aggregated reply
+	LoadQuery,
+	ReplyLoadVector,
+
+	// from RM to GS: load published by the RM when it changes, see LoadReportPolicy
+	NotifyLoad,
+
+	// from GS to RM: the load field holds the number of jobs the RM may offload, see GridSchedulerNode
+	GrantCredits,
+
+	// from GS to RM: drop the copy of a replicated job that completed on another RM
+	CancelJob,
+
+	// from RM to GS: the RM is alive, see PhiAccrualFailureDetector
+	Heartbeat,
+
+	// from a primary GS node to its replica: a batch of queue records, see ReplicationLog;
+	// the correlation id is the sequence number of the first record, the load the session
+	ReplicateLog,
+	// from the replica to its primary: the correlation id is the sequence number of the last
+	// record applied, the load the session it belongs to
+	ReplyReplicateLog
 
 
 }
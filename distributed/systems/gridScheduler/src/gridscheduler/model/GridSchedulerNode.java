@@ -1,13 +1,37 @@
 package gridscheduler.model;
 
+import core.CoalescingTask;
+import core.Endpoints;
+import core.ExecutionModel;
 import core.IMessageReceivedHandler;
+import core.LatencyHistogram;
 import core.Message;
+import core.MessageDispatcher;
+import core.PeriodicTask;
+import core.PhiAccrualFailureDetector;
+import core.RpcClient;
+import core.Socket;
 import core.SynchronizedSocket;
 import example.LocalSocket;
 import org.apache.log4j.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 
 /**
@@ -18,7 +42,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * @author Niels Brouwers
  *
  */
-public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
+public class GridSchedulerNode implements IMessageReceivedHandler {
 
 
 	// job queue
@@ -29,27 +53,118 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 
 	// communications syncSocket
 	private SynchronizedSocket syncSocket = null;
+
+	// hands every incoming message to the handler of its type
+	private final MessageDispatcher dispatcher;
 	
-	// a hashmap linking each resource manager to an estimated load
-	private ConcurrentHashMap<String, Integer> resourceManagersLoad = null;
+	// the estimated load of each resource manager, indexed by load
+	private LoadIndex resourceManagersLoad = null;
+	// the number of nodes of each resource manager, as told on joining
+	private ConcurrentHashMap<String, Integer> resourceManagerCapacities = null;
 
 	// the average load of all clusters connected to this GS node
 	private int averageLoad = 0;
 
 	private boolean jobReplicationEnabled = false;
+	// the RMs every replicated job was sent to, until it completes on one of them
+	private ConcurrentHashMap<Long, String[]> jobLocations = null;
+	private final AtomicLong cancelledCopies = new AtomicLong();
+
+	// the on-disk journal of the changes to the job queue, shared with the replica, or null
+	private volatile JobJournal journal = null;
+	// the period of the checkpoints of the state to the checkpoint file of the journal, taken
+	// by a task of their own, 0 if none are taken
+	private volatile long checkpointPeriod = 0;
+	private PeriodicTask checkpointTask = null;
+	// time the checkpoint task held the dispatch lock and the node to take the state
+	private final LatencyHistogram checkpointPauses = new LatencyHistogram();
+
+	// the changes to the job queue shipped to the replica, on the primary
+	private volatile ReplicationLog replicationLog = null;
+	private int replicationMaxLag = ReplicationLog.DEFAULT_MAX_LAG;
+	// on the replica: the session of the log its state comes from, the last record applied,
+	// and the queued jobs by id
+	private int replicationSession = 0;
+	private long appliedSequence = 0;
+	private HashMap<Long, Job> replicatedJobs = new HashMap<Long, Job>();
+	private final CRC32 replicationChecksum = new CRC32();
+	// the endpoint the replica answers to, see onReplyReplicateLog
+	private IMessageReceivedHandler replicationEndpoint = null;
 
 
 	// polling frequency, 1hz
-	private long pollSleep = 100;//1000
+	public static final long POLL_PERIOD = 100;
+	private long pollSleep = POLL_PERIOD;//1000
+
+	// query the load of all RMs with a single multicast LoadQuery per poll cycle
+	private boolean batchedLoadPolling = false;
+	// the load vector of the last batched query, applied when complete or at the next cycle
+	private volatile LoadVector pendingLoadVector = null;
+
+	// when positive, every RM is queried with its own call and the node waits until this
+	// fraction of them answered (or the poll period elapsed) before acting on the loads
+	private double loadPollQuorum = 0;
+	private long loadPollQuorumMisses = 0;
+
+	// credit-based flow control of the jobs offloaded by the RMs: the queued jobs and the
+	// credits granted but not used yet never exceed this limit, 0 disables flow control
+	private int offloadCreditLimit = 0;
+	// offload credits granted to every RM and not used yet
+	private final ConcurrentHashMap<String, Integer> offloadCredits = new ConcurrentHashMap<String, Integer>();
+
+	// when set, the RMs publish their load on their own and this node does not poll them
+	private LoadReportPolicy loadReportPolicy = null;
+
+	// a poll cycle sends jobs to RMs with fewer waiting jobs than MAX_DISPATCH_LOAD
+	private static final int MAX_DISPATCH_LOAD = 100;
+	// when set, queued jobs are also sent to the RMs without waiting jobs as soon as a job, a
+	// load or an RM arrives, rather than at the next poll cycle
+	private volatile CoalescingTask dispatchTask = null;
+	private static final int EAGER_DISPATCH_LOAD = 1;
+	// serializes the dispatch passes of the polling and event-driven tasks
+	private final Object dispatchLock = new Object();
+	// time from the arrival of a job in the queue until it was sent to an RM
+	private final LatencyHistogram dispatchLatencies = new LatencyHistogram();
+
+	// when positive, a job goes to the least loaded of this many RMs sampled at random rather
+	// than to the least loaded RM, so that the GS nodes acting on the same stale loads do not
+	// all pick the same RM
+	private volatile int dispatchChoices = 0;
+
+	// when set, a dispatch pass assigns the whole queue at once, leveling the loads per node
+	// of the RMs (see WaterFilling), rather than one job at a time to the least loaded RM
+	private volatile boolean batchDispatch = false;
+	// imbalance statistics: variance of the loads per node of the RMs before and after the
+	// dispatch pass of the poll cycles that sent jobs
+	private long dispatchCycles = 0;
+	private double totalVarianceBefore = 0;
+	private double totalVarianceAfter = 0;
+	private double lastVarianceBefore = 0;
+	private double lastVarianceAfter = 0;
+
+	// load polling statistics: time from the start of a poll cycle until the last load arrived
+	private volatile long loadPollStart = 0;
+	private volatile long lastLoadReceived = 0;
+	private long loadPollRounds = 0;
+	private long totalLoadPollLatency = 0;
 
 	// toggle for indicating the primary/replica GS node
 	private boolean isReplica;
 
 	private GridSchedulerNode replica = null;
 	
-	// polling thread
-	private Thread pollingThread;
-	private boolean running;
+	// polling task, on the threads of the execution model the node was created with
+	private PeriodicTask pollingTask;
+	private volatile boolean running;
+
+	// set while the node is down: it neither polls, nor sends heartbeats, nor handles messages
+	private volatile boolean failed = false;
+	private volatile long failureTime = 0;
+
+	// suspects the RMs whose heartbeats stopped, which are then no longer given jobs
+	private volatile PhiAccrualFailureDetector rmFailureDetector =
+			new PhiAccrualFailureDetector(PhiAccrualFailureDetector.DEFAULT_THRESHOLD, Cluster.POLL_PERIOD, this::onResourceManagerSuspected,
+					this::onResourceManagerRecovered);
 
 
 
@@ -77,13 +192,12 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 
 		// init members
 		this.address = address;
-
-
+		this.dispatcher = new MessageDispatcher(address);
+		registerMessageHandlers();
 
 		// start the polling thread
 		running =  !isReplica;
-		pollingThread = new Thread(this);
-		pollingThread.start();
+		pollingTask = ExecutionModel.getDefault().schedule(address, pollSleep, () -> running, this::poll);
 
 	}
 	/**
@@ -107,9 +221,13 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 
 		// init members
 		this.address = address;
-		this.resourceManagersLoad = new ConcurrentHashMap<String, Integer>();
+		this.dispatcher = new MessageDispatcher(address);
+		registerMessageHandlers();
+		this.resourceManagersLoad = new LoadIndex();
 		this.jobReplicationEnabled = jobReplicationEnabled;
 		this.jobQueue = new ConcurrentLinkedQueue<Job>();
+		this.jobLocations = new ConcurrentHashMap<Long, String[]>();
+		this.resourceManagerCapacities = new ConcurrentHashMap<String, Integer>();
 
 		// create a messaging syncSocket
 		LocalSocket lSocket = new LocalSocket();
@@ -121,20 +239,31 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 
 
 		replica.connectToReplica(this);
+		startReplication(true);
 
 
 		// start the polling thread
 		running = !isReplica;
-		pollingThread = new Thread(this);
-		pollingThread.start();
+		pollingTask = ExecutionModel.getDefault().schedule(address, pollSleep, () -> running, this::poll);
 
 	}
 
-	public void connectToReplica(GridSchedulerNode replica){
-		this.replica = replica;
-		this.jobQueue = replica.getJobQueue();
-		// take the reference of sync socket from the replica
-		this.syncSocket = replica.getSyncSocket();
+	/**
+	 * Makes this node the replica of <CODE>primary</CODE>. The replica keeps a job queue of its
+	 * own, which the primary keeps up to date by shipping the changes to it (see
+	 * ReplicationLog); the replica is reachable through the socket of the primary.
+	 * @param primary the primary
+	 */
+	public void connectToReplica(GridSchedulerNode primary){
+		this.replica = primary;
+		this.jobQueue = new ConcurrentLinkedQueue<Job>();
+		this.jobLocations = new ConcurrentHashMap<Long, String[]>();
+		this.resourceManagerCapacities = new ConcurrentHashMap<String, Integer>();
+		this.journal = primary.journal;
+		this.replicationMaxLag = primary.replicationMaxLag;
+		// take the reference of sync socket from the primary
+		this.syncSocket = primary.getSyncSocket();
+		this.syncSocket.addLocalEndpoint(address, this);
 	}
 
 	public ConcurrentLinkedQueue<Job> getJobQueue() {
@@ -168,6 +297,88 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 
 	}
 
+	/**
+	 * Makes this node fail: it stops polling, sending heartbeats and handling messages, until
+	 * <CODE>recover</CODE> is called. Its replica takes over once the supervisor suspects it.
+	 */
+	public void fail() {
+		failureTime = System.nanoTime();
+		failed = true;
+		running = false;
+		// the records not shipped yet are lost with the node
+		ReplicationLog log = replicationLog;
+		if (log != null) {
+			replicationLog = null;
+			log.close();
+		}
+	}
+
+	/**
+	 * Brings a failed node back up as the replica of the node that took over from it. Its
+	 * state is out of date, the node that took over replaces it once it notices the replica is
+	 * back (see ReplicationLog).
+	 */
+	public synchronized void recover() {
+		isReplica = true;
+		replicationSession = 0;
+		appliedSequence = 0;
+		syncSocket.addLocalEndpoint(address, this);
+		failed = false;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the System.nanoTime at which this node last failed, 0 if it never did
+	 */
+	public long getFailureTime() {
+		return failureTime;
+	}
+
+	/**
+	 * Promotes this replica to primary in place of <CODE>primary</CODE>, which failed: this
+	 * node takes over its socket and its RMs, and starts polling. The job queue is the one the
+	 * primary shipped its changes to, up to the last batch it sent, so nothing is copied; the
+	 * loads of the RMs are unknown until the first poll, which starts right away.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>this node must be the replica of <CODE>primary</CODE>
+	 * </DL>
+	 * @param primary the failed primary
+	 */
+	public void promote(GridSchedulerNode primary) {
+		assert(isReplica && replica == primary) : "only the replica of a node can take over from it";
+
+		LoadIndex loads = new LoadIndex();
+		for (String rmAddress : resourceManagerCapacities.keySet()) {
+			loads.put(rmAddress, LoadIndex.UNKNOWN);
+		}
+		this.resourceManagersLoad = loads;
+		replicatedJobs = new HashMap<Long, Job>();
+		ReplicationLog primaryLog = primary.replicationLog;
+		if (primaryLog != null) {
+			primary.replicationLog = null;
+			primaryLog.close();
+		}
+		primary.isReplica = true;
+		primary.running = false;
+		registerToSyncSocket(primary);
+		// the failed primary is the replica once it is back, it gets the state then
+		startReplication(false);
+
+		isReplica = false;
+		running = true;
+		pollingTask = ExecutionModel.getDefault().schedule(address, pollSleep, () -> running, this::poll);
+		requestDispatch();
+	}
+
+	public GridSchedulerNode getReplica() {
+		return replica;
+	}
+
 	public void registerToSyncSocket(GridSchedulerNode gsNode){
 		this.syncSocket = gsNode.getSyncSocket();
 		this.syncSocket.registerGridSchedulerAddress(this.address);
@@ -212,81 +423,590 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 		assert(message instanceof ControlMessage) : "parameter 'message' should be of type ControlMessage";
 		assert(message != null) : "parameter 'message' cannot be null";
 
-		ControlMessage controlMessage = (ControlMessage) message;
-		
-		// resource manager wants to join this grid scheduler 
-		// when a new RM is added, its load is set to Integer.MAX_VALUE to make sure
-		// no jobs are scheduled to it until we know the actual load
-		if (controlMessage.getType() == ControlMessageType.ResourceManagerJoin) {
-			resourceManagersLoad.put(controlMessage.getSource(), Integer.MAX_VALUE);
-			//logger.info("GS: " + controlMessage.getDestination() + " received a join request from RM: " + controlMessage.getSource());
-		}
-		// resource manager wants to offload a job to us
-		if (controlMessage.getType() == ControlMessageType.AddJob) {
-			//TODO log the GS also into the visited cluster
-			//logger.info("GS: " + this.getAddress() + " received job " + controlMessage.getJob().getId() + " from RM: " + controlMessage.getSource());
-			Job job = controlMessage.getJob();
-			job.addClusterToVisited(this.getAddress());
-			jobQueue.add(job);
-		}
-			
-		// one of the resource managers responded to a load request from this GS node
-		if (controlMessage.getType() == ControlMessageType.ReplyLoad) {
-			//logger.info("GS: " + controlMessage.getDestination() + " received the load of: " + controlMessage.getLoad() + "% from RM: " + controlMessage.getSource());
-			resourceManagersLoad.put(controlMessage.getSource(), controlMessage.getLoad());
-		}
-
-		// one of the resource managers responded to a job request from this GS node
-		if (controlMessage.getType() == ControlMessageType.ReplyJob){
-			//logger.info("GS: " + this.getAddress() + " received job " + controlMessage.getJob().getId() + " from RM: " + controlMessage.getSource());
-			Job job = controlMessage.getJob();
-			job.addClusterToVisited(this.getAddress());
-			jobQueue.add(controlMessage.getJob());
-		}
-
-		// one of the clusters notified the GS that it completed a job
-		if (controlMessage.getType() == ControlMessageType.NotifyJobCompletion){
-			//syncSocket.sendMessage(controlMessage,"localhost://placeholder"); //TODO this will no longer be necessary since the RMs are already notified
-			jobQueue.remove(controlMessage.getJob());
-			//TODO broadcast to all other GS nodes
-
-		}
-			
-		
+		if (failed) {
+			// a failed node loses the messages sent to it
+			return;
+		}
+		dispatcher.dispatch((ControlMessage) message);
 	}
 
-	// finds the least loaded resource manager and returns its address
-	private String getLeastLoadedRM() {
-		String ret = null; 
-		int minLoad = Integer.MAX_VALUE;
-		
-		// loop over all resource managers, and pick the one with the lowest load
-		for (String rmAddress : resourceManagersLoad.keySet()) {
-			if (resourceManagersLoad.get(rmAddress) <= minLoad) {
-				ret = rmAddress;
-				minLoad = resourceManagersLoad.get(rmAddress);
+	// hooks the handler of every message type this GS node understands into its dispatcher
+	private void registerMessageHandlers() {
+		dispatcher.register(ControlMessageType.ResourceManagerJoin, this::onResourceManagerJoin);
+		dispatcher.register(ControlMessageType.AddJob, this::onAddJob);
+		dispatcher.register(ControlMessageType.ReplyLoad, this::onReplyLoad);
+		dispatcher.register(ControlMessageType.NotifyLoad, this::onNotifyLoad);
+		dispatcher.register(ControlMessageType.ReplyLoadVector, this::onReplyLoadVector);
+		dispatcher.register(ControlMessageType.ReplyJob, this::onReplyJob);
+		dispatcher.register(ControlMessageType.NotifyJobCompletion, this::onNotifyJobCompletion);
+		dispatcher.register(ControlMessageType.Heartbeat, this::onHeartbeat);
+		dispatcher.register(ControlMessageType.ReplicateLog, this::onReplicateLog);
+	}
+
+	// resource manager wants to join this grid scheduler
+	// when a new RM is added, its load is set to Integer.MAX_VALUE to make sure
+	// no jobs are scheduled to it until we know the actual load
+	// the load of the join message is the number of nodes of the RM, if it tells
+	private void onResourceManagerJoin(ControlMessage controlMessage) {
+		resourceManagersLoad.put(controlMessage.getSource(), LoadIndex.UNKNOWN);
+		resourceManagerCapacities.put(controlMessage.getSource(), Math.max(1, controlMessage.getLoad()));
+		JobJournal journal = this.journal;
+		if (journal != null) {
+			journal.join(controlMessage.getSource(), Math.max(1, controlMessage.getLoad()));
+		}
+		ReplicationLog log = replicationLog;
+		if (log != null) {
+			log.join(controlMessage.getSource(), Math.max(1, controlMessage.getLoad()));
+		}
+		//logger.info("GS: " + controlMessage.getDestination() + " received a join request from RM: " + controlMessage.getSource());
+		requestDispatch();
+	}
+
+	// resource manager wants to offload a job to us
+	private void onAddJob(ControlMessage controlMessage) {
+		//TODO log the GS also into the visited cluster
+		//logger.info("GS: " + this.getAddress() + " received job " + controlMessage.getJob().getId() + " from RM: " + controlMessage.getSource());
+		Job job = controlMessage.getJob();
+		job.addClusterToVisited(this.getAddress());
+
+		// the RM used one of its credits
+		offloadCredits.computeIfPresent(controlMessage.getSource(), (rmAddress, credits) -> credits > 0 ? credits - 1 : 0);
+		addJob(job);
+	}
+
+	// one of the resource managers responded to a load request from this GS node
+	private void onReplyLoad(ControlMessage controlMessage) {
+		//logger.info("GS: " + controlMessage.getDestination() + " received the load of: " + controlMessage.getLoad() + "% from RM: " + controlMessage.getSource());
+		resourceManagersLoad.put(controlMessage.getSource(), controlMessage.getLoad());
+		lastLoadReceived = System.nanoTime();
+		requestDispatch();
+	}
+
+	// one of the resource managers published its load on its own
+	private void onNotifyLoad(ControlMessage controlMessage) {
+		resourceManagersLoad.put(controlMessage.getSource(), controlMessage.getLoad());
+		requestDispatch();
+	}
+
+	// all the resource managers answered a batched load query
+	private void onReplyLoadVector(ControlMessage controlMessage) {
+		LoadVector loadVector = controlMessage.getLoadVector();
+		if (loadVector.claim()) {
+			applyLoadVector(loadVector);
+			recordLoadPollLatency(loadVector.getLatency());
+		}
+	}
+
+	// one of the resource managers responded to a job request from this GS node
+	private void onReplyJob(ControlMessage controlMessage) {
+		//logger.info("GS: " + this.getAddress() + " received job " + controlMessage.getJob().getId() + " from RM: " + controlMessage.getSource());
+		Job job = controlMessage.getJob();
+		job.addClusterToVisited(this.getAddress());
+		addJob(job);
+	}
+
+	// one of the clusters notified the GS that it completed a job
+	private void onNotifyJobCompletion(ControlMessage controlMessage) {
+		// the other GS nodes and their RMs are subscribed to the completions as well
+		boolean queued = removeQueuedJob(controlMessage.getJob().getId());
+
+		// cancel the other copies of the job, if this node replicated it
+		String[] locations = jobLocations.remove(controlMessage.getJob().getId());
+		JobJournal journal = this.journal;
+		ReplicationLog log = replicationLog;
+		if (queued || locations != null) {
+			if (journal != null) {
+				journal.complete(controlMessage.getJob().getId());
+			}
+			if (log != null) {
+				log.complete(controlMessage.getJob().getId());
+			}
+		}
+		if (locations != null) {
+			for (String rmAddress : locations) {
+				if (!rmAddress.equals(controlMessage.getSource())) {
+					ControlMessage cancelMessage = ControlMessagePool.acquire(ControlMessageType.CancelJob);
+					cancelMessage.setSource(this.getAddress());
+					cancelMessage.setDestination(rmAddress);
+					cancelMessage.setJob(controlMessage.getJob());
+
+					syncSocket.sendMessage(cancelMessage);
+					cancelledCopies.incrementAndGet();
+				}
 			}
 		}
-		
-		return ret;		
 	}
 
-	// finds the least loaded resource manager and returns its address
-	private String getSecondLeastLoadedRM(String leastLoadedRM) {
+	// removes the queued job with the given id; the job of a completion is a decoded copy, and so
+	// are the jobs a promoted replica queued, so the queue is searched by id
+	private boolean removeQueuedJob(long jobId) {
+		for (Job job : jobQueue) {
+			if (job.getId() == jobId) {
+				// only the thread removing the instance itself records it
+				return jobQueue.remove(job);
+			}
+		}
+		return false;
+	}
 
-		String ret = null;
-		int minLoad = Integer.MAX_VALUE;
+	// the primary shipped a batch of changes to its queue: apply those that follow the last
+	// one applied, and tell the primary how far this replica is
+	private void onReplicateLog(ControlMessage controlMessage) {
+		if (!isReplica) {
+			// a late batch of the primary this node took over from
+			return;
+		}
+		ByteBuffer records = ByteBuffer.wrap(controlMessage.getPayload());
+		long sequence = controlMessage.getCorrelationId();
+		if (controlMessage.getLoad() != replicationSession) {
+			// a new log replaces the state only from its first record, the reset
+			if (sequence != 1 || !records.hasRemaining()) {
+				acknowledgeReplication(controlMessage.getSource());
+				return;
+			}
+			replicationSession = controlMessage.getLoad();
+			appliedSequence = 0;
+		}
+		if (sequence <= appliedSequence + 1) {
+			for (ByteBuffer record = QueueRecords.next(records, replicationChecksum); record != null;
+					record = QueueRecords.next(records, replicationChecksum), sequence++) {
+				if (sequence > appliedSequence) {
+					applyReplicatedRecord(record);
+					appliedSequence = sequence;
+				}
+			}
+		}
+		acknowledgeReplication(controlMessage.getSource());
+	}
 
-		// loop over all resource managers, and pick the one
-		// with the lowest load that hasn't been already chosen
-		for(String rmAddress : resourceManagersLoad.keySet()){
-			if (resourceManagersLoad.get(rmAddress) <= minLoad && !rmAddress.equals(leastLoadedRM)) {
-				ret = rmAddress;
-				minLoad = resourceManagersLoad.get(rmAddress);
+	private void applyReplicatedRecord(ByteBuffer record) {
+		byte type = record.get();
+		switch (type) {
+		case QueueRecords.ENQUEUE:
+			Job job = QueueRecords.readJob(record);
+			if (replicatedJobs.putIfAbsent(job.getId(), job) == null) {
+				job.setQueueTime(System.nanoTime());
+				jobQueue.add(job);
 			}
+			break;
+		case QueueRecords.DISPATCH:
+			long jobId = ControlMessageCodec.readVarLong(record);
+			String rmAddress = QueueRecords.readString(record);
+			removeReplicatedJob(jobId);
+			if (record.get() != 0) {
+				jobLocations.merge(jobId, new String[] {rmAddress}, GridSchedulerNode::concat);
+			}
+			break;
+		case QueueRecords.MIGRATE:
+			removeReplicatedJob(ControlMessageCodec.readVarLong(record));
+			break;
+		case QueueRecords.COMPLETE:
+			jobId = ControlMessageCodec.readVarLong(record);
+			removeReplicatedJob(jobId);
+			jobLocations.remove(jobId);
+			break;
+		case QueueRecords.JOIN:
+			rmAddress = QueueRecords.readString(record);
+			resourceManagerCapacities.put(rmAddress, ControlMessageCodec.readVarInt(record));
+			break;
+		case QueueRecords.RESET:
+			jobQueue.clear();
+			jobLocations.clear();
+			resourceManagerCapacities.clear();
+			replicatedJobs.clear();
+			break;
+		default:
+			throw new IllegalStateException("unknown replication record type " + type);
 		}
+	}
 
-		return ret;
+	private void removeReplicatedJob(long jobId) {
+		Job job = replicatedJobs.remove(jobId);
+		if (job != null) {
+			jobQueue.remove(job);
+		}
+	}
+
+	private void acknowledgeReplication(String primaryAddress) {
+		ControlMessage reply = ControlMessagePool.acquire(ControlMessageType.ReplyReplicateLog);
+		reply.setSource(address);
+		reply.setDestination(primaryAddress);
+		reply.setLoad(replicationSession);
+		reply.setCorrelationId(appliedSequence);
+		syncSocket.sendMessage(reply);
+	}
+
+	// the replica applied the changes up to the sequence number of the reply; the replies
+	// have an endpoint of their own, as the threads delivering the messages to this node may
+	// be the ones waiting for the replica, holding the lock of the node
+	private void onReplyReplicateLog(ControlMessage controlMessage) {
+		ReplicationLog log = replicationLog;
+		if (log != null && !isReplica && !failed) {
+			log.acknowledge(controlMessage.getLoad(), controlMessage.getCorrelationId());
+		}
+	}
+
+	private String getReplicationAddress() {
+		return address + "/replication";
+	}
+
+	// the transport of the replication log: a batch of records to the replica
+	private void shipRecords(int session, long firstSequence, byte[] records) {
+		if (failed) {
+			return;
+		}
+		ControlMessage cMessage = ControlMessagePool.acquire(ControlMessageType.ReplicateLog);
+		cMessage.setSource(getReplicationAddress());
+		cMessage.setDestination(replica.getAddress());
+		cMessage.setLoad(session);
+		cMessage.setCorrelationId(firstSequence);
+		cMessage.setPayload(records);
+		syncSocket.sendMessage(cMessage);
+	}
+
+	// starts a new replication log with a snapshot of the state of this node, once no pass
+	// of the dispatch or message handlers changes the state
+	private void startReplication(boolean attached) {
+		synchronized (dispatchLock) {
+			synchronized (this) {
+				ReplicationLog previous = replicationLog;
+				if (previous != null) {
+					previous.close();
+				}
+				if (replicationEndpoint == null) {
+					MessageDispatcher replies = new MessageDispatcher(getReplicationAddress());
+					replies.register(ControlMessageType.ReplyReplicateLog, this::onReplyReplicateLog);
+					replicationEndpoint = new IMessageReceivedHandler() {
+						public void onMessageReceived(Message message) {
+							replies.dispatch((ControlMessage) message);
+						}
+
+						public MessageDispatcher getDispatcher() {
+							return replies;
+						}
+					};
+				}
+				syncSocket.addLocalEndpoint(getReplicationAddress(), replicationEndpoint);
+				ReplicationLog log = new ReplicationLog(address, this::shipRecords, replicationMaxLag, attached);
+				log.snapshot(resourceManagerCapacities, jobLocations, jobQueue);
+				replicationLog = log;
+			}
+		}
+	}
+
+	/**
+	 * Bounds the number of changes to the job queue the replica may lag behind: the primary
+	 * waits for the replica once so many are not acknowledged. A primary starts a new
+	 * replication log with the new bound, beginning with a snapshot of its state.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>maxLag</CODE> must be positive
+	 * </DL>
+	 * @param maxLag the number of changes
+	 */
+	public void setReplicationMaxLag(int maxLag) {
+		assert(maxLag > 0) : "parameter 'maxLag' must be positive";
+		this.replicationMaxLag = maxLag;
+		if (replicationLog != null && !isReplica) {
+			startReplication(!replicationLog.isDetached());
+		}
+	}
+
+	/**
+	 * @return the log of the changes to the job queue shipped to the replica, on a primary, or null
+	 */
+	public ReplicationLog getReplicationLog() {
+		return replicationLog;
+	}
+
+	/**
+	 * @return on a replica, the sequence number of the last change to the job queue of its primary it applied
+	 */
+	public synchronized long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	/**
+	 * Makes this node checkpoint its state every <CODE>periodMillis</CODE> milliseconds, while it
+	 * is the primary and its journal has a checkpoint file, so that the journal is cut at the
+	 * checkpoints (see JobJournal.checkpoint). The checkpoints are taken by a task of their own:
+	 * the dispatch passes only wait while the state is taken, see getCheckpointPauses, and not
+	 * while it is encoded and written.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>periodMillis</CODE> cannot be negative
+	 * </DL>
+	 * @param periodMillis the time between two checkpoints, 0 to take none
+	 */
+	public synchronized void setCheckpointPeriod(long periodMillis) {
+		assert(periodMillis >= 0) : "parameter 'periodMillis' cannot be negative";
+
+		if (periodMillis == checkpointPeriod) {
+			return;
+		}
+		// the running task ends on its own
+		checkpointPeriod = periodMillis;
+		if (periodMillis > 0) {
+			checkpointTask = ExecutionModel.getDefault().schedule(address + "-checkpoint", periodMillis,
+					() -> checkpointPeriod == periodMillis, this::checkpoint);
+		}
+	}
+
+	// one checkpoint of the state, if this node is the primary
+	private void checkpoint() {
+		JobJournal journal = this.journal;
+		if (isReplica || failed || journal == null || journal.getCheckpointFile() == null) {
+			return;
+		}
+
+		long generation;
+		ByteBuffer queuedJobs;
+		HashMap<String, Integer> capacities;
+		HashMap<String, Integer> loads = new HashMap<String, Integer>();
+		HashMap<Long, String[]> locations;
+		synchronized (dispatchLock) {
+			synchronized (this) {
+				long start = System.nanoTime();
+				if (isReplica || failed || this.journal != journal) {
+					return;
+				}
+				generation = journal.mark();
+				// the jobs change once dispatched, so they are encoded as they are now
+				queuedJobs = journal.encodeQueue(jobQueue);
+				capacities = new HashMap<String, Integer>(resourceManagerCapacities);
+				String[] rmAddresses = resourceManagersLoad.getAddresses();
+				int[] rmLoads = resourceManagersLoad.getLoads(rmAddresses);
+				for (int i = 0; i < rmAddresses.length; i++) {
+					if (rmLoads[i] != LoadIndex.UNKNOWN) {
+						loads.put(rmAddresses[i], rmLoads[i]);
+					}
+				}
+				locations = new HashMap<Long, String[]>(jobLocations);
+				checkpointPauses.record(System.nanoTime() - start);
+			}
+		}
+		if (generation == 0) {
+			// the journal is closed
+			return;
+		}
+
+		try {
+			journal.checkpoint(generation, queuedJobs, capacities, loads, locations);
+		} catch (IOException ex) {
+			logger.error("GS node " + address + " could not write the checkpoint " + generation, ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the distribution of the time the dispatch passes of this node could not run as
+	 * the state was taken for a checkpoint, in nanoseconds
+	 */
+	public LatencyHistogram getCheckpointPauses() {
+		return checkpointPauses;
+	}
+
+	// one of the resource managers is alive
+	private void onHeartbeat(ControlMessage controlMessage) {
+		rmFailureDetector.heartbeat(controlMessage.getSource());
+	}
+
+	// the heartbeats of a resource manager stopped: stop giving it jobs
+	private void onResourceManagerSuspected(String rmAddress) {
+		resourceManagersLoad.remove(rmAddress);
+		offloadCredits.remove(rmAddress);
+		logger.warn("GS node " + address + " suspects RM " + rmAddress + " to have failed, "
+				+ rmFailureDetector.getLastDetectionTime() / 1000000 + " ms after its last heartbeat");
+	}
+
+	// a suspected resource manager is back, treat it like a new one until its load is known
+	private void onResourceManagerRecovered(String rmAddress) {
+		resourceManagersLoad.putIfAbsent(rmAddress, LoadIndex.UNKNOWN);
+		logger.warn("GS node " + address + " received a heartbeat of RM " + rmAddress + " again");
+		requestDispatch();
+	}
+
+	/**
+	 * Sets the suspicion level at which an RM is considered failed. The heartbeat history
+	 * gathered so far is discarded.
+	 * @param threshold the phi threshold, see PhiAccrualFailureDetector
+	 */
+	public void setFailureDetectionThreshold(double threshold) {
+		rmFailureDetector = new PhiAccrualFailureDetector(threshold, Cluster.POLL_PERIOD, this::onResourceManagerSuspected,
+				this::onResourceManagerRecovered);
+	}
+
+	/**
+	 * @return the failure detector of the RMs of this node
+	 */
+	public PhiAccrualFailureDetector getResourceManagerFailureDetector() {
+		return rmFailureDetector;
+	}
+
+	/**
+	 * @return the dispatcher of the incoming messages, which counts them per type
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	// copy the loads reported in the vector into the load table
+	private void applyLoadVector(LoadVector loadVector) {
+		for (int slot = 0; slot < loadVector.size(); slot++) {
+			if (loadVector.isReported(slot)) {
+				resourceManagersLoad.put(Endpoints.nameOf(loadVector.getEndpointId(slot)), loadVector.getLoad(slot));
+			}
+		}
+		requestDispatch();
+	}
+
+	private synchronized void recordLoadPollLatency(long latency) {
+		loadPollRounds++;
+		totalLoadPollLatency += latency;
+	}
+
+	/**
+	 * @return the average time between the start of a load poll and the arrival of the last load, in nanoseconds
+	 */
+	public synchronized long getAverageLoadPollLatency() {
+		return loadPollRounds > 0 ? totalLoadPollLatency / loadPollRounds : 0;
+	}
+
+	/**
+	 * @return the number of load poll cycles whose latency has been measured
+	 */
+	public synchronized long getLoadPollRounds() {
+		return loadPollRounds;
+	}
+
+	// send one RequestLoad to every resource manager
+	private void pollLoads() {
+		// the previous round is over once a new one starts
+		if (lastLoadReceived > loadPollStart && loadPollStart > 0) {
+			recordLoadPollLatency(lastLoadReceived - loadPollStart);
+		}
+		loadPollStart = System.nanoTime();
+
+		for (String rmAdress : resourceManagersLoad.getAddresses()) {
+
+			ControlMessage cMessage = ControlMessagePool.acquire(ControlMessageType.RequestLoad);
+
+			cMessage.setSource(this.getAddress());
+			cMessage.setDestination(rmAdress);
+
+			syncSocket.sendMessage(cMessage);
+		}
+	}
+
+	// multicast a single LoadQuery to all the resource managers
+	private void pollLoadsBatched() {
+		// RMs that did not answer the previous query in time do not hold back the others
+		LoadVector previous = pendingLoadVector;
+		if (previous != null && previous.claim()) {
+			applyLoadVector(previous);
+		}
+
+		LoadVector loadVector = syncSocket.newLoadVector();
+		if (loadVector.size() == 0) {
+			return;
+		}
+		pendingLoadVector = loadVector;
+
+		ControlMessage cMessage = ControlMessagePool.acquire(ControlMessageType.LoadQuery);
+		cMessage.setSource(this.getAddress());
+		cMessage.setLoadVector(loadVector);
+
+		syncSocket.sendMessage(cMessage);
+	}
+
+	// query every resource manager with its own call and wait until a quorum of them answered
+	private void pollLoadsQuorum() {
+		int rmCount = resourceManagersLoad.size();
+		if (rmCount == 0) {
+			return;
+		}
+		long start = System.nanoTime();
+
+		List<ControlMessage> requests = new ArrayList<ControlMessage>(rmCount);
+		for (String rmAdress : resourceManagersLoad.getAddresses()) {
+			ControlMessage cMessage = ControlMessagePool.acquire(ControlMessageType.RequestLoad);
+			cMessage.setSource(this.getAddress());
+			cMessage.setDestination(rmAdress);
+			requests.add(cMessage);
+		}
+
+		// every reply updates the load table, including the ones arriving after the quorum
+		List<CompletableFuture<Integer>> loads = new ArrayList<CompletableFuture<Integer>>(requests.size());
+		for (CompletableFuture<ControlMessage> call : syncSocket.getRpcClient().callAll(requests, pollSleep)) {
+			loads.add(call.thenApply(reply -> {
+				int load = reply.getLoad();
+				resourceManagersLoad.put(reply.getSource(), load);
+				reply.release();
+				requestDispatch();
+				return load;
+			}));
+		}
+
+		int quorum = (int) Math.ceil(loadPollQuorum * loads.size());
+		try {
+			RpcClient.quorum(loads, quorum).get(pollSleep, TimeUnit.MILLISECONDS);
+			recordLoadPollLatency(System.nanoTime() - start);
+		} catch (ExecutionException | TimeoutException ex) {
+			synchronized (this) {
+				loadPollQuorumMisses++;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Switches between polling every resource manager with its own RequestLoad and a single
+	 * multicast LoadQuery per poll cycle.
+	 * @param enabled true to use batched load polling
+	 */
+	public void setBatchedLoadPolling(boolean enabled) {
+		this.batchedLoadPolling = enabled;
+	}
+
+	/**
+	 * Makes this node query the load of every resource manager with its own call, and wait
+	 * at most one poll period until <CODE>quorum</CODE> of them answered before it schedules
+	 * jobs. Replies arriving later still update the load table.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>quorum</CODE> must be between 0 and 1
+	 * </DL>
+	 * @param quorum the fraction of resource managers to wait for, or 0 to disable quorum polling
+	 */
+	public void setLoadPollQuorum(double quorum) {
+		assert(quorum >= 0 && quorum <= 1) : "parameter 'quorum' must be between 0 and 1";
+		this.loadPollQuorum = quorum;
+	}
+
+	/**
+	 * @return the number of quorum polls in which too few resource managers answered in time
+	 */
+	public synchronized long getLoadPollQuorumMisses() {
+		return loadPollQuorumMisses;
+	}
+
+	/**
+	 * Makes the resource managers joining this node publish their load as decided by
+	 * <CODE>policy</CODE>. While a policy is set this node stops polling for loads and its
+	 * load table is only updated by the published loads.
+	 * @param policy the load report policy, or null to go back to polling
+	 */
+	public void setLoadReportPolicy(LoadReportPolicy policy) {
+		this.loadReportPolicy = policy;
+	}
+
+	public LoadReportPolicy getLoadReportPolicy() {
+		return loadReportPolicy;
 	}
 
 	private void sendReplicatedJob(String target, Job job){
@@ -301,37 +1021,56 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 			syncSocket.sendMessage(cMessage, "localsocket://" + target);
 			//logger.info("[GridSchedulerNode] GS " + this.getAddress() + " sends job " + cMessage.getJob().getId() + " to RM: " + target);
 
-			jobQueue.remove(job);
+			JobJournal journal = this.journal;
+			if (journal != null) {
+				journal.dispatch(job.getId(), target, jobReplicationEnabled);
+			}
+			ReplicationLog log = replicationLog;
+			if (log != null) {
+				log.dispatch(job.getId(), target, jobReplicationEnabled);
+			}
+
+			if (jobReplicationEnabled) {
+				// remember where the copies are, so that they can be cancelled on completion
+				jobLocations.merge(job.getId(), new String[] {target}, GridSchedulerNode::concat);
+			}
 
 			// increase the estimated load of that RM by 1 (because we just added a job)
-			int load = resourceManagersLoad.get(target);
-			resourceManagersLoad.put(target, load + 1);
+			resourceManagersLoad.add(target, 1);
 
 		}
 	}
 
-	public int getNumberOfNonReplicatedJobs(){
-		int nonReplicatedLoad = 0;
-		if(resourceManagersLoad != null) {
-			for (String rmAddress : resourceManagersLoad.keySet()) {
-				nonReplicatedLoad += resourceManagersLoad.get(rmAddress);
-			}
-		}
-		return nonReplicatedLoad;
+	private static String[] concat(String[] first, String[] second) {
+		String[] both = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		return both;
 	}
 
-	private int calculateAverageLoad(){
-		int average = 0;
+	/**
+	 * @return the number of replicated jobs whose copies have not been cancelled yet
+	 */
+	public int getTrackedReplicatedJobs() {
+		return jobLocations != null ? jobLocations.size() : 0;
+	}
 
-		for(String rmAddress : resourceManagersLoad.keySet()){
-			average += resourceManagersLoad.get(rmAddress);
-		}
-		//average /= (resourceManagersLoad.size() > 0 ? resourceManagersLoad.size() : 1);
-		if (resourceManagersLoad.size() == 0){
+	/**
+	 * @return the number of job copies cancelled because the job completed on another RM
+	 */
+	public long getCancelledCopies() {
+		return cancelledCopies.get();
+	}
+
+	public int getNumberOfNonReplicatedJobs(){
+		if(resourceManagersLoad == null) {
 			return 0;
 		}
-		average /= resourceManagersLoad.size();
-		return average;
+		return (int) Math.min(resourceManagersLoad.getTotalLoad(), Integer.MAX_VALUE);
+	}
+
+	// the RMs whose load is not known yet are left out
+	private int calculateAverageLoad(){
+		return resourceManagersLoad.getAverageLoad();
 	}
 
 	public void sendJobRequest(String target){
@@ -349,17 +1088,84 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 	}
 
 	private void requestJobFromRMwithHigherThanAverageLoad(int average) {
-		for(String rmAddress:resourceManagersLoad.keySet()){
-			if(resourceManagersLoad.get(rmAddress) > average){
+		// pulled jobs take room in the queue just like offloaded ones
+		int capacity = offloadCreditLimit > 0 ? getFreeQueueCapacity() : Integer.MAX_VALUE;
+		for(String rmAddress:resourceManagersLoad.getAddresses()){
+			if(capacity > 0 && resourceManagersLoad.get(rmAddress) > average){
 				sendJobRequest(rmAddress);
+				capacity--;
 			}
 		}
 
 	}
 
-	public Job getJobFromGsNodeJobQueue(){
+	// the number of jobs that can still enter the queue without exceeding the credit limit
+	private int getFreeQueueCapacity() {
+		int outstanding = 0;
+		for (int credits : offloadCredits.values()) {
+			outstanding += credits;
+		}
+		return offloadCreditLimit - jobQueue.size() - outstanding;
+	}
+
+	// hand the free room of the job queue out to the RMs as offload credits, at most a fair share each
+	private void grantOffloadCredits() {
+		int rmCount = resourceManagersLoad.size();
+		if (rmCount == 0) {
+			return;
+		}
+		int capacity = getFreeQueueCapacity();
+		int window = Math.max(1, offloadCreditLimit / rmCount);
+
+		for (String rmAddress : resourceManagersLoad.getAddresses()) {
+			if (capacity <= 0) {
+				break;
+			}
+			Integer credits = offloadCredits.get(rmAddress);
+			int grant = Math.min(window - (credits != null ? credits : 0), capacity);
+			if (grant <= 0) {
+				continue;
+			}
+			offloadCredits.merge(rmAddress, grant, Integer::sum);
+			capacity -= grant;
+
+			ControlMessage cMessage = ControlMessagePool.acquire(ControlMessageType.GrantCredits);
+			cMessage.setSource(this.getAddress());
+			cMessage.setDestination(rmAddress);
+			cMessage.setLoad(grant);
+
+			syncSocket.sendMessage(cMessage);
+		}
+	}
+
+	/**
+	 * Enables credit-based flow control of the jobs offloaded by the resource managers. This
+	 * node grants every resource manager credits for at most a fair share of <CODE>limit</CODE>,
+	 * and a resource manager offloads a job only against a credit. The job queue of this node
+	 * therefore never holds more than <CODE>limit</CODE> jobs.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>limit</CODE> cannot be negative
+	 * </DL>
+	 * @param limit the maximum number of queued jobs, or 0 to let the RMs offload without limit
+	 */
+	public void setOffloadCreditLimit(int limit) {
+		assert(limit >= 0) : "parameter 'limit' cannot be negative";
+		this.offloadCreditLimit = limit;
+	}
+
+	public int getOffloadCreditLimit() {
+		return offloadCreditLimit;
+	}
+
+	public synchronized Job getJobFromGsNodeJobQueue(){
 		for (Job job:jobQueue){
 			if (job.getStatus() == JobStatus.Waiting && !job.getIsReplicated()){
+				ReplicationLog log = replicationLog;
+				if (log != null) {
+					log.migrate(job.getId());
+				}
 				jobQueue.remove(job);
 				System.out.println("Migrated job: " + job.getId());
 				job.addClusterToVisited(this.getAddress());
@@ -369,70 +1175,432 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 		return null;
 	}
 
-	public void addJob(Job job){
+	/**
+	 * Records in the journal that a job taken with getJobFromGsNodeJobQueue is in the queue of
+	 * <CODE>target</CODE> now. The journal of the target is forced first, so that a crash in
+	 * between leaves the job in both journals rather than in neither.
+	 * @param job the migrated job
+	 * @param target the node the job was added to
+	 */
+	public void confirmMigration(Job job, GridSchedulerNode target) {
+		JobJournal journal = this.journal;
+		JobJournal targetJournal = target.getJournal();
+		if (journal == null || targetJournal == journal) {
+			// not journaled, or the job went back into this queue and was journaled again
+			return;
+		}
+		if (targetJournal != null) {
+			try {
+				targetJournal.sync();
+			} catch (IOException ex) {
+				// keep the job in this journal, a duplicate is better than a lost job
+				logger.error("GS node " + address + " could not make the migration of job " + job.getId() + " durable", ex);
+				return;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		journal.migrate(job.getId());
+	}
+
+	public synchronized void addJob(Job job){
+		job.setQueueTime(System.nanoTime());
+		JobJournal journal = this.journal;
+		if (journal != null) {
+			journal.enqueue(job);
+		}
+		ReplicationLog log = replicationLog;
+		if (log != null) {
+			log.enqueue(job);
+		}
 		this.jobQueue.add(job);
+		requestDispatch();
 	}
 
 	/**
-	 * Polling thread runner. This thread polls each resource manager in turn to get its load,
-	 * then offloads any job in the waiting queue to that resource manager
+	 * Makes this node and its replica journal every change to their job queue in
+	 * <CODE>journal</CODE>, after restoring what the journal recovered: the queued jobs, the
+	 * resource managers that joined, with the loads of the last checkpoint until the next poll,
+	 * unknown if there is none, and the resource managers holding the copies of replicated
+	 * jobs. Loads are not journaled, as they are stale after a restart anyway.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>this node must be a primary
+	 * </DL>
+	 * @param journal the journal, or null to stop journaling
+	 */
+	public synchronized void setJournal(JobJournal journal) {
+		assert(!isReplica) : "only a primary can restore its queue from a journal";
+
+		if (journal != null) {
+			JobJournal.Recovery recovery = journal.getRecovery();
+			// the replica gets the recovered state as if it just happened
+			ReplicationLog log = replicationLog;
+			for (Map.Entry<String, Integer> rm : recovery.getResourceManagers().entrySet()) {
+				if (log != null) {
+					log.join(rm.getKey(), rm.getValue());
+				}
+				resourceManagerCapacities.put(rm.getKey(), rm.getValue());
+				Integer load = recovery.getResourceManagerLoads().get(rm.getKey());
+				resourceManagersLoad.putIfAbsent(rm.getKey(), load != null ? load : LoadIndex.UNKNOWN);
+			}
+			for (Map.Entry<Long, String[]> location : recovery.getJobLocations().entrySet()) {
+				if (log != null) {
+					for (String rmAddress : location.getValue()) {
+						log.dispatch(location.getKey(), rmAddress, true);
+					}
+				}
+				jobLocations.put(location.getKey(), location.getValue());
+			}
+			for (Job job : recovery.getQueuedJobs()) {
+				if (log != null) {
+					log.enqueue(job);
+				}
+				job.setQueueTime(System.nanoTime());
+				jobQueue.add(job);
+			}
+			if (recovery.getRecords() > 0 || recovery.getCheckpointGeneration() > 0) {
+				logger.warn("GS node " + address + " recovered " + recovery.getQueuedJobs().size() + " queued jobs and "
+						+ recovery.getResourceManagers().size() + " RMs from checkpoint " + recovery.getCheckpointGeneration()
+						+ " and " + recovery.getRecords() + " journal records in " + recovery.getReplayTime() / 1000000 + " ms");
+			}
+		}
+		this.journal = journal;
+		if (replica != null) {
+			replica.journal = journal;
+		}
+		requestDispatch();
+	}
+
+	public JobJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Switches between dispatching the queued jobs once per poll cycle only and also
+	 * dispatching them as soon as something happens that may let them go: a job entering the
+	 * queue, a new load of an RM, or an RM joining. Bursts of such events are coalesced into a
+	 * single pass over the queue (see CoalescingTask).
+	 * <p>
+	 * The event-driven passes only send jobs to RMs without waiting jobs, which start them
+	 * right away. Jobs that would only wait in the queue of a busy RM are left to the poll
+	 * cycle, as before, so that meanwhile the supervisor can move them to a less loaded grid
+	 * scheduler node.
+	 * @param enabled true to dispatch on events
 	 */
-	public void run() {
-		while (running) {
-			// send a message to each resource manager, requesting its load
-			for (String rmAdress : resourceManagersLoad.keySet()) {
+	public synchronized void setEventDrivenDispatch(boolean enabled) {
+		if (enabled && dispatchTask == null) {
+			dispatchTask = new CoalescingTask(address, this::dispatchJobsEagerly);
+			requestDispatch();
+		} else if (!enabled && dispatchTask != null) {
+			dispatchTask.close();
+			dispatchTask = null;
+		}
+	}
 
-				ControlMessage cMessage = new ControlMessage(ControlMessageType.RequestLoad);
+	public boolean isEventDrivenDispatch() {
+		return dispatchTask != null;
+	}
 
-				cMessage.setSource(this.getAddress());
-				cMessage.setDestination(rmAdress);
+	// let the dispatch task look at the queue, if dispatch is event-driven and there is anything to dispatch
+	private void requestDispatch() {
+		CoalescingTask task = dispatchTask;
+		if (task != null && jobQueue != null && !jobQueue.isEmpty()) {
+			task.trigger();
+		}
+	}
 
-				syncSocket.sendMessage(cMessage, "localsocket://" + rmAdress);
-			}
+	/**
+	 * @return the distribution of the time from the arrival of a job in the queue of this node
+	 * until it was sent to an RM, in nanoseconds
+	 */
+	public LatencyHistogram getDispatchLatencies() {
+		return dispatchLatencies;
+	}
 
-			// TODO take the job from the RM that has a load higher than the average of all
-			// RMs and dispach it to the RM that has a load lower than the average of all connected RMs
-			averageLoad = calculateAverageLoad();
+	/**
+	 * One cycle of the polling task. It polls each resource manager in turn to get its load,
+	 * then offloads any job in the waiting queue to that resource manager
+	 */
+	private void poll() {
+		// let the supervisor know this node is alive
+		Socket.heartbeat(address);
+
+		// the replica is back after it was detached, it gets the state anew
+		ReplicationLog log = replicationLog;
+		if (log != null && log.isResyncRequested()) {
+			startReplication(true);
+		}
+
+		// suspect the RMs whose heartbeats stopped
+		rmFailureDetector.check();
+
+		// send a message to each resource manager, requesting its load,
+		// unless the resource managers publish it on their own
+		if (loadReportPolicy != null) {
+			// nothing to poll
+		} else if (loadPollQuorum > 0) {
+			pollLoadsQuorum();
+		} else if (batchedLoadPolling) {
+			pollLoadsBatched();
+		} else {
+			pollLoads();
+		}
 
-			requestJobFromRMwithHigherThanAverageLoad(averageLoad);
+		// TODO take the job from the RM that has a load higher than the average of all
+		// RMs and dispach it to the RM that has a load lower than the average of all connected RMs
+		averageLoad = calculateAverageLoad();
 
+		requestJobFromRMwithHigherThanAverageLoad(averageLoad);
 
-			//TODO verify that the RM can accept any more jobs
 
+		//TODO verify that the RM can accept any more jobs
 
-			// schedule waiting messages to the different clusters
-			for (Job job : jobQueue) {
 
-				String leastLoadedRM = getLeastLoadedRM();
-				// check the load to be less than 100%
-				if(resourceManagersLoad.get(leastLoadedRM) < 100) {
-					sendReplicatedJob(leastLoadedRM, job);
+		// schedule waiting messages to the different clusters
+		dispatchJobs();
+
+		// let the RMs offload as many jobs as were dispatched
+		if (offloadCreditLimit > 0) {
+			grantOffloadCredits();
+		}
+	}
+
+	// the dispatch pass of a poll cycle, which reports how much it leveled the loads per node
+	private void dispatchJobs() {
+		synchronized (dispatchLock) {
+			if (!running || failed || jobQueue.isEmpty()) {
+				return;
+			}
+			String[] rmAddresses = resourceManagersLoad.getKnownAddresses();
+			int[] loads = resourceManagersLoad.getLoads(rmAddresses);
+			int[] capacities = getCapacities(rmAddresses);
+
+			List<String> targets = batchDispatch
+					? dispatchJobsLeveled(rmAddresses, loads, capacities, MAX_DISPATCH_LOAD)
+					: dispatchJobsGreedily(MAX_DISPATCH_LOAD);
+			if (!targets.isEmpty()) {
+				// the loads the RMs report meanwhile are left out, the pass did not cause them
+				HashMap<String, Integer> indexOf = new HashMap<String, Integer>();
+				for (int i = 0; i < rmAddresses.length; i++) {
+					indexOf.put(rmAddresses[i], i);
 				}
-				if(jobReplicationEnabled) {
-					// replicate the job on at least one more cluster simultaneously
-					if (resourceManagersLoad.size() > 1) {
-						String secondLeastLoadedRM = getSecondLeastLoadedRM(leastLoadedRM);
-						// check the load to be less than 100%
-						if (resourceManagersLoad.get(secondLeastLoadedRM) < 100) {
-							sendReplicatedJob(secondLeastLoadedRM, job);
-						}
+				int[] added = new int[rmAddresses.length];
+				for (String target : targets) {
+					Integer i = indexOf.get(target);
+					if (i != null) {
+						added[i]++;
 					}
 				}
+				recordImbalance(WaterFilling.variance(loads, capacities, null), WaterFilling.variance(loads, capacities, added));
+			}
+		}
+	}
 
+	// dispatch pass of the event-driven mode, which only fills the RMs without waiting jobs,
+	// one job each, so there is nothing to level
+	private void dispatchJobsEagerly() {
+		synchronized (dispatchLock) {
+			if (running && !failed) {
+				dispatchJobsGreedily(EAGER_DISPATCH_LOAD);
 			}
+		}
+	}
 
+	// send queued jobs to the least loaded RM(s) as long as their load stays below loadLimit,
+	// counting every job in the load of its RM, and return the RMs of the copies sent
+	private List<String> dispatchJobsGreedily(int loadLimit) {
+		List<String> targets = new ArrayList<String>();
+		for (Iterator<Job> it = jobQueue.iterator(); it.hasNext(); ) {
+			Job job = it.next();
+
+			// replicate the job on at least one more cluster simultaneously
+			String[] leastLoadedRMs = selectResourceManagers(jobReplicationEnabled ? 2 : 1, loadLimit);
+			// check the load to be below the limit, if the least loaded RM is full all of them are
+			if (leastLoadedRMs.length == 0 || resourceManagersLoad.get(leastLoadedRMs[0]) >= loadLimit) {
+				// no RM is available
+				break;
+			}
+			sendReplicatedJob(leastLoadedRMs[0], job);
+			targets.add(leastLoadedRMs[0]);
+			if (leastLoadedRMs.length > 1 && resourceManagersLoad.get(leastLoadedRMs[1]) < loadLimit) {
+				sendReplicatedJob(leastLoadedRMs[1], job);
+				targets.add(leastLoadedRMs[1]);
+			}
+			it.remove();
+			recordDispatchLatency(job);
+		}
+		return targets;
+	}
 
+	// the RMs to send the next job to: the least loaded of a sample of dispatchChoices RMs, or
+	// the least loaded of all if the sampled ones are full or sampling is off
+	private String[] selectResourceManagers(int count, int loadLimit) {
+		int choices = dispatchChoices;
+		if (choices > 0) {
+			String[] sampled = resourceManagersLoad.getLeastLoadedOfSample(Math.max(choices, count), count, ThreadLocalRandom.current());
+			if (sampled.length > 0 && resourceManagersLoad.get(sampled[0]) < loadLimit) {
+				return sampled;
+			}
+		}
+		return resourceManagersLoad.getLeastLoaded(count);
+	}
 
-			// sleep
-			try
-			{
-				Thread.sleep(pollSleep);
-			} catch (InterruptedException ex) {
-				assert(false) : "Grid scheduler runtread was interrupted";
+	// the whole queue at once: the jobs, and their copies if replicated, are spread so that
+	// the loads per node of the RMs end up level; returns the RMs of the copies sent
+	// loadLimit applies to an RM of average size, the limit of the others is in proportion to
+	// their number of nodes, or the small RMs would get as many jobs as the large ones when
+	// the queue is longer than the room of all of them
+	private List<String> dispatchJobsLeveled(String[] rmAddresses, int[] loads, int[] capacities, int loadLimit) {
+		long totalCapacity = 0;
+		for (int capacity : capacities) {
+			totalCapacity += capacity;
+		}
+		int[] room = new int[rmAddresses.length];
+		long totalRoom = 0;
+		for (int i = 0; i < room.length; i++) {
+			long limit = (long) Math.ceil((double) loadLimit * capacities[i] * room.length / totalCapacity);
+			room[i] = (int) Math.max(0, Math.min(Integer.MAX_VALUE, limit) - loads[i]);
+			totalRoom += room[i];
+		}
+		int jobs = (int) Math.min(jobQueue.size(), totalRoom);
+		if (jobs == 0) {
+			return new ArrayList<String>();
+		}
+
+		int copies = jobs;
+		if (jobReplicationEnabled) {
+			// no RM holds more copies than there are jobs, so that the two copies of a job
+			// always land on different RMs (see below)
+			long copyRoom = 0;
+			for (int i = 0; i < room.length; i++) {
+				room[i] = Math.min(room[i], jobs);
+				copyRoom += room[i];
 			}
-			
+			copies = (int) Math.min(2L * jobs, copyRoom);
 		}
-		
+		int[] assigned = WaterFilling.assign(loads, capacities, room, copies);
+
+		// lay the copies out RM after RM; job j gets copy j and, if there is one, copy j + jobs,
+		// which are on different RMs as every RM has at most 'jobs' consecutive copies
+		String[] targets = new String[copies];
+		int copy = 0;
+		for (int i = 0; i < assigned.length; i++) {
+			for (int a = 0; a < assigned[i]; a++) {
+				targets[copy++] = rmAddresses[i];
+			}
+		}
+
+		List<String> sent = new ArrayList<String>();
+		Iterator<Job> it = jobQueue.iterator();
+		for (int j = 0; j < jobs && it.hasNext(); j++) {
+			Job job = it.next();
+			sendReplicatedJob(targets[j], job);
+			sent.add(targets[j]);
+			if (j + jobs < copies) {
+				sendReplicatedJob(targets[j + jobs], job);
+				sent.add(targets[j + jobs]);
+			}
+			it.remove();
+			recordDispatchLatency(job);
+		}
+		return sent;
+	}
+
+	private void recordDispatchLatency(Job job) {
+		long queueTime = job.getQueueTime();
+		if (queueTime > 0) {
+			dispatchLatencies.record(System.nanoTime() - queueTime);
+		}
+	}
+
+	// RMs that did not tell their number of nodes count as a single node
+	private int[] getCapacities(String[] rmAddresses) {
+		int[] capacities = new int[rmAddresses.length];
+		for (int i = 0; i < capacities.length; i++) {
+			capacities[i] = resourceManagerCapacities.getOrDefault(rmAddresses[i], 1);
+		}
+		return capacities;
+	}
+
+	private synchronized void recordImbalance(double varianceBefore, double varianceAfter) {
+		dispatchCycles++;
+		totalVarianceBefore += varianceBefore;
+		totalVarianceAfter += varianceAfter;
+		lastVarianceBefore = varianceBefore;
+		lastVarianceAfter = varianceAfter;
+		if (logger.isDebugEnabled()) {
+			logger.debug("GS node " + address + " poll cycle: load variance per node " + varianceBefore + " -> " + varianceAfter);
+		}
+	}
+
+	/**
+	 * Switches between assigning the queued jobs one at a time to the least loaded resource
+	 * manager and assigning them all at once, so that the loads per node of the resource
+	 * managers end up as level as possible (see WaterFilling). Batch assignment weighs the load
+	 * of every resource manager by the number of nodes of its cluster.
+	 * @param enabled true to assign the queue in batches
+	 */
+	public void setBatchDispatch(boolean enabled) {
+		this.batchDispatch = enabled;
+	}
+
+	public boolean isBatchDispatch() {
+		return batchDispatch;
+	}
+
+	/**
+	 * Makes the jobs dispatched one at a time go to the least loaded of <CODE>choices</CODE>
+	 * resource managers sampled at random (power of d choices) instead of the least loaded of
+	 * all. The loads this node knows are up to a poll period old; when several schedulers act
+	 * on such loads, always picking the least loaded sends all their jobs to the same resource
+	 * manager, while two or three random choices already spread them. Jobs only go to the least
+	 * loaded of all when every sampled resource manager is full. The batch assignment of a poll
+	 * cycle (see setBatchDispatch) is not affected.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>choices</CODE> cannot be negative
+	 * </DL>
+	 * @param choices the number of resource managers sampled per job, or 0 to pick the least loaded one
+	 */
+	public void setDispatchChoices(int choices) {
+		assert(choices >= 0) : "parameter 'choices' cannot be negative";
+		this.dispatchChoices = choices;
+	}
+
+	public int getDispatchChoices() {
+		return dispatchChoices;
+	}
+
+	/**
+	 * @return the number of poll cycles that sent jobs, over which the variances are averaged
+	 */
+	public synchronized long getDispatchCycles() {
+		return dispatchCycles;
+	}
+
+	/**
+	 * @return the average variance of the loads per node of the RMs before the dispatch pass of a poll cycle
+	 */
+	public synchronized double getAverageVarianceBeforeDispatch() {
+		return dispatchCycles > 0 ? totalVarianceBefore / dispatchCycles : 0;
+	}
+
+	/**
+	 * @return the average variance of the loads per node of the RMs after the dispatch pass of a poll cycle
+	 */
+	public synchronized double getAverageVarianceAfterDispatch() {
+		return dispatchCycles > 0 ? totalVarianceAfter / dispatchCycles : 0;
+	}
+
+	/**
+	 * @return the variance of the loads per node of the RMs before and after the last poll cycle that sent jobs
+	 */
+	public synchronized double[] getLastDispatchVariance() {
+		return new double[] {lastVarianceBefore, lastVarianceAfter};
 	}
 
 
@@ -446,10 +1614,42 @@ public class GridSchedulerNode implements IMessageReceivedHandler, Runnable {
 	public void stopPollThread() {
 		running = false;
 		try {
-			pollingThread.join();
+			pollingTask.join();
 		} catch (InterruptedException ex) {
 			assert(false) : "Grid scheduler stopPollThread was interrupted";
 		}
+		setEventDrivenDispatch(false);
+
+		PeriodicTask task;
+		synchronized (this) {
+			task = checkpointTask;
+			checkpointTask = null;
+			checkpointPeriod = 0;
+		}
+		if (task != null) {
+			try {
+				task.join();
+			} catch (InterruptedException ex) {
+				assert(false) : "Grid scheduler stopPollThread was interrupted";
+			}
+		}
+
+		ReplicationLog log = replicationLog;
+		if (log != null) {
+			replicationLog = null;
+			log.close();
+		}
+
+		// write what is left of the journal, the replica shares it
+		JobJournal journal = this.journal;
+		if (journal != null) {
+			journal.close();
+		}
+
+		// stop the mailbox consumers of the socket, if any
+		if (syncSocket != null) {
+			syncSocket.close();
+		}
 		
 	}
 
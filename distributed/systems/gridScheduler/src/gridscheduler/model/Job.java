@@ -2,6 +2,7 @@ package gridscheduler.model;
 
 import org.apache.log4j.Logger;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 
 
@@ -12,13 +13,23 @@ import java.util.ArrayList;
  * @author Niels Brouwers
  *
  */
-public class Job {
+public class Job implements Serializable {
+
+	private static final long serialVersionUID = 2296851722472957201L;
+
 	private long duration;
 	private JobStatus status;
 	private long id;
 	private ArrayList<String> visitedClusters = null;
 	private boolean isReplicated;
 
+	// input and output data files, named relative to the spool directory of the cluster
+	// holding them, see StagingService
+	private ArrayList<String> dataFiles = null;
+	private volatile String dataLocation = null;
+	// when the job entered the queue of a grid scheduler node, in System.nanoTime, not sent along
+	private transient volatile long queueTime = 0;
+
 	private final static Logger logger = Logger.getLogger(Job.class.getName());
 
 	//Experiment data
@@ -53,6 +64,14 @@ public class Job {
 		this.run_time = 0;
 	}
 
+	/**
+	 * Returns the clusters and grid scheduler nodes this job has visited, in order.
+	 * @return the live list of visited endpoints
+	 */
+	ArrayList<String> getVisitedClusters() {
+		return visitedClusters;
+	}
+
 	public void addClusterToVisited(String cluster){
 		visitedClusters.add(cluster);
 		//logger.info("Cluster: " + cluster + " was added to Job " + this.getId() + " visited queue.");
@@ -128,4 +147,47 @@ public class Job {
 	public void setIsReplicated(boolean isReplicated){
 		this.isReplicated = isReplicated;
 	}
+
+	/**
+	 * Adds a data file to this job. The file follows the job to the cluster that runs it.
+	 * @param name the name of the file, relative to the spool directory of its cluster
+	 */
+	public void addDataFile(String name){
+		if(dataFiles == null){
+			dataFiles = new ArrayList<>(2);
+		}
+		dataFiles.add(name);
+	}
+
+	/**
+	 * Returns the data files of this job.
+	 * @return the live list of data file names, or null if the job has no data
+	 */
+	ArrayList<String> getDataFiles() {
+		return dataFiles;
+	}
+
+	public boolean hasData(){
+		return dataFiles != null && !dataFiles.isEmpty();
+	}
+
+	/**
+	 * @return the name of the cluster whose spool directory holds the data files, or null if
+	 * it is the cluster the job was submitted to
+	 */
+	public String getDataLocation(){
+		return dataLocation;
+	}
+
+	public void setDataLocation(String cluster){
+		this.dataLocation = cluster;
+	}
+
+	long getQueueTime(){
+		return queueTime;
+	}
+
+	void setQueueTime(long queueTime){
+		this.queueTime = queueTime;
+	}
 }
@@ -0,0 +1,874 @@
+package gridscheduler.model;
+
+import core.ExecutionModel;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes to the job queue of a grid scheduler node, so that the
+ * queue survives a restart of the node.
+ * <p>
+ * Every change is a record: a job entering the queue, a copy of a job sent to a resource
+ * manager, a job moved to another grid scheduler node, a job completed, or a resource manager
+ * joining. Appending a record only encodes it into a buffer in memory; a flusher thread writes
+ * the buffer to the file and forces it to disk, and all the records appended while a force is
+ * going on are made durable by the next one (group commit). The cost of a force is thereby
+ * shared by all the records of a batch, however many threads append them. A caller that must
+ * know a record is on disk waits for it with <CODE>awaitDurable</CODE>; the others never wait
+ * for the disk, and lose at most the records of one force if the process dies.
+ * <p>
+ * Every record carries its length and a CRC32 checksum, so that a record torn by a crash is
+ * recognized. Opening a journal replays it into a Recovery: the jobs still queued, the
+ * resource managers that joined and the resource managers holding the copies of replicated
+ * jobs. A torn tail is dropped, and the journal is rewritten with just the recovered state so
+ * that it does not grow across restarts.
+ * <p>
+ * A journal can instead be cut at checkpoints (see CheckpointFile). A checkpoint is marked in
+ * the journal while the state it holds is taken, and once the checkpoint is on disk the flusher
+ * drops the records before the marker. Opening the journal then loads the newest checkpoint and
+ * replays only the records after its marker, so that neither the replay nor the rewrite grows
+ * with the size of the queue.
+ */
+public class JobJournal {
+
+	// appending waits while this many bytes wait to be written
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private FileChannel channel;
+	private final Recovery recovery;
+
+	// the records appended since the last swap, and those being written by the flusher
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appendedCondition = lock.newCondition();
+	private final Condition flushedCondition = lock.newCondition();
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	// payload of the record being appended
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	private final CRC32 checksum = new CRC32();
+
+	// sequence numbers of the last record appended and of the last one forced to disk
+	private long appended = 0;
+	private long durable = 0;
+	private IOException failure = null;
+	private boolean open = true;
+	private final Thread flusher;
+
+	// the checkpoints the journal is cut at, null if it is compacted on opening instead
+	private final CheckpointFile checkpointFile;
+	// the state as laid out by the last checkpoint
+	private final QueueImage image = new QueueImage();
+	// the buffer the queue was last encoded into for a checkpoint, to encode the next one into
+	private final AtomicReference<ByteBuffer> spareQueue = new AtomicReference<ByteBuffer>();
+	// serializes the checkpoints
+	private final Object checkpointLock = new Object();
+	// the last checkpoint marked: its generation, the sequence number of its marker, and the
+	// offset of the marker in the pending buffer until it is written, then in the file
+	private long markedGeneration = 0;
+	private long markedSequence = 0;
+	private int markedBufferOffset = -1;
+	private long markedFileOffset = -1;
+	// the flusher cuts the journal at the marker of this checkpoint, once it is on disk
+	private long cutGeneration = 0;
+	// the size of the file, as written by the flusher
+	private long fileSize = 0;
+
+	// statistics
+	private long commits = 0;
+	private long committedRecords = 0;
+	private long committedBytes = 0;
+	private long totalCommitTime = 0;
+	private long cuts = 0;
+	private long cutBytes = 0;
+
+	private final static Logger logger = Logger.getLogger(JobJournal.class.getName());
+
+	/**
+	 * Opens the journal in <CODE>file</CODE>, creating it if it does not exist, and replays it.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>file</CODE> cannot be null
+	 * </DL>
+	 * @param file the journal file
+	 * @throws IOException if the journal could not be read or rewritten
+	 */
+	public JobJournal(File file) throws IOException {
+		this(file, null);
+	}
+
+	/**
+	 * Opens the journal in <CODE>file</CODE>, creating it if it does not exist, and replays it
+	 * after the newest checkpoint in <CODE>checkpointFile</CODE>, see <CODE>checkpoint</CODE>.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>file</CODE> cannot be null
+	 * </DL>
+	 * @param file the journal file
+	 * @param checkpointFile the checkpoints the journal is cut at, null to compact the journal
+	 * on opening instead
+	 * @throws IOException if the journal could not be read or rewritten
+	 */
+	public JobJournal(File file, CheckpointFile checkpointFile) throws IOException {
+		assert(file != null) : "parameter 'file' cannot be null";
+
+		this.file = file;
+		this.checkpointFile = checkpointFile;
+		this.recovery = replay(file, checkpointFile);
+		if (checkpointFile == null) {
+			compact();
+		} else if (recovery.droppedBytes > 0) {
+			// the records before the marker are dropped by the next checkpoint
+			try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				out.truncate(recovery.journalBytes);
+				out.force(false);
+			}
+		}
+		if (checkpointFile != null) {
+			markedGeneration = checkpointFile.getGeneration();
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileSize = channel.size();
+
+		flusher = ExecutionModel.getDefault().newThread("journal-" + file.getName(), this::flush);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return the state replayed from the journal when it was opened
+	 */
+	public Recovery getRecovery() {
+		return recovery;
+	}
+
+	/**
+	 * Records that <CODE>job</CODE> entered the queue.
+	 * @param job the job
+	 * @return the sequence number of the record, see awaitDurable
+	 */
+	public long enqueue(Job job) {
+		lock.lock();
+		try {
+			if (!awaitRoom()) {
+				return appended;
+			}
+			scratch = QueueRecords.encodeJob(scratch, job);
+			return append(QueueRecords.ENQUEUE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a copy of a job left the queue for a resource manager.
+	 * @param jobId the id of the job
+	 * @param rmAddress the resource manager the copy was sent to
+	 * @param tracked true if the resource manager is remembered as holding a copy of the job, so
+	 * that the copy can be cancelled once the job completes elsewhere
+	 * @return the sequence number of the record, see awaitDurable
+	 */
+	public long dispatch(long jobId, String rmAddress, boolean tracked) {
+		lock.lock();
+		try {
+			if (!awaitRoom()) {
+				return appended;
+			}
+			scratch = QueueRecords.encodeDispatch(scratch, jobId, rmAddress, tracked);
+			return append(QueueRecords.DISPATCH);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a job left the queue for another grid scheduler node.
+	 * @param jobId the id of the job
+	 * @return the sequence number of the record, see awaitDurable
+	 */
+	public long migrate(long jobId) {
+		return appendJobId(QueueRecords.MIGRATE, jobId);
+	}
+
+	/**
+	 * Records that a job completed, so that neither it nor its copies are recovered.
+	 * @param jobId the id of the job
+	 * @return the sequence number of the record, see awaitDurable
+	 */
+	public long complete(long jobId) {
+		return appendJobId(QueueRecords.COMPLETE, jobId);
+	}
+
+	/**
+	 * Records that a resource manager joined.
+	 * @param rmAddress the address of the resource manager
+	 * @param capacity its number of nodes
+	 * @return the sequence number of the record, see awaitDurable
+	 */
+	public long join(String rmAddress, int capacity) {
+		lock.lock();
+		try {
+			if (!awaitRoom()) {
+				return appended;
+			}
+			scratch = QueueRecords.encodeJoin(scratch, rmAddress, capacity);
+			return append(QueueRecords.JOIN);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long appendJobId(byte type, long jobId) {
+		lock.lock();
+		try {
+			if (!awaitRoom()) {
+				return appended;
+			}
+			scratch = QueueRecords.encodeJobId(scratch, jobId);
+			return append(type);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// waits until the pending records fit in memory again; false once the journal is closed,
+	// as nothing the node does while shutting down has to be recovered
+	private boolean awaitRoom() {
+		while (open && pending.position() >= MAX_PENDING_BYTES) {
+			flushedCondition.awaitUninterruptibly();
+		}
+		return open;
+	}
+
+	// frames the payload in the scratch buffer as a record of the pending buffer
+	private long append(byte type) {
+		pending = QueueRecords.frame(type, scratch, pending, checksum);
+		appended++;
+		appendedCondition.signal();
+		return appended;
+	}
+
+	/**
+	 * Waits until the record with sequence number <CODE>sequence</CODE>, and all the records
+	 * before it, are on disk.
+	 * @param sequence the sequence number returned by appending the record
+	 * @throws IOException if the journal could not be written
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 */
+	public void awaitDurable(long sequence) throws IOException, InterruptedException {
+		lock.lock();
+		try {
+			while (durable < sequence && failure == null && flusher.isAlive()) {
+				flushedCondition.await();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all the records appended so far are on disk.
+	 * @throws IOException if the journal could not be written
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 */
+	public void sync() throws IOException, InterruptedException {
+		long sequence;
+		lock.lock();
+		try {
+			sequence = appended;
+		} finally {
+			lock.unlock();
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Marks the checkpoint of the state as it is now, after the records appended so far and
+	 * before the next ones. The caller takes the state while no record can be appended, and
+	 * then writes it with <CODE>checkpoint</CODE>.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>the journal must have been opened with a checkpoint file
+	 * </DL>
+	 * @return the generation of the checkpoint, 0 if the journal is closed
+	 */
+	public long mark() {
+		assert(checkpointFile != null) : "the journal has no checkpoint file";
+
+		lock.lock();
+		try {
+			if (!open) {
+				return 0;
+			}
+			markedGeneration++;
+			markedBufferOffset = pending.position();
+			markedFileOffset = -1;
+			scratch = QueueRecords.encodeGeneration(scratch, markedGeneration);
+			markedSequence = append(QueueRecords.CHECKPOINT);
+			return markedGeneration;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes the queued jobs for a checkpoint. The caller encodes them with the rest of the
+	 * state it takes after <CODE>mark</CODE>, while neither the queue nor the jobs in it can
+	 * change, so that <CODE>checkpoint</CODE> writes the jobs as they were when it was marked.
+	 * The checksums of the records are left to <CODE>checkpoint</CODE>, which also takes the
+	 * buffer back for the next call.
+	 * @param queuedJobs the jobs in the queue, in order
+	 * @return the jobs as ENQUEUE records
+	 */
+	public ByteBuffer encodeQueue(Iterable<Job> queuedJobs) {
+		ByteBuffer records = spareQueue.getAndSet(null);
+		if (records == null) {
+			records = ByteBuffer.allocate(4096);
+		}
+		records.clear();
+		ByteBuffer payload = ByteBuffer.allocate(256);
+		for (Job job : queuedJobs) {
+			payload = QueueRecords.encodeJob(payload, job);
+			records = QueueRecords.frame(QueueRecords.ENQUEUE, payload, records, null);
+		}
+		records.flip();
+		return records;
+	}
+
+	/**
+	 * Writes the checkpoint marked with <CODE>mark</CODE>, and has the records before its marker
+	 * dropped from the journal once it is on disk. Only the part of the checkpoint file that
+	 * changed since the previous checkpoints is written (see QueueImage). A checkpoint that is
+	 * not the last one marked is not written, as a later one replaces it.
+	 * @param generation the generation returned by <CODE>mark</CODE>
+	 * @param queuedJobs the jobs in the queue as returned by <CODE>encodeQueue</CODE>
+	 * @param resourceManagers the number of nodes of every resource manager that joined
+	 * @param loads the load of every resource manager, if known
+	 * @param jobLocations the resource managers holding the copies of every replicated job
+	 * @throws IOException if the journal or the checkpoint could not be written
+	 * @throws InterruptedException if the calling thread was interrupted while waiting for the
+	 * marker to be on disk
+	 */
+	public void checkpoint(long generation, ByteBuffer queuedJobs, Map<String, Integer> resourceManagers,
+			Map<String, Integer> loads, Map<Long, String[]> jobLocations) throws IOException, InterruptedException {
+		synchronized (checkpointLock) {
+			try {
+				long sequence;
+				lock.lock();
+				try {
+					if (!open || generation != markedGeneration) {
+						return;
+					}
+					sequence = markedSequence;
+				} finally {
+					lock.unlock();
+				}
+				// the marker must be on disk before the checkpoint, so that the tail after it is found
+				awaitDurable(sequence);
+
+				image.update(queuedJobs, resourceManagers, loads, jobLocations);
+				checkpointFile.write(generation, image.getRing(), image.getPosition(), image.getLength());
+
+				lock.lock();
+				try {
+					cutGeneration = generation;
+					appendedCondition.signal();
+				} finally {
+					lock.unlock();
+				}
+			} finally {
+				// the buffer of the records serves the next encodeQueue
+				spareQueue.set(queuedJobs);
+			}
+		}
+	}
+
+	// the marker of the checkpoint to cut the journal at is in the file
+	private boolean isCutDue() {
+		return cutGeneration != 0 && cutGeneration == markedGeneration && markedFileOffset >= 0;
+	}
+
+	// the flusher: writes and forces the pending records, batch after batch
+	private void flush() {
+		while (true) {
+			long batchEnd;
+			long batchRecords;
+			long cutOffset = -1;
+			lock.lock();
+			try {
+				while (open && pending.position() == 0 && !isCutDue()) {
+					appendedCondition.awaitUninterruptibly();
+				}
+				if (isCutDue()) {
+					cutOffset = markedFileOffset;
+					cutGeneration = 0;
+				} else if (pending.position() == 0) {
+					// closed and everything written
+					return;
+				}
+				ByteBuffer batch = pending;
+				pending = writing;
+				writing = batch;
+				if (markedBufferOffset >= 0) {
+					markedFileOffset = fileSize + markedBufferOffset;
+					markedBufferOffset = -1;
+				}
+				batchRecords = appended - durable;
+				batchEnd = appended;
+				// the appenders waiting for room can go on
+				flushedCondition.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			if (cutOffset >= 0) {
+				try {
+					cut(cutOffset);
+				} catch (IOException ex) {
+					// the journal is still whole, it is cut at the next checkpoint
+					logger.error("Could not cut the journal " + file, ex);
+					cutOffset = -1;
+				}
+			}
+
+			long start = System.nanoTime();
+			int bytes = writing.position();
+			IOException error = null;
+			try {
+				writing.flip();
+				while (writing.hasRemaining()) {
+					channel.write(writing);
+				}
+				if (bytes > 0) {
+					channel.force(false);
+				}
+			} catch (IOException ex) {
+				logger.error("Could not write the journal " + file, ex);
+				error = ex;
+			}
+			writing.clear();
+
+			lock.lock();
+			try {
+				if (error != null && failure == null) {
+					failure = error;
+				}
+				if (cutOffset >= 0) {
+					fileSize -= cutOffset;
+					markedFileOffset -= cutOffset;
+					cuts++;
+					cutBytes += cutOffset;
+				}
+				fileSize += bytes;
+				durable = batchEnd;
+				if (bytes > 0) {
+					commits++;
+					committedRecords += batchRecords;
+					committedBytes += bytes;
+					totalCommitTime += System.nanoTime() - start;
+				}
+				flushedCondition.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// replaces the journal at once with its records from the marker at 'offset' on, those
+	// before it being in the checkpoint
+	private void cut(long offset) throws IOException {
+		File tail = new File(file.getPath() + ".cut");
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(tail.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			for (long copied = 0; copied < size - offset; ) {
+				copied += in.transferTo(offset + copied, size - offset - copied, out);
+			}
+			out.force(false);
+		}
+		Files.move(tail.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory();
+		channel.close();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Writes the records appended so far and closes the journal; later records are dropped.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (!open) {
+				return;
+			}
+			open = false;
+			appendedCondition.signalAll();
+			flushedCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+			channel.close();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ex) {
+			logger.error("Could not close the journal " + file, ex);
+		}
+		if (checkpointFile != null) {
+			// after the checkpoint being written, if any
+			synchronized (checkpointLock) {
+				checkpointFile.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of forces to disk, each of which made a batch of records durable
+	 */
+	public long getCommits() {
+		lock.lock();
+		try {
+			return commits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the average number of records made durable by a force
+	 */
+	public double getAverageBatchSize() {
+		lock.lock();
+		try {
+			return commits > 0 ? (double) committedRecords / commits : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the average time a batch took to write and force, in nanoseconds
+	 */
+	public long getAverageCommitTime() {
+		lock.lock();
+		try {
+			return commits > 0 ? totalCommitTime / commits : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCommittedBytes() {
+		lock.lock();
+		try {
+			return committedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of times the records before a checkpoint were dropped
+	 */
+	public long getCuts() {
+		lock.lock();
+		try {
+			return cuts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the bytes of the records dropped as they were in a checkpoint
+	 */
+	public long getCutBytes() {
+		lock.lock();
+		try {
+			return cutBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the checkpoints the journal is cut at, null if it is compacted on opening instead
+	 */
+	public CheckpointFile getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String toString() {
+		return "JobJournal {file = " + file + ", commits = " + getCommits() + ", batch = " + getAverageBatchSize()
+				+ ", commit = " + getAverageCommitTime() / 1000 + " us" + (checkpointFile != null ? ", cuts = " + getCuts() : "") + "}";
+	}
+
+	// replay
+
+	private static Recovery replay(File file, CheckpointFile checkpointFile) throws IOException {
+		Recovery recovery = new Recovery();
+		long start = System.nanoTime();
+		CRC32 checksum = new CRC32();
+		ByteBuffer image = checkpointFile != null ? checkpointFile.getRecoveredImage() : null;
+		if (image != null) {
+			recovery.checkpointGeneration = checkpointFile.getGeneration();
+			for (ByteBuffer record = QueueRecords.next(image, checksum); record != null; record = QueueRecords.next(image, checksum)) {
+				recovery.applyCheckpoint(record);
+			}
+		}
+		if (file.exists()) {
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer records = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+				records.position(findTail(records, recovery.checkpointGeneration, checksum));
+				if (records.position() == 0 && recovery.checkpointGeneration != 0 && records.hasRemaining()) {
+					// the records are replayed again, which leaves the state as they left it
+					logger.warn("The journal " + file + " has no marker of the checkpoint " + recovery.checkpointGeneration
+							+ ", replaying all of it");
+				}
+				for (ByteBuffer record = QueueRecords.next(records, checksum); record != null; record = QueueRecords.next(records, checksum)) {
+					recovery.apply(record);
+					recovery.records++;
+				}
+				recovery.journalBytes = records.position();
+				recovery.droppedBytes = records.remaining();
+			}
+		}
+		recovery.replayTime = System.nanoTime() - start;
+		if (recovery.droppedBytes > 0) {
+			logger.warn("Dropped the torn tail of " + recovery.droppedBytes + " bytes of the journal " + file);
+		}
+		return recovery;
+	}
+
+	// the position of the first record after the marker of the checkpoint, 0 if there is none
+	private static int findTail(ByteBuffer records, long generation, CRC32 checksum) {
+		if (generation == 0) {
+			return 0;
+		}
+		for (ByteBuffer record = QueueRecords.next(records, checksum); record != null; record = QueueRecords.next(records, checksum)) {
+			if (record.get() == QueueRecords.CHECKPOINT && ControlMessageCodec.readVarLong(record) == generation) {
+				return records.position();
+			}
+		}
+		return 0;
+	}
+
+	// rewrites the journal with the recovered state only, replacing the old one at once
+	private void compact() throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		for (Map.Entry<String, Integer> rm : recovery.resourceManagers.entrySet()) {
+			scratch = QueueRecords.encodeJoin(scratch, rm.getKey(), rm.getValue());
+			out = QueueRecords.frame(QueueRecords.JOIN, scratch, out, checksum);
+		}
+		for (Map.Entry<Long, String[]> location : recovery.jobLocations.entrySet()) {
+			for (String rmAddress : location.getValue()) {
+				scratch = QueueRecords.encodeDispatch(scratch, location.getKey(), rmAddress, true);
+				out = QueueRecords.frame(QueueRecords.DISPATCH, scratch, out, checksum);
+			}
+		}
+		for (Job job : recovery.queuedJobs.values()) {
+			scratch = QueueRecords.encodeJob(scratch, job);
+			out = QueueRecords.frame(QueueRecords.ENQUEUE, scratch, out, checksum);
+		}
+
+		File compacted = new File(file.getPath() + ".compact");
+		try (FileChannel channel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.flip();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+			channel.force(false);
+		}
+		Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory();
+	}
+
+	// makes a rename in the directory of the journal durable, where directories can be forced
+	private void forceDirectory() {
+		File directory = file.getAbsoluteFile().getParentFile();
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ex) {
+			// not supported on this platform
+		}
+	}
+
+	/**
+	 * The state of a grid scheduler node recovered from its journal.
+	 */
+	public static final class Recovery {
+
+		private final LinkedHashMap<Long, Job> queuedJobs = new LinkedHashMap<Long, Job>();
+		private final LinkedHashMap<String, Integer> resourceManagers = new LinkedHashMap<String, Integer>();
+		private final HashMap<Long, String[]> jobLocations = new HashMap<Long, String[]>();
+		private final LinkedHashMap<String, Integer> resourceManagerLoads = new LinkedHashMap<String, Integer>();
+		private long checkpointGeneration = 0;
+		private long checkpointRecords = 0;
+		private long records = 0;
+		private long journalBytes = 0;
+		private long droppedBytes = 0;
+		private long replayTime = 0;
+
+		private Recovery() {
+		}
+
+		// a record of the image of a checkpoint, which lists the copies of the jobs after the jobs
+		private void applyCheckpoint(ByteBuffer record) {
+			byte type = record.get(record.position());
+			if (type == QueueRecords.PADDING) {
+				return;
+			}
+			checkpointRecords++;
+			if (type == QueueRecords.DISPATCH) {
+				record.get();
+				long jobId = ControlMessageCodec.readVarLong(record);
+				addLocation(jobId, QueueRecords.readString(record));
+				return;
+			}
+			apply(record);
+		}
+
+		private void addLocation(long jobId, String rmAddress) {
+			String[] locations = jobLocations.get(jobId);
+			if (locations != null && Arrays.asList(locations).contains(rmAddress)) {
+				return;
+			}
+			locations = locations != null ? Arrays.copyOf(locations, locations.length + 1) : new String[1];
+			locations[locations.length - 1] = rmAddress;
+			jobLocations.put(jobId, locations);
+		}
+
+		private void apply(ByteBuffer record) {
+			byte type = record.get();
+			switch (type) {
+			case QueueRecords.ENQUEUE:
+				Job job = QueueRecords.readJob(record);
+				queuedJobs.put(job.getId(), job);
+				break;
+			case QueueRecords.DISPATCH:
+				long jobId = ControlMessageCodec.readVarLong(record);
+				String rmAddress = QueueRecords.readString(record);
+				queuedJobs.remove(jobId);
+				if (record.get() != 0) {
+					addLocation(jobId, rmAddress);
+				}
+				break;
+			case QueueRecords.MIGRATE:
+				queuedJobs.remove(ControlMessageCodec.readVarLong(record));
+				break;
+			case QueueRecords.COMPLETE:
+				jobId = ControlMessageCodec.readVarLong(record);
+				queuedJobs.remove(jobId);
+				jobLocations.remove(jobId);
+				break;
+			case QueueRecords.JOIN:
+				rmAddress = QueueRecords.readString(record);
+				resourceManagers.put(rmAddress, ControlMessageCodec.readVarInt(record));
+				break;
+			case QueueRecords.LOAD:
+				rmAddress = QueueRecords.readString(record);
+				resourceManagerLoads.put(rmAddress, ControlMessageCodec.readVarInt(record));
+				break;
+			case QueueRecords.CHECKPOINT:
+			case QueueRecords.PADDING:
+				break;
+			default:
+				throw new IllegalStateException("unknown journal record type " + type);
+			}
+		}
+
+		/**
+		 * @return the jobs that were still queued, in the order they entered the queue
+		 */
+		public Collection<Job> getQueuedJobs() {
+			return queuedJobs.values();
+		}
+
+		/**
+		 * @return the number of nodes of every resource manager that joined, by address
+		 */
+		public Map<String, Integer> getResourceManagers() {
+			return resourceManagers;
+		}
+
+		/**
+		 * @return the load of every resource manager when the checkpoint was taken, by address
+		 */
+		public Map<String, Integer> getResourceManagerLoads() {
+			return resourceManagerLoads;
+		}
+
+		/**
+		 * @return the generation of the checkpoint the state was loaded from, 0 if there was none
+		 */
+		public long getCheckpointGeneration() {
+			return checkpointGeneration;
+		}
+
+		/**
+		 * @return the number of records loaded from the checkpoint
+		 */
+		public long getCheckpointRecords() {
+			return checkpointRecords;
+		}
+
+		/**
+		 * @return the resource managers holding the copies of every replicated job that did not complete
+		 */
+		public Map<Long, String[]> getJobLocations() {
+			return jobLocations;
+		}
+
+		/**
+		 * @return the number of journal records replayed
+		 */
+		public long getRecords() {
+			return records;
+		}
+
+		/**
+		 * @return the size of the torn tail dropped from the journal, in bytes
+		 */
+		public long getDroppedBytes() {
+			return droppedBytes;
+		}
+
+		/**
+		 * @return the time loading the checkpoint and replaying the journal took, in nanoseconds
+		 */
+		public long getReplayTime() {
+			return replayTime;
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package gridscheduler.model;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * The estimated loads of the resource managers of a grid scheduler node, kept in an indexed
+ * binary min-heap.
+ * <p>
+ * Every resource manager has an entry that knows its position in the heap, so a new load, a
+ * job dispatched to a resource manager or its removal costs O(log n), and the least loaded
+ * resource manager is found in O(1). The k least loaded ones are found in O(k log k) by
+ * walking down the heap from its root. The total of the known loads is kept along, so that
+ * the average load costs O(1) too.
+ * <p>
+ * A load of <CODE>UNKNOWN</CODE> marks a resource manager whose load has not been reported
+ * yet; it sorts last and does not count in the total. All the methods are synchronized, as
+ * the loads are updated by the message handlers and read by the polling task.
+ */
+public class LoadIndex {
+
+	public static final int UNKNOWN = Integer.MAX_VALUE;
+
+	private static final class Entry {
+		final String address;
+		int load;
+		int position;
+
+		Entry(String address, int load) {
+			this.address = address;
+			this.load = load;
+		}
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private Entry[] heap = new Entry[16];
+	private int size = 0;
+
+	// total of the known loads and number of resource managers with a known load
+	private long totalLoad = 0;
+	private int knownLoads = 0;
+
+	// reused by getLeastLoadedOfSample, so that sampling does not allocate: the pairs of heap
+	// positions swapped by the shuffle, and the sampled entries
+	private int[] swaps = new int[8];
+	private Entry[] sample = new Entry[4];
+
+	public LoadIndex() {
+	}
+
+	/**
+	 * Creates a copy of <CODE>other</CODE>.
+	 * @param other the index to copy
+	 */
+	public LoadIndex(LoadIndex other) {
+		synchronized (other) {
+			for (int i = 0; i < other.size; i++) {
+				put(other.heap[i].address, other.heap[i].load);
+			}
+		}
+	}
+
+	/**
+	 * Sets the load of a resource manager, which is added if it is not in the index yet.
+	 * @param address the address of the resource manager
+	 * @param load its load, or <CODE>UNKNOWN</CODE>
+	 */
+	public synchronized void put(String address, int load) {
+		Entry entry = entries.get(address);
+		if (entry == null) {
+			insert(new Entry(address, load));
+		} else {
+			update(entry, load);
+		}
+	}
+
+	/**
+	 * Adds a resource manager with the given load, unless it is in the index already.
+	 * @param address the address of the resource manager
+	 * @param load its load, or <CODE>UNKNOWN</CODE>
+	 */
+	public synchronized void putIfAbsent(String address, int load) {
+		if (!entries.containsKey(address)) {
+			insert(new Entry(address, load));
+		}
+	}
+
+	/**
+	 * Adds <CODE>delta</CODE> to the load of a resource manager, e.g. 1 for a job sent to it.
+	 * Unknown loads and resource managers not in the index are left alone.
+	 * @param address the address of the resource manager
+	 * @param delta the change of its load
+	 */
+	public synchronized void add(String address, int delta) {
+		Entry entry = entries.get(address);
+		if (entry != null && entry.load != UNKNOWN) {
+			update(entry, entry.load + delta);
+		}
+	}
+
+	/**
+	 * @param address the address of a resource manager
+	 * @return true if the resource manager was in the index
+	 */
+	public synchronized boolean remove(String address) {
+		Entry entry = entries.remove(address);
+		if (entry == null) {
+			return false;
+		}
+		count(entry.load, -1);
+		Entry last = heap[--size];
+		heap[size] = null;
+		if (last != entry) {
+			place(last, entry.position);
+			siftDown(last);
+			siftUp(last);
+		}
+		return true;
+	}
+
+	/**
+	 * @param address the address of a resource manager
+	 * @return its load, <CODE>UNKNOWN</CODE> if it is not known or the resource manager is not in the index
+	 */
+	public synchronized int get(String address) {
+		Entry entry = entries.get(address);
+		return entry != null ? entry.load : UNKNOWN;
+	}
+
+	/**
+	 * @return the address of the least loaded resource manager, or null if the index is empty
+	 */
+	public synchronized String getLeastLoaded() {
+		return size > 0 ? heap[0].address : null;
+	}
+
+	/**
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>k</CODE> must be positive
+	 * </DL>
+	 * @param k the number of resource managers wanted
+	 * @return the addresses of the <CODE>k</CODE> least loaded resource managers, or of all of
+	 * them if there are fewer, from the least loaded on
+	 */
+	public synchronized String[] getLeastLoaded(int k) {
+		assert(k > 0) : "parameter 'k' must be positive";
+
+		int count = Math.min(k, size);
+		String[] addresses = new String[count];
+		if (count == 0) {
+			return addresses;
+		}
+		// the next least loaded entry is always a child of one taken already, so the
+		// candidates form a frontier of at most k + 1 heap positions, kept as a min-heap
+		int[] frontier = new int[count + 1];
+		int frontierSize = 0;
+		frontier[frontierSize++] = 0;
+		for (int i = 0; i < count; i++) {
+			int position = frontier[0];
+			frontier[0] = frontier[--frontierSize];
+			siftDownFrontier(frontier, frontierSize, 0);
+			addresses[i] = heap[position].address;
+
+			for (int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++) {
+				if (frontierSize < frontier.length) {
+					frontier[frontierSize] = child;
+					siftUpFrontier(frontier, frontierSize++);
+				}
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Samples <CODE>d</CODE> different resource managers at random and returns the
+	 * <CODE>k</CODE> least loaded of them, so that schedulers acting on the same stale loads
+	 * do not all pick the same least loaded resource manager (power of d choices).
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameters <CODE>d</CODE> and <CODE>k</CODE> must be positive, <CODE>k</CODE> at most <CODE>d</CODE>
+	 * </DL>
+	 * @param d the number of resource managers to sample
+	 * @param k the number of resource managers wanted
+	 * @param random the source of the samples
+	 * @return the addresses of the <CODE>k</CODE> least loaded sampled resource managers, or of
+	 * all of them if there are fewer, from the least loaded on
+	 */
+	public synchronized String[] getLeastLoadedOfSample(int d, int k, Random random) {
+		assert(d > 0 && k > 0 && k <= d) : "parameters 'd' and 'k' must be positive, 'k' at most 'd'";
+
+		int count = Math.min(d, size);
+		if (sample.length < count) {
+			sample = new Entry[count];
+			swaps = new int[2 * count];
+		}
+		// a partial Fisher-Yates shuffle of the heap positions, of which only the swapped ones
+		// are remembered, so that a sample costs O(d^2) whatever the number of resource
+		// managers; d is small, so the swaps are searched linearly
+		int swapped = 0;
+		for (int i = 0; i < count; i++) {
+			int j = i + random.nextInt(size - i);
+			int atJ = swappedPosition(j, swapped);
+			int atI = swappedPosition(i, swapped);
+			sample[i] = heap[atJ];
+			// position j now holds what position i held
+			int pair = 0;
+			while (pair < swapped && swaps[2 * pair] != j) {
+				pair++;
+			}
+			if (pair == swapped) {
+				swaps[2 * pair] = j;
+				swapped++;
+			}
+			swaps[2 * pair + 1] = atI;
+		}
+		// insertion sort of the sample by load, d is small
+		for (int i = 1; i < count; i++) {
+			Entry entry = sample[i];
+			int j = i - 1;
+			while (j >= 0 && sample[j].load > entry.load) {
+				sample[j + 1] = sample[j];
+				j--;
+			}
+			sample[j + 1] = entry;
+		}
+		String[] addresses = new String[Math.min(k, count)];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = sample[i].address;
+		}
+		for (int i = 0; i < count; i++) {
+			sample[i] = null;
+		}
+		return addresses;
+	}
+
+	// the heap position the shuffle moved to 'position', or 'position' itself if it was not swapped
+	private int swappedPosition(int position, int swapped) {
+		for (int pair = 0; pair < swapped; pair++) {
+			if (swaps[2 * pair] == position) {
+				return swaps[2 * pair + 1];
+			}
+		}
+		return position;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the sum of the known loads
+	 */
+	public synchronized long getTotalLoad() {
+		return totalLoad;
+	}
+
+	/**
+	 * @return the average of the known loads, 0 if none is known
+	 */
+	public synchronized int getAverageLoad() {
+		return knownLoads > 0 ? (int) (totalLoad / knownLoads) : 0;
+	}
+
+	/**
+	 * @return the addresses of the resource managers, in no particular order
+	 */
+	public synchronized String[] getAddresses() {
+		String[] addresses = new String[size];
+		for (int i = 0; i < size; i++) {
+			addresses[i] = heap[i].address;
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the addresses of the resource managers whose load is known, in no particular order
+	 */
+	public synchronized String[] getKnownAddresses() {
+		String[] addresses = new String[knownLoads];
+		int known = 0;
+		for (int i = 0; i < size; i++) {
+			if (heap[i].load != UNKNOWN) {
+				addresses[known++] = heap[i].address;
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>addresses</CODE> cannot be null
+	 * </DL>
+	 * @param addresses the addresses of resource managers
+	 * @return their loads at the same moment, <CODE>UNKNOWN</CODE> for those not in the index
+	 */
+	public synchronized int[] getLoads(String[] addresses) {
+		assert(addresses != null) : "parameter 'addresses' cannot be null";
+
+		int[] loads = new int[addresses.length];
+		for (int i = 0; i < loads.length; i++) {
+			Entry entry = entries.get(addresses[i]);
+			loads[i] = entry != null ? entry.load : UNKNOWN;
+		}
+		return loads;
+	}
+
+	private void insert(Entry entry) {
+		if (size == heap.length) {
+			Entry[] grown = new Entry[size * 2];
+			System.arraycopy(heap, 0, grown, 0, size);
+			heap = grown;
+		}
+		entries.put(entry.address, entry);
+		count(entry.load, 1);
+		place(entry, size++);
+		siftUp(entry);
+	}
+
+	private void update(Entry entry, int load) {
+		count(entry.load, -1);
+		int previous = entry.load;
+		entry.load = load;
+		count(load, 1);
+		if (load < previous) {
+			siftUp(entry);
+		} else if (load > previous) {
+			siftDown(entry);
+		}
+	}
+
+	private void count(int load, int sign) {
+		if (load != UNKNOWN) {
+			totalLoad += sign * (long) load;
+			knownLoads += sign;
+		}
+	}
+
+	private void place(Entry entry, int position) {
+		heap[position] = entry;
+		entry.position = position;
+	}
+
+	private void siftUp(Entry entry) {
+		int position = entry.position;
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (heap[parent].load <= entry.load) {
+				break;
+			}
+			place(heap[parent], position);
+			position = parent;
+		}
+		place(entry, position);
+	}
+
+	private void siftDown(Entry entry) {
+		int position = entry.position;
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1].load < heap[child].load) {
+				child++;
+			}
+			if (heap[child].load >= entry.load) {
+				break;
+			}
+			place(heap[child], position);
+			position = child;
+		}
+		place(entry, position);
+	}
+
+	// the frontier of getLeastLoaded is a min-heap of heap positions ordered by load
+
+	private void siftUpFrontier(int[] frontier, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[frontier[parent]].load <= heap[frontier[i]].load) {
+				break;
+			}
+			swap(frontier, i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDownFrontier(int[] frontier, int frontierSize, int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= frontierSize) {
+				break;
+			}
+			if (child + 1 < frontierSize && heap[frontier[child + 1]].load < heap[frontier[child]].load) {
+				child++;
+			}
+			if (heap[frontier[child]].load >= heap[frontier[i]].load) {
+				break;
+			}
+			swap(frontier, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int tmp = array[i];
+		array[i] = array[j];
+		array[j] = tmp;
+	}
+
+	public synchronized String toString() {
+		return "LoadIndex {size = " + size + ", average = " + getAverageLoad()
+				+ ", least loaded = " + getLeastLoaded() + "}";
+	}
+}
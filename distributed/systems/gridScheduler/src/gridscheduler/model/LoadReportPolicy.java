@@ -0,0 +1,75 @@
+package gridscheduler.model;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a resource manager publishes its load to its grid scheduler node on its own,
+ * instead of waiting to be polled.
+ * <p>
+ * A load is published when it crosses one of the thresholds, when it differs from the last
+ * published load by more than <i>delta</i>, or when nothing has been published for
+ * <i>heartbeatInterval</i> milliseconds. The heartbeat keeps the grid scheduler node informed
+ * that the resource manager is alive while its load does not change.
+ */
+public class LoadReportPolicy {
+
+	/**
+	 * Reports crossing 1 (some work waiting), the quarters up to the 100 jobs cutoff used by
+	 * the grid scheduler node, changes larger than 4 jobs, and a heartbeat every second.
+	 */
+	public static final LoadReportPolicy DEFAULT = new LoadReportPolicy(new int[] { 1, 25, 50, 75, 100 }, 4, 1000);
+
+	private final int[] thresholds;
+	private final int delta;
+	private final long heartbeatInterval;
+
+	/**
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>delta</CODE> cannot be negative
+	 * <DD>parameter <CODE>heartbeatInterval</CODE> must be positive
+	 * </DL>
+	 * @param thresholds the loads whose crossing is always reported
+	 * @param delta the largest change of load that is not reported
+	 * @param heartbeatInterval the longest time between two reports, in milliseconds
+	 */
+	public LoadReportPolicy(int[] thresholds, int delta, long heartbeatInterval) {
+		assert(delta >= 0) : "parameter 'delta' cannot be negative";
+		assert(heartbeatInterval > 0) : "parameter 'heartbeatInterval' must be positive";
+
+		this.thresholds = thresholds.clone();
+		Arrays.sort(this.thresholds);
+		this.delta = delta;
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * @param lastReported the last published load, or a negative value if none was published yet
+	 * @param load the current load
+	 * @param sinceLastReport the time elapsed since the last report, in milliseconds
+	 * @return true if the current load has to be published
+	 */
+	public boolean shouldReport(int lastReported, int load, long sinceLastReport) {
+		if (lastReported < 0 || sinceLastReport >= heartbeatInterval) {
+			return true;
+		}
+		if (Math.abs(load - lastReported) > delta) {
+			return true;
+		}
+		return band(lastReported) != band(load);
+	}
+
+	// number of thresholds less than or equal to the load
+	private int band(int load) {
+		int band = Arrays.binarySearch(thresholds, load);
+		return band >= 0 ? band + 1 : -band - 1;
+	}
+
+	public int getDelta() {
+		return delta;
+	}
+
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+}
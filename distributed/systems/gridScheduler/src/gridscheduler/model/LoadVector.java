@@ -0,0 +1,102 @@
+package gridscheduler.model;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Aggregates the answers of the resource managers to a single batched load query.
+ * <p>
+ * A grid scheduler node multicasts one LoadQuery carrying a LoadVector with one slot per
+ * resource manager reached by the query. Every resource manager writes its load into its own
+ * slot, and the last one to report sends the whole vector back in a single ReplyLoadVector
+ * message, so the grid scheduler node updates its load table once per poll cycle instead of
+ * once per resource manager.
+ */
+public class LoadVector {
+
+	private static final int NOT_REPORTED = -1;
+
+	// endpoint ids of the resource managers, sorted
+	private final int[] endpointIds;
+	private final AtomicIntegerArray loads;
+	private final AtomicInteger pending;
+
+	// set once, by whoever applies the vector to a load table
+	private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+	private final long createdAt;
+	private volatile long completedAt = 0;
+
+	/**
+	 * Creates a vector with one slot per resource manager.
+	 * @param endpointIds the endpoint ids of the resource managers queried
+	 */
+	public LoadVector(int[] endpointIds) {
+		this.endpointIds = endpointIds.clone();
+		Arrays.sort(this.endpointIds);
+		this.loads = new AtomicIntegerArray(endpointIds.length);
+		for (int i = 0; i < endpointIds.length; i++) {
+			loads.set(i, NOT_REPORTED);
+		}
+		this.pending = new AtomicInteger(endpointIds.length);
+		this.createdAt = System.nanoTime();
+	}
+
+	/**
+	 * Records the load of a resource manager.
+	 * @param endpointId the endpoint id of the reporting resource manager
+	 * @param load its load
+	 * @return true if this was the last missing report, in which case the caller has to send
+	 * the vector back to the grid scheduler node
+	 */
+	public boolean report(int endpointId, int load) {
+		int slot = Arrays.binarySearch(endpointIds, endpointId);
+		if (slot < 0 || loads.getAndSet(slot, Math.max(load, 0)) != NOT_REPORTED) {
+			return false;
+		}
+		if (pending.decrementAndGet() == 0) {
+			completedAt = System.nanoTime();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Claims the vector for applying it to a load table. Only the first call succeeds, so a
+	 * vector completed late is not applied a second time after being applied partially.
+	 * @return true if the caller may apply the vector
+	 */
+	public boolean claim() {
+		return claimed.compareAndSet(false, true);
+	}
+
+	public int size() {
+		return endpointIds.length;
+	}
+
+	public int getEndpointId(int slot) {
+		return endpointIds[slot];
+	}
+
+	public boolean isReported(int slot) {
+		return loads.get(slot) != NOT_REPORTED;
+	}
+
+	public int getLoad(int slot) {
+		return loads.get(slot);
+	}
+
+	public boolean isComplete() {
+		return pending.get() == 0;
+	}
+
+	/**
+	 * @return the time between the creation of the vector and the last report in nanoseconds,
+	 * or -1 if some resource manager has not reported yet
+	 */
+	public long getLatency() {
+		return isComplete() ? completedAt - createdAt : -1;
+	}
+}
@@ -0,0 +1,230 @@
+package gridscheduler.model;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The image of the state of a grid scheduler node written by its checkpoints (see
+ * CheckpointFile): the queued jobs, in the order of the queue, then the resource managers with
+ * their capacities and loads, and the resource managers holding the copies of replicated jobs.
+ * <p>
+ * The image is laid out so that consecutive checkpoints differ in few pages. A job keeps the
+ * place it got in the ring for as long as it is queued: the jobs that entered the queue since
+ * the last checkpoint are placed after the last one, and a job that left is overwritten with
+ * padding, so that the image starts at the first job still queued. As jobs leave a queue from
+ * its head and enter it at its tail, most of the image stays where it was. A job whose record
+ * changed since, as it visited another node, is placed anew like a job queued again. The places
+ * are laid out anew once the padding takes more room than the jobs.
+ */
+final class QueueImage {
+
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	// the ring, a power of two bytes
+	private ByteBuffer ring = ByteBuffer.allocate(INITIAL_CAPACITY);
+	// the place of every queued job, in the order of the queue
+	private final LinkedHashMap<Long, Place> places = new LinkedHashMap<Long, Place>();
+	// positions of the first job, of the end of the jobs and of the end of the image
+	private long head = 0;
+	private long tail = 0;
+	private long end = 0;
+	// bytes taken by the queued jobs, the rest up to the tail being padding
+	private long jobBytes = 0;
+	// the update that last found a job in the queue
+	private int update = 0;
+
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	private ByteBuffer record = ByteBuffer.allocate(256);
+	private final CRC32 checksum = new CRC32();
+
+	private static final class Place {
+		final long position;
+		final int length;
+		int update;
+
+		Place(long position, int length, int update) {
+			this.position = position;
+			this.length = length;
+			this.update = update;
+		}
+	}
+
+	/**
+	 * Lays the state in the image.
+	 * @param queuedJobs the jobs in the queue, in order, as ENQUEUE records without their checksums
+	 * @param resourceManagers the number of nodes of every resource manager that joined
+	 * @param loads the load of every resource manager, if known
+	 * @param jobLocations the resource managers holding the copies of every replicated job
+	 */
+	void update(ByteBuffer queuedJobs, Map<String, Integer> resourceManagers, Map<String, Integer> loads,
+			Map<Long, String[]> jobLocations) {
+		update++;
+		// the jobs that stay where they are, then the new ones after them
+		long last = -1;
+		for (int start = queuedJobs.position(); start < queuedJobs.limit(); ) {
+			int length = recordLength(queuedJobs, start);
+			long jobId = jobId(queuedJobs, start);
+			Place place = places.get(jobId);
+			if (place != null && place.update != update && place.position > last && holds(place, queuedJobs, start, length)) {
+				place.update = update;
+				last = place.position;
+			} else {
+				if (place != null) {
+					// queued again or changed since, its place is out of order or stale
+					remove(jobId, place);
+				}
+				placeJob(jobId, queuedJobs, start, length);
+			}
+			start += length;
+		}
+		for (Iterator<Map.Entry<Long, Place>> it = places.entrySet().iterator(); it.hasNext(); ) {
+			Place place = it.next().getValue();
+			if (place.update != update) {
+				pad(place);
+				jobBytes -= place.length;
+				it.remove();
+			}
+		}
+		head = places.isEmpty() ? tail : places.values().iterator().next().position;
+
+		if (tail - head > 2 * jobBytes + INITIAL_CAPACITY) {
+			// mostly padding, lay the jobs out again after the last one
+			places.clear();
+			jobBytes = 0;
+			head = tail;
+			update++;
+			for (int start = queuedJobs.position(); start < queuedJobs.limit(); ) {
+				int length = recordLength(queuedJobs, start);
+				long jobId = jobId(queuedJobs, start);
+				if (!places.containsKey(jobId)) {
+					placeJob(jobId, queuedJobs, start, length);
+				}
+				start += length;
+			}
+		}
+
+		end = tail;
+		for (Map.Entry<String, Integer> rm : resourceManagers.entrySet()) {
+			scratch = QueueRecords.encodeJoin(scratch, rm.getKey(), rm.getValue());
+			end += put(QueueRecords.JOIN, end);
+		}
+		for (Map.Entry<String, Integer> load : loads.entrySet()) {
+			scratch = QueueRecords.encodeLoad(scratch, load.getKey(), load.getValue());
+			end += put(QueueRecords.LOAD, end);
+		}
+		for (Map.Entry<Long, String[]> location : jobLocations.entrySet()) {
+			for (String rmAddress : location.getValue()) {
+				scratch = QueueRecords.encodeDispatch(scratch, location.getKey(), rmAddress, true);
+				end += put(QueueRecords.DISPATCH, end);
+			}
+		}
+	}
+
+	// the length of the record at 'start' of the records, framed
+	private static int recordLength(ByteBuffer records, int start) {
+		return 4 + records.getInt(start) + 4;
+	}
+
+	// the id of the job of the ENQUEUE record at 'start' of the records
+	private static long jobId(ByteBuffer records, int start) {
+		ByteBuffer payload = records.duplicate();
+		payload.position(start + 4 + 1);
+		return ControlMessageCodec.readVarLong(payload);
+	}
+
+	// true if the place holds the record at 'start' of the records as it is, but for the
+	// checksum, which follows from the rest
+	private boolean holds(Place place, ByteBuffer records, int start, int length) {
+		if (place.length != length) {
+			return false;
+		}
+		byte[] bytes = ring.array();
+		int mask = ring.capacity() - 1;
+		for (int i = 0; i < length - 4; i++) {
+			if (bytes[(int) ((place.position + i) & mask)] != records.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void placeJob(long jobId, ByteBuffer records, int start, int length) {
+		QueueRecords.seal(records, start, checksum);
+		copy(records.array(), records.arrayOffset() + start, length, tail);
+		places.put(jobId, new Place(tail, length, update));
+		tail += length;
+		jobBytes += length;
+	}
+
+	private void remove(long jobId, Place place) {
+		pad(place);
+		jobBytes -= place.length;
+		places.remove(jobId);
+	}
+
+	private void pad(Place place) {
+		scratch = QueueRecords.encodePadding(scratch, place.length);
+		put(QueueRecords.PADDING, place.position);
+	}
+
+	// frames the payload in the scratch buffer as a record at 'position' of the ring, and
+	// returns its length
+	private int put(byte type, long position) {
+		record.clear();
+		record = QueueRecords.frame(type, scratch, record, checksum);
+		int length = record.position();
+		copy(record.array(), 0, length, position);
+		return length;
+	}
+
+	// copies 'length' bytes of 'bytes' from 'offset' on to 'position' of the ring
+	private void copy(byte[] bytes, int offset, int length, long position) {
+		// the image from the head on must fit in the ring
+		while (position + length - head > ring.capacity()) {
+			grow();
+		}
+		int capacity = ring.capacity();
+		int ringOffset = (int) (position & (capacity - 1));
+		int first = Math.min(length, capacity - ringOffset);
+		System.arraycopy(bytes, offset, ring.array(), ringOffset, first);
+		System.arraycopy(bytes, offset + first, ring.array(), 0, length - first);
+	}
+
+	// doubles the ring, keeping every byte from the head on at its position
+	private void grow() {
+		ByteBuffer grown = ByteBuffer.allocate(ring.capacity() * 2);
+		int capacity = ring.capacity();
+		long limit = Math.max(tail, end);
+		for (long position = head; position < limit; ) {
+			int offset = (int) (position & (capacity - 1));
+			int chunk = (int) Math.min(limit - position, capacity - offset);
+			System.arraycopy(ring.array(), offset, grown.array(), (int) (position & (grown.capacity() - 1)), chunk);
+			position += chunk;
+		}
+		ring = grown;
+	}
+
+	/**
+	 * @return the ring the image lies in
+	 */
+	ByteBuffer getRing() {
+		return ring;
+	}
+
+	/**
+	 * @return the position of the first byte of the image
+	 */
+	long getPosition() {
+		return head;
+	}
+
+	/**
+	 * @return the length of the image
+	 */
+	int getLength() {
+		return (int) (end - head);
+	}
+}
@@ -0,0 +1,257 @@
+package gridscheduler.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * The records of the changes to the job queue of a grid scheduler node, as written to its
+ * journal (see JobJournal) and shipped to its replica (see ReplicationLog). The checkpoints of
+ * the state of the nodes and of the supervisor are images made of the same records (see
+ * CheckpointFile).
+ * <p>
+ * A record is framed as its length, its type, its payload and the CRC32 checksum of type and
+ * payload, so that a record torn by a crash or damaged on the way is recognized. The encoders
+ * write the payload of a record into a scratch buffer, which <CODE>frame</CODE> then appends to
+ * an output buffer; both buffers are grown when needed, so the callers keep the buffers returned.
+ */
+final class QueueRecords {
+
+	// record types
+	// fills the place of a record that left a checkpoint image, see QueueImage
+	static final byte PADDING = 0;
+	static final byte ENQUEUE = 1;
+	static final byte DISPATCH = 2;
+	static final byte MIGRATE = 3;
+	static final byte COMPLETE = 4;
+	static final byte JOIN = 5;
+	// the state is dropped and rebuilt from the records that follow, see ReplicationLog
+	static final byte RESET = 6;
+	// the load of a resource manager when a checkpoint was taken
+	static final byte LOAD = 7;
+	// the records before it are in the checkpoint of the generation it carries, see JobJournal
+	static final byte CHECKPOINT = 8;
+	// a resource manager bound to a grid scheduler node, in the checkpoint of the supervisor
+	static final byte BINDING = 9;
+
+	// a record is its length, its type, its payload and the checksum of type and payload
+	static final int RECORD_OVERHEAD = 4 + 1 + 4;
+	private static final int REPLICATED = 1;
+	private static final int HAS_DATA_LOCATION = 2;
+
+	private QueueRecords() {
+	}
+
+	// encoding, into the scratch buffer
+
+	static ByteBuffer encodeJob(ByteBuffer scratch, Job job) {
+		ArrayList<String> visited = job.getVisitedClusters();
+		ArrayList<String> dataFiles = job.getDataFiles();
+		String dataLocation = job.getDataLocation();
+		int size = 10 + 10 + 1 + 5 + 5 + stringSize(dataLocation);
+		for (String name : visited) {
+			size += stringSize(name);
+		}
+		if (dataFiles != null) {
+			for (String name : dataFiles) {
+				size += stringSize(name);
+			}
+		}
+		scratch = ensure(scratch, size);
+
+		ControlMessageCodec.writeVarLong(scratch, job.getId());
+		ControlMessageCodec.writeVarLong(scratch, (long) job.getDuration());
+		scratch.put((byte) ((job.getIsReplicated() ? REPLICATED : 0) | (dataLocation != null ? HAS_DATA_LOCATION : 0)));
+		ControlMessageCodec.writeVarInt(scratch, visited.size());
+		for (String name : visited) {
+			writeString(scratch, name);
+		}
+		ControlMessageCodec.writeVarInt(scratch, dataFiles != null ? dataFiles.size() : 0);
+		if (dataFiles != null) {
+			for (String name : dataFiles) {
+				writeString(scratch, name);
+			}
+		}
+		if (dataLocation != null) {
+			writeString(scratch, dataLocation);
+		}
+		return scratch;
+	}
+
+	static ByteBuffer encodeDispatch(ByteBuffer scratch, long jobId, String rmAddress, boolean tracked) {
+		scratch = ensure(scratch, 10 + stringSize(rmAddress) + 1);
+		ControlMessageCodec.writeVarLong(scratch, jobId);
+		writeString(scratch, rmAddress);
+		scratch.put((byte) (tracked ? 1 : 0));
+		return scratch;
+	}
+
+	static ByteBuffer encodeJoin(ByteBuffer scratch, String rmAddress, int capacity) {
+		scratch = ensure(scratch, stringSize(rmAddress) + 5);
+		writeString(scratch, rmAddress);
+		ControlMessageCodec.writeVarInt(scratch, capacity);
+		return scratch;
+	}
+
+	// the payload of LOAD
+	static ByteBuffer encodeLoad(ByteBuffer scratch, String rmAddress, int load) {
+		return encodeJoin(scratch, rmAddress, load);
+	}
+
+	static ByteBuffer encodeBinding(ByteBuffer scratch, String rmAddress, String gsAddress) {
+		scratch = ensure(scratch, stringSize(rmAddress) + stringSize(gsAddress));
+		writeString(scratch, rmAddress);
+		writeString(scratch, gsAddress);
+		return scratch;
+	}
+
+	// the payload of MIGRATE and COMPLETE
+	static ByteBuffer encodeJobId(ByteBuffer scratch, long jobId) {
+		scratch = ensure(scratch, 10);
+		ControlMessageCodec.writeVarLong(scratch, jobId);
+		return scratch;
+	}
+
+	// the payload of CHECKPOINT
+	static ByteBuffer encodeGeneration(ByteBuffer scratch, long generation) {
+		return encodeJobId(scratch, generation);
+	}
+
+	// the payload of PADDING, so that the record takes 'size' bytes in all
+	static ByteBuffer encodePadding(ByteBuffer scratch, int size) {
+		assert(size >= RECORD_OVERHEAD) : "a record takes at least " + RECORD_OVERHEAD + " bytes";
+		scratch = ensure(scratch, size - RECORD_OVERHEAD);
+		while (scratch.position() < size - RECORD_OVERHEAD) {
+			scratch.put((byte) 0);
+		}
+		return scratch;
+	}
+
+	// the payload of RESET
+	static ByteBuffer encodeEmpty(ByteBuffer scratch) {
+		scratch.clear();
+		return scratch;
+	}
+
+	// an upper bound of the encoded size of a string
+	private static int stringSize(String name) {
+		return name != null ? 5 + 3 * name.length() : 0;
+	}
+
+	// a cleared buffer of at least 'size' bytes
+	private static ByteBuffer ensure(ByteBuffer scratch, int size) {
+		if (scratch.capacity() < size) {
+			return ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+		}
+		scratch.clear();
+		return scratch;
+	}
+
+	private static void writeString(ByteBuffer out, String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ControlMessageCodec.writeVarInt(out, bytes.length);
+		out.put(bytes);
+	}
+
+	/**
+	 * Appends the payload in <CODE>payload</CODE> to <CODE>out</CODE> as a record of type
+	 * <CODE>type</CODE>. Without a <CODE>checksum</CODE> the checksum of the record is left
+	 * empty, for <CODE>seal</CODE> to fill in later.
+	 * @return <CODE>out</CODE>, or a larger copy of it if it was too small
+	 */
+	static ByteBuffer frame(byte type, ByteBuffer payload, ByteBuffer out, CRC32 checksum) {
+		payload.flip();
+		int length = 1 + payload.remaining();
+		if (out.remaining() < length + RECORD_OVERHEAD) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length + RECORD_OVERHEAD));
+			out.flip();
+			grown.put(out);
+			out = grown;
+		}
+		out.putInt(length);
+		int start = out.position();
+		out.put(type);
+		out.put(payload);
+		if (checksum == null) {
+			out.putInt(0);
+			return out;
+		}
+		checksum.reset();
+		checksum.update(out.array(), out.arrayOffset() + start, length);
+		out.putInt((int) checksum.getValue());
+		return out;
+	}
+
+	/**
+	 * Fills in the checksum of the record framed at <CODE>start</CODE> of <CODE>out</CODE>.
+	 */
+	static void seal(ByteBuffer out, int start, CRC32 checksum) {
+		int length = out.getInt(start);
+		checksum.reset();
+		checksum.update(out.array(), out.arrayOffset() + start + 4, length);
+		out.putInt(start + 4 + length, (int) checksum.getValue());
+	}
+
+	// decoding
+
+	/**
+	 * Reads the next record of <CODE>in</CODE>.
+	 * @return the type and payload of the record, or null if <CODE>in</CODE> does not start with
+	 * a complete and intact record, in which case its position is left unchanged
+	 */
+	static ByteBuffer next(ByteBuffer in, CRC32 checksum) {
+		int position = in.position();
+		if (in.remaining() < RECORD_OVERHEAD) {
+			return null;
+		}
+		int length = in.getInt();
+		if (length < 1 || length > in.remaining() - 4) {
+			in.position(position);
+			return null;
+		}
+		ByteBuffer record = in.slice();
+		record.limit(length);
+		checksum.reset();
+		checksum.update(record);
+		record.flip();
+		in.position(in.position() + length);
+		if ((int) checksum.getValue() != in.getInt()) {
+			in.position(position);
+			return null;
+		}
+		return record;
+	}
+
+	static Job readJob(ByteBuffer record) {
+		long id = ControlMessageCodec.readVarLong(record);
+		long duration = ControlMessageCodec.readVarLong(record);
+		int flags = record.get();
+		Job job = new Job(duration, id);
+		job.setIsReplicated((flags & REPLICATED) != 0);
+		for (int i = ControlMessageCodec.readVarInt(record); i > 0; i--) {
+			job.addClusterToVisited(readString(record));
+		}
+		for (int i = ControlMessageCodec.readVarInt(record); i > 0; i--) {
+			job.addDataFile(readString(record));
+		}
+		if ((flags & HAS_DATA_LOCATION) != 0) {
+			job.setDataLocation(readString(record));
+		}
+		return job;
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = ControlMessageCodec.readVarInt(in);
+		String name;
+		if (in.hasArray()) {
+			name = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return name;
+	}
+}
@@ -0,0 +1,529 @@
+package gridscheduler.model;
+
+import core.ExecutionModel;
+import core.LatencyHistogram;
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * The stream of changes to the job queue of a primary grid scheduler node, shipped to its
+ * replica, which applies them to a queue of its own (log shipping).
+ * <p>
+ * The changes are the records of the journal (see QueueRecords), numbered in the order they
+ * were appended. A shipper thread sends them in batches, each with the sequence number of its
+ * first record, and the replica answers with the sequence number of the last record it
+ * applied. Batches the replica did not acknowledge in time are sent again, from the first
+ * one; the replica applies every record once and in order, and ignores a batch that does not
+ * follow the last record it applied. The replica is thereby an exact copy of the queue as of
+ * an earlier record, and a promotion only has to start using it.
+ * <p>
+ * The lag of the replica is bounded: appending waits while <CODE>maxLag</CODE> records are not
+ * acknowledged. It is measured as the time from appending a batch's first record until the
+ * replica acknowledged the batch. A replica that stops acknowledging is detached after a while,
+ * so that the primary does not wait for it any more: the records are dropped, and an empty
+ * batch is sent now and then to find out whether the replica is back. The replica answers it
+ * with the state it has, after which the primary has to start a new log (see
+ * <CODE>isResyncRequested</CODE>).
+ * <p>
+ * Every log is a session of its own. It starts with a reset record, followed by a snapshot of
+ * the state of the primary, which replaces the state of the replica.
+ */
+public class ReplicationLog {
+
+	/**
+	 * Sends a batch of records to the replica.
+	 */
+	public interface Transport {
+		/**
+		 * @param session the session of the log
+		 * @param firstSequence the sequence number of the first record of the batch
+		 * @param records the records, none for a probe of a detached replica
+		 */
+		void send(int session, long firstSequence, byte[] records);
+	}
+
+	// a batch holds at most this many bytes, unless a single record is larger
+	private static final int MAX_BATCH_BYTES = 64 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+	// batches not acknowledged within this time are sent again
+	private static final long RESEND_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(50);
+	// a replica that acknowledged nothing for this long is detached
+	private static final long DETACH_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The default bound of the number of records the replica may lag behind.
+	 */
+	public static final int DEFAULT_MAX_LAG = 4096;
+
+	private static final AtomicInteger sessions = new AtomicInteger();
+
+	private final String name;
+	private final int session;
+	private final Transport transport;
+	private final int maxLag;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appendedCondition = lock.newCondition();
+	private final Condition acknowledgedCondition = lock.newCondition();
+	// the records appended but not sent yet, and those being cut into batches by the shipper
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer cutting = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+	private final CRC32 checksum = new CRC32();
+	// the time the first pending record was appended
+	private long pendingSince = 0;
+
+	// sequence numbers of the last record appended, sent and acknowledged
+	private long appended = 0;
+	private long shipped = 0;
+	private long acknowledged = 0;
+	// the batches sent and not acknowledged yet, oldest first
+	private final ArrayDeque<Batch> unacknowledged = new ArrayDeque<Batch>();
+	// when the replica is probed or sent the oldest batch again, see isTimerArmed
+	private long resendTime = System.nanoTime();
+	private long lastProgress = 0;
+
+	private boolean detached;
+	private boolean resyncRequested = false;
+	private boolean open = true;
+	private final Thread shipper;
+
+	// statistics
+	private final LatencyHistogram lagLatencies = new LatencyHistogram();
+	private long batches = 0;
+	private long shippedBytes = 0;
+	private long resends = 0;
+
+	private final static Logger logger = Logger.getLogger(ReplicationLog.class.getName());
+
+	// records 'first' to 'last' as sent to the replica
+	private static final class Batch {
+		final long first;
+		final long last;
+		final byte[] records;
+		final long appendTime;
+
+		Batch(long first, long last, byte[] records, long appendTime) {
+			this.first = first;
+			this.last = last;
+			this.records = records;
+			this.appendTime = appendTime;
+		}
+	}
+
+	/**
+	 * Starts a new log, and the thread shipping it.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameters <CODE>name</CODE> and <CODE>transport</CODE> cannot be null
+	 * <DD>parameter <CODE>maxLag</CODE> must be positive
+	 * </DL>
+	 * @param name the name of the log, for the shipper thread and the log messages
+	 * @param transport sends the batches to the replica
+	 * @param maxLag the number of records the replica may lag behind
+	 * @param attached false if the replica is not known to be up, in which case the log starts
+	 * detached and only probes it
+	 */
+	public ReplicationLog(String name, Transport transport, int maxLag, boolean attached) {
+		assert(name != null && transport != null) : "parameters 'name' and 'transport' cannot be null";
+		assert(maxLag > 0) : "parameter 'maxLag' must be positive";
+
+		this.name = name;
+		this.session = sessions.incrementAndGet();
+		this.transport = transport;
+		this.maxLag = maxLag;
+		this.detached = !attached;
+
+		shipper = ExecutionModel.getDefault().newThread("replication-" + name, this::ship);
+		shipper.setDaemon(true);
+		shipper.start();
+	}
+
+	/**
+	 * Records that the replica has to drop its state and take over the one given, which must be
+	 * the state of the primary before any other record of this log. It is appended whatever the
+	 * lag of the replica, as it is as large as the state.
+	 * @param resourceManagers the number of nodes of every resource manager that joined
+	 * @param jobLocations the resource managers holding the copies of every replicated job
+	 * @param queuedJobs the jobs in the queue
+	 */
+	public void snapshot(Map<String, Integer> resourceManagers, Map<Long, String[]> jobLocations, Collection<Job> queuedJobs) {
+		lock.lock();
+		try {
+			if (!open || detached) {
+				return;
+			}
+			scratch = QueueRecords.encodeEmpty(scratch);
+			append(QueueRecords.RESET);
+			for (Map.Entry<String, Integer> rm : resourceManagers.entrySet()) {
+				scratch = QueueRecords.encodeJoin(scratch, rm.getKey(), rm.getValue());
+				append(QueueRecords.JOIN);
+			}
+			for (Map.Entry<Long, String[]> location : jobLocations.entrySet()) {
+				for (String rmAddress : location.getValue()) {
+					scratch = QueueRecords.encodeDispatch(scratch, location.getKey(), rmAddress, true);
+					append(QueueRecords.DISPATCH);
+				}
+			}
+			for (Job job : queuedJobs) {
+				scratch = QueueRecords.encodeJob(scratch, job);
+				append(QueueRecords.ENQUEUE);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that <CODE>job</CODE> entered the queue.
+	 * @param job the job
+	 */
+	public void enqueue(Job job) {
+		lock.lock();
+		try {
+			if (awaitRoom()) {
+				scratch = QueueRecords.encodeJob(scratch, job);
+				append(QueueRecords.ENQUEUE);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a copy of a job left the queue for a resource manager.
+	 * @param jobId the id of the job
+	 * @param rmAddress the resource manager the copy was sent to
+	 * @param tracked true if the resource manager is remembered as holding a copy of the job
+	 */
+	public void dispatch(long jobId, String rmAddress, boolean tracked) {
+		lock.lock();
+		try {
+			if (awaitRoom()) {
+				scratch = QueueRecords.encodeDispatch(scratch, jobId, rmAddress, tracked);
+				append(QueueRecords.DISPATCH);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a job left the queue for another grid scheduler node.
+	 * @param jobId the id of the job
+	 */
+	public void migrate(long jobId) {
+		appendJobId(QueueRecords.MIGRATE, jobId);
+	}
+
+	/**
+	 * Records that a job completed.
+	 * @param jobId the id of the job
+	 */
+	public void complete(long jobId) {
+		appendJobId(QueueRecords.COMPLETE, jobId);
+	}
+
+	/**
+	 * Records that a resource manager joined.
+	 * @param rmAddress the address of the resource manager
+	 * @param capacity its number of nodes
+	 */
+	public void join(String rmAddress, int capacity) {
+		lock.lock();
+		try {
+			if (awaitRoom()) {
+				scratch = QueueRecords.encodeJoin(scratch, rmAddress, capacity);
+				append(QueueRecords.JOIN);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void appendJobId(byte type, long jobId) {
+		lock.lock();
+		try {
+			if (awaitRoom()) {
+				scratch = QueueRecords.encodeJobId(scratch, jobId);
+				append(type);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// waits until the replica is less than maxLag records behind; false if the records are not
+	// kept, as the log is closed or the replica detached
+	private boolean awaitRoom() {
+		while (open && !detached && appended - acknowledged >= maxLag) {
+			acknowledgedCondition.awaitUninterruptibly();
+		}
+		return open && !detached;
+	}
+
+	private void append(byte type) {
+		if (pending.position() == 0) {
+			pendingSince = System.nanoTime();
+		}
+		pending = QueueRecords.frame(type, scratch, pending, checksum);
+		appended++;
+		appendedCondition.signal();
+	}
+
+	/**
+	 * Takes the answer of the replica to a batch.
+	 * @param session the session of the state of the replica
+	 * @param sequence the sequence number of the last record the replica applied
+	 */
+	public void acknowledge(int session, long sequence) {
+		lock.lock();
+		try {
+			if (detached) {
+				// the replica is up, but the records it misses are gone
+				resyncRequested = true;
+				return;
+			}
+			if (session != this.session || sequence <= acknowledged) {
+				// a late answer, or the replica missed a batch, which is sent again
+				return;
+			}
+			long now = System.nanoTime();
+			acknowledged = Math.min(sequence, shipped);
+			while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().last <= acknowledged) {
+				lagLatencies.record(now - unacknowledged.pollFirst().appendTime);
+			}
+			lastProgress = now;
+			resendTime = now + RESEND_TIMEOUT;
+			acknowledgedCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// the shipper: sends the new records in batches, resends what the replica did not
+	// acknowledge, and probes a detached replica
+	private void ship() {
+		while (true) {
+			List<Batch> batches;
+			lock.lock();
+			try {
+				while (open && pending.position() == 0 && !isResendDue()) {
+					appendedCondition.awaitNanos(isTimerArmed() ? Math.max(1, resendTime - System.nanoTime()) : DETACH_TIMEOUT);
+				}
+				if (!open) {
+					return;
+				}
+				long now = System.nanoTime();
+				if (!detached && !unacknowledged.isEmpty() && now - lastProgress >= DETACH_TIMEOUT) {
+					detach();
+				}
+				if (detached) {
+					batches = new ArrayList<Batch>();
+					batches.add(new Batch(appended + 1, appended, new byte[0], now));
+					resendTime = now + RESEND_TIMEOUT;
+				} else if (pending.position() == 0) {
+					// nothing new, and the oldest batch is overdue
+					batches = new ArrayList<Batch>(unacknowledged);
+					resends++;
+					resendTime = now + RESEND_TIMEOUT;
+				} else {
+					ByteBuffer records = pending;
+					pending = cutting;
+					cutting = records;
+					if (unacknowledged.isEmpty()) {
+						lastProgress = now;
+					}
+					batches = cut(shipped + 1, appended, pendingSince);
+					shipped = appended;
+					unacknowledged.addAll(batches);
+					resendTime = now + RESEND_TIMEOUT;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			for (Batch batch : batches) {
+				transport.send(session, batch.first, batch.records);
+			}
+		}
+	}
+
+	// the replica is probed while detached, and sent the batches it did not acknowledge otherwise
+	private boolean isTimerArmed() {
+		return detached || !unacknowledged.isEmpty();
+	}
+
+	private boolean isResendDue() {
+		return isTimerArmed() && System.nanoTime() - resendTime >= 0;
+	}
+
+	// cuts the records taken from the pending buffer, 'first' to 'last', into batches
+	private List<Batch> cut(long first, long last, long appendTime) {
+		List<Batch> cut = new ArrayList<Batch>();
+		ByteBuffer records = cutting;
+		records.flip();
+		long sequence = first;
+		while (records.hasRemaining()) {
+			int start = records.position();
+			long batchFirst = sequence;
+			do {
+				// the length prefix counts the type and the payload
+				int frameSize = 4 + records.getInt(records.position()) + 4;
+				if (records.position() > start && records.position() - start + frameSize > MAX_BATCH_BYTES) {
+					break;
+				}
+				records.position(records.position() + frameSize);
+				sequence++;
+			} while (records.hasRemaining());
+			byte[] bytes = Arrays.copyOfRange(records.array(), records.arrayOffset() + start, records.arrayOffset() + records.position());
+			cut.add(new Batch(batchFirst, sequence - 1, bytes, appendTime));
+			this.batches++;
+			shippedBytes += bytes.length;
+		}
+		assert(sequence == last + 1) : "the records do not match their sequence numbers";
+		records.clear();
+		return cut;
+	}
+
+	// stops keeping records for the replica
+	private void detach() {
+		logger.warn("Replication log " + name + " detached its replica, which acknowledged nothing for "
+				+ TimeUnit.NANOSECONDS.toMillis(DETACH_TIMEOUT) + " ms");
+		detached = true;
+		unacknowledged.clear();
+		pending.clear();
+		acknowledgedCondition.signalAll();
+	}
+
+	/**
+	 * Stops shipping; records appended later are dropped.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (!open) {
+				return;
+			}
+			open = false;
+			appendedCondition.signalAll();
+			acknowledgedCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			shipper.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true if the replica is detached and answered, so that a new log has to start
+	 * from a snapshot
+	 */
+	public boolean isResyncRequested() {
+		lock.lock();
+		try {
+			return resyncRequested && open;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isDetached() {
+		lock.lock();
+		try {
+			return detached;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getSession() {
+		return session;
+	}
+
+	/**
+	 * @return the number of records appended and not acknowledged by the replica yet
+	 */
+	public long getLag() {
+		lock.lock();
+		try {
+			return detached ? 0 : appended - acknowledged;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last record the replica acknowledged
+	 */
+	public long getAcknowledged() {
+		lock.lock();
+		try {
+			return acknowledged;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the distribution of the time from appending the first record of a batch until the
+	 * replica acknowledged it, in nanoseconds
+	 */
+	public LatencyHistogram getLagLatencies() {
+		return lagLatencies;
+	}
+
+	public long getBatches() {
+		lock.lock();
+		try {
+			return batches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getShippedBytes() {
+		lock.lock();
+		try {
+			return shippedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of times the batches not acknowledged in time were sent again
+	 */
+	public long getResends() {
+		lock.lock();
+		try {
+			return resends;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String toString() {
+		return "ReplicationLog {name = " + name + ", session = " + session + ", lag = " + getLag() + ", batches = " + getBatches()
+				+ ", resends = " + getResends() + ", detached = " + isDetached() + "}";
+	}
+}
@@ -1,14 +1,23 @@
 package gridscheduler.model;
 
+import core.Endpoints;
+import core.ITransport;
 import core.IMessageReceivedHandler;
 import core.Message;
+import core.MessageDispatcher;
 import core.Socket;
 import core.SynchronizedSocket;
+import core.Topic;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents a resource manager in the VGS. It is a component of a cluster, 
@@ -30,6 +39,10 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 
 	private Cluster cluster;
 	private Queue<Job> jobQueue;
+	// the jobs of jobQueue by id. A cancelled job is moved from here to cancelledJobs and stays
+	// in jobQueue until the next scan of the queue drops it
+	private final ConcurrentHashMap<Long, Job> queuedJobs = new ConcurrentHashMap<Long, Job>();
+	private final ConcurrentHashMap<Long, Job> cancelledJobs = new ConcurrentHashMap<Long, Job>();
 	private String name;
 	private int jobQueueSize;
 	public static final int MAX_QUEUE_SIZE = 32;
@@ -39,6 +52,28 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 
 	private SynchronizedSocket syncSocket;
 
+	// completions of the current poll of the cluster, published together by flushCompletions
+	private final ArrayList<ControlMessage> pendingCompletions = new ArrayList<ControlMessage>();
+
+	// offload credits granted by the grid scheduler node; once it granted any, a job is only
+	// offloaded against a credit and otherwise held locally, up to maxHeldJobs, or shed
+	private volatile boolean offloadFlowControl = false;
+	private final AtomicInteger offloadCredits = new AtomicInteger();
+	private int maxHeldJobs = Integer.MAX_VALUE;
+	private final AtomicLong shedJobs = new AtomicLong();
+	private final AtomicLong completedJobs = new AtomicLong();
+
+	// copies the data of the jobs sent to this cluster into its spool directory, if set
+	private StagingService stagingService = null;
+
+	// hands every incoming message to the handler of its type
+	private final MessageDispatcher dispatcher;
+
+	// when set, the load is published to the grid scheduler node whenever the policy says so
+	private LoadReportPolicy loadReportPolicy = null;
+	private int lastReportedLoad = -1;
+	private long lastReportTime = 0;
+
 	private final static Logger logger = Logger.getLogger(GridSchedulerNode.class.getName());
 
 	/**
@@ -59,6 +94,9 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 		this.cluster = cluster;
 		this.name = cluster.getName();
 
+		this.dispatcher = new MessageDispatcher(name);
+		registerMessageHandlers();
+
 		// Number of jobs in the queue must be larger than the number of nodes, because
 		// jobs are kept in queue until finished. The queue is a bit larger than the 
 		// number of nodes for efficiency reasons - when there are only a few more jobs than
@@ -94,24 +132,86 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 		job.setSubmit_time();
 		job.setWait_time();
 
+		// the data of a job submitted here is in the spool directory of this cluster
+		if (job.hasData() && job.getDataLocation() == null) {
+			job.setDataLocation(this.cluster.getName());
+		}
+
 		// if the jobqueue is full, offload the job to the grid scheduler
-		if (jobQueue.size() >= jobQueueSize) {
+		if (getQueuedJobCount() >= jobQueueSize && takeOffloadCredit()) {
 
-			ControlMessage controlMessage = new ControlMessage(ControlMessageType.AddJob);
-			//include the sender url into the message
-			controlMessage.setSource(this.cluster.getName());
-			controlMessage.setDestination(syncSocket.getGridSchdulerNodeAddress());
-			controlMessage.setJob(job);
+			offloadJob(job);
 
-			job.addClusterToVisited(this.cluster.getName());
+			// out of credits and too many jobs held already
+		} else if (getQueuedJobCount() >= jobQueueSize + (long) maxHeldJobs) {
 
-			syncSocket.sendMessage(controlMessage, "localsocket://" + syncSocket.getGridSchdulerNodeAddress());
+			shedJobs.incrementAndGet();
+			logger.warn("RM: " + this.cluster.getName() + " shed job " + job.getId());
 
 			// otherwise store it in the local queue
 		} else {
-			jobQueue.add(job);
+			enqueue(job);
 			scheduleJobs();
+			publishLoad();
+		}
+	}
+
+	// send the job to the grid scheduler node
+	private void offloadJob(Job job) {
+		ControlMessage controlMessage = new ControlMessage(ControlMessageType.AddJob);
+		//include the sender url into the message
+		controlMessage.setSource(this.cluster.getName());
+		controlMessage.setDestination(syncSocket.getGridSchdulerNodeAddress());
+		controlMessage.setJob(job);
+
+		job.addClusterToVisited(this.cluster.getName());
+
+		syncSocket.sendMessage(controlMessage, "localsocket://" + syncSocket.getGridSchdulerNodeAddress());
+	}
+
+	// uses up one offload credit, if flow control is on
+	private boolean takeOffloadCredit() {
+		if (!offloadFlowControl) {
+			return true;
+		}
+		int credits = offloadCredits.get();
+		while (credits > 0) {
+			if (offloadCredits.compareAndSet(credits, credits - 1)) {
+				return true;
+			}
+			credits = offloadCredits.get();
 		}
+		return false;
+	}
+
+	/**
+	 * Bounds the number of jobs held in the local queue beyond its size while the grid scheduler
+	 * node grants no offload credits. Jobs submitted beyond that are shed.
+	 * @param maxHeldJobs the maximum number of held jobs, Integer.MAX_VALUE to never shed jobs
+	 */
+	public void setMaxHeldJobs(int maxHeldJobs) {
+		this.maxHeldJobs = maxHeldJobs;
+	}
+
+	/**
+	 * @return the number of offload credits not used yet
+	 */
+	public int getOffloadCredits() {
+		return offloadCredits.get();
+	}
+
+	/**
+	 * @return the number of jobs dropped because the grid scheduler node had no room for them
+	 */
+	public long getShedJobs() {
+		return shedJobs.get();
+	}
+
+	/**
+	 * @return the number of jobs that finished on this cluster
+	 */
+	public long getCompletedJobs() {
+		return completedJobs.get();
 	}
 
 	/**
@@ -120,9 +220,13 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 	 */
 	public Job getWaitingJob() {
 		// find a waiting job
-		for (Job job : jobQueue) 
+		for (Iterator<Job> it = jobQueue.iterator(); it.hasNext(); ) {
+			Job job = it.next();
+			if (isCancelled(job, it))
+				continue;
 			if (job.getStatus() == JobStatus.Waiting) 
 				return job;
+		}
 
 		// no waiting jobs found, return null
 		return null;
@@ -135,9 +239,11 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 	public int getWaitingJobsCount() {
 		int count = 0;
 		// find a waiting job
-		for (Job job : jobQueue)
-			if (job.getStatus() == JobStatus.Waiting)
+		for (Iterator<Job> it = jobQueue.iterator(); it.hasNext(); ) {
+			Job job = it.next();
+			if (!isCancelled(job, it) && job.getStatus() == JobStatus.Waiting)
 				count++;
+		}
 
 		// no waiting jobs found, return null
 		return count;
@@ -191,20 +297,52 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 		assert(job != null) : "parameter 'job' cannot be null";
 
 		// job finished, remove it from our pool
-		jobQueue.remove(job);
+		dequeue(job);
+		completedJobs.incrementAndGet();
 
 
-		//ask the GS to notify all the other RMs to remove the job from their queues (if present)
-		ControlMessage nMessage = new ControlMessage(ControlMessageType.NotifyJobCompletion);
+		//notify the GS nodes and all the other RMs to remove the job from their queues (if present)
+		ControlMessage nMessage = ControlMessagePool.acquire(ControlMessageType.NotifyJobCompletion);
 		nMessage.setSource(this.cluster.getName());
 		nMessage.setDestination(getGridSchedulerAddress());
 		nMessage.setJob(job);
 
 		//logger.info("Job " + job.getId() + " done on " + this.cluster.getName());
-		syncSocket.sendMessage(nMessage,"localsocket://" + getGridSchedulerAddress());
+		pendingCompletions.add(nMessage);
 		logger.info("Job"+job.getId()+"_"+job.getSubmit_time()+"_"+job.getWait_time()+"_"+job.getRun_time()); //Experimental data logging
 	}
 
+	/**
+	 * Publishes the completions of the jobs finished since the previous call as one batch, so
+	 * that every subscriber is woken up once per poll of the cluster rather than once per job.
+	 * Called by the polling thread of the cluster, which is also the one calling jobDone.
+	 */
+	public void flushCompletions() {
+		if (pendingCompletions.isEmpty()) {
+			return;
+		}
+		try {
+			syncSocket.publish(Topic.JobCompletion, pendingCompletions, this.cluster.getName());
+		} finally {
+			for (ControlMessage nMessage : pendingCompletions) {
+				nMessage.release();
+			}
+			pendingCompletions.clear();
+		}
+	}
+
+	/**
+	 * Sends a heartbeat to the grid scheduler node, which suspects this RM to have failed once
+	 * its heartbeats stop. Called by the polling thread of the cluster.
+	 */
+	public void sendHeartbeat() {
+		ControlMessage heartbeatMessage = ControlMessagePool.acquire(ControlMessageType.Heartbeat);
+		heartbeatMessage.setSource(this.cluster.getName());
+		heartbeatMessage.setDestination(syncSocket.getGridSchdulerNodeAddress());
+
+		syncSocket.sendMessage(heartbeatMessage);
+	}
+
 	/**
 	 * @return the url of the grid scheduler this RM is connected to 
 	 */
@@ -224,6 +362,13 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 		return this.jobQueue;
 	}
 
+	/**
+	 * @return the number of nodes of the cluster, which a grid scheduler node learns on joining
+	 */
+	public int getNodeCount() {
+		return cluster.getNodeCount();
+	}
+
 	/**
 	 * Connect to a grid scheduler
 	 * <p>
@@ -246,6 +391,70 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 
 	}
 
+	/**
+	 * Connect to a grid scheduler node living in another process, reachable through
+	 * <CODE>transport</CODE>. The resource manager gets a socket of its own whose
+	 * transport carries the messages to and from that grid scheduler node.
+	 * <p>
+	 * pre: the parameters 'gridSchedulerAddress' and 'transport' must not be null, and
+	 * the transport must be able to route messages to 'gridSchedulerAddress'
+	 * @param gridSchedulerAddress the name of the remote grid scheduler node
+	 * @param transport the transport connecting this process to the grid scheduler node's one
+	 */
+	public void connectToRemoteGridSchedulerNode(String gridSchedulerAddress, ITransport transport) {
+
+		// preconditions
+		assert(gridSchedulerAddress != null) : "the parameter 'gridSchedulerAddress' cannot be null";
+		assert(transport != null) : "the parameter 'transport' cannot be null";
+
+		this.supervisorURL = gridSchedulerAddress;
+
+		SynchronizedSocket socket = new SynchronizedSocket(transport);
+		socket.registerGridSchedulerAddress(gridSchedulerAddress);
+		setSyncSocket(socket);
+
+		// announces this RM to the remote grid scheduler node
+		socket.addMessageReceivedHandler(this);
+	}
+
+	/**
+	 * Makes this resource manager publish its load to its grid scheduler node on its own,
+	 * as decided by <CODE>policy</CODE>, instead of waiting for load requests. The current
+	 * load is published right away.
+	 * @param policy the load report policy, or null to stop publishing
+	 */
+	public synchronized void setLoadReportPolicy(LoadReportPolicy policy) {
+		this.loadReportPolicy = policy;
+		this.lastReportedLoad = -1;
+		publishLoad();
+	}
+
+	/**
+	 * Publishes the load of this resource manager if it crossed a threshold, changed by more
+	 * than the allowed delta, or if the heartbeat interval elapsed. Called whenever the queue
+	 * changes and periodically by the cluster's polling thread.
+	 */
+	public synchronized void publishLoad() {
+		if (loadReportPolicy == null || syncSocket == null) {
+			return;
+		}
+
+		int load = getNumberOfNonReplicatedJobsWaiting();
+		long now = System.currentTimeMillis();
+		if (!loadReportPolicy.shouldReport(lastReportedLoad, load, now - lastReportTime)) {
+			return;
+		}
+		lastReportedLoad = load;
+		lastReportTime = now;
+
+		ControlMessage loadMessage = ControlMessagePool.acquire(ControlMessageType.NotifyLoad);
+		loadMessage.setSource(this.cluster.getName());
+		loadMessage.setDestination(syncSocket.getGridSchdulerNodeAddress());
+		loadMessage.setLoad(load);
+
+		syncSocket.sendMessage(loadMessage);
+	}
+
 	/**
 	 * Registers one end of the synchronized socket to this resource manager
 	 * @param syncSocket
@@ -255,9 +464,13 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 	}
 
 	private Job extractNonReplicatedJob(){
-		for(Job job:jobQueue){
+		for(Iterator<Job> it = jobQueue.iterator(); it.hasNext(); ){
+			Job job = it.next();
+			if(isCancelled(job, it)){
+				continue;
+			}
 			if(job.getStatus() == JobStatus.Waiting && !job.getIsReplicated()){
-				jobQueue.remove(job);
+				dequeue(job);
 				return job;
 			}
 		}
@@ -266,14 +479,46 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 
 	public int getNumberOfNonReplicatedJobsWaiting(){
 		int count = 0;
-		for(Job job: jobQueue){
-			if(job.getStatus() == JobStatus.Waiting && !job.getIsReplicated()){
+		for(Iterator<Job> it = jobQueue.iterator(); it.hasNext(); ){
+			Job job = it.next();
+			if(!isCancelled(job, it) && job.getStatus() == JobStatus.Waiting && !job.getIsReplicated()){
 				count++;
 			}
 		}
 		return count;
 	}
 
+	private void enqueue(Job job){
+		queuedJobs.put(job.getId(), job);
+		jobQueue.add(job);
+	}
+
+	private void dequeue(Job job){
+		queuedJobs.remove(job.getId(), job);
+		// a copy may finish running after it was cancelled
+		cancelledJobs.remove(job.getId(), job);
+		jobQueue.remove(job);
+	}
+
+	// true if the job was cancelled, in which case it is dropped from the queue by the iterator scanning it
+	private boolean isCancelled(Job job, Iterator<Job> it){
+		if (cancelledJobs.isEmpty() || cancelledJobs.get(job.getId()) != job) {
+			return false;
+		}
+		if (cancelledJobs.remove(job.getId(), job)) {
+			it.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of jobs in the queue, running or waiting, not counting the cancelled
+	 * jobs that have not been dropped from it yet
+	 */
+	public int getQueuedJobCount(){
+		return Math.max(jobQueue.size() - cancelledJobs.size(), 0);
+	}
+
 	/**
 	 * Message received handler
 	 * <p>
@@ -286,63 +531,159 @@ public class ResourceManager implements INodeEventHandler, IMessageReceivedHandl
 		assert(message instanceof ControlMessage) : "parameter 'message' should be of type ControlMessage";
 		assert(message != null) : "parameter 'message' cannot be null";
 
-		ControlMessage controlMessage = (ControlMessage)message;
+		dispatcher.dispatch((ControlMessage) message);
 
-		// resource manager wants to offload a job to us 
-		if (controlMessage.getType() == ControlMessageType.AddJob) {
-			//mark this cluster as visited
-			controlMessage.getJob().addClusterToVisited(this.cluster.getName());
-			//include this job in the waiting queue of this cluster
-			jobQueue.add(controlMessage.getJob());
-			scheduleJobs();
+		// the queue may have changed, let the grid scheduler node know if it matters
+		publishLoad();
+
+	}
+
+	// hooks the handler of every message type this resource manager understands into its dispatcher
+	private void registerMessageHandlers() {
+		dispatcher.register(ControlMessageType.AddJob, this::onAddJob);
+		dispatcher.register(ControlMessageType.RequestLoad, this::onRequestLoad);
+		dispatcher.register(ControlMessageType.LoadQuery, this::onLoadQuery);
+		dispatcher.register(ControlMessageType.RequestJob, this::onRequestJob);
+		dispatcher.register(ControlMessageType.NotifyJobCompletion, this::onNotifyJobCompletion);
+		dispatcher.register(ControlMessageType.CancelJob, this::onCancelJob);
+		dispatcher.register(ControlMessageType.GrantCredits, this::onGrantCredits);
+	}
+
+	// resource manager wants to offload a job to us
+	private void onAddJob(ControlMessage controlMessage) {
+		//mark this cluster as visited
+		controlMessage.getJob().addClusterToVisited(this.cluster.getName());
+		//bring the data of the job to this cluster
+		stageData(controlMessage.getJob());
+		//include this job in the waiting queue of this cluster
+		enqueue(controlMessage.getJob());
+		scheduleJobs();
+	}
+
+	private void stageData(Job job) {
+		if (stagingService == null || !job.hasData()) {
+			return;
+		}
+		try {
+			long transferTime = stagingService.stage(job, this.cluster.getName());
+			if (transferTime > 0) {
+				logger.info("RM: " + this.cluster.getName() + " staged the data of job " + job.getId() + " in " + transferTime / 1000 + " us");
+			}
+		} catch (IOException ex) {
+			logger.error("RM: " + this.cluster.getName() + " could not stage the data of job " + job.getId(), ex);
 		}
+	}
 
-		// Grid scheduler asks for the load of this resource manager
-		if (controlMessage.getType() == ControlMessageType.RequestLoad) {
-			//logger.info("RM: " + this.cluster.getName() + " received a request load from GS: " + controlMessage.getSource());
+	/**
+	 * Makes this resource manager copy the data files of the jobs it receives into the spool
+	 * directory of its cluster.
+	 * @param stagingService the staging service, or null to leave the data where it is
+	 */
+	public void setStagingService(StagingService stagingService) {
+		this.stagingService = stagingService;
+	}
 
-			ControlMessage replyMessage = new ControlMessage(ControlMessageType.ReplyLoad);
+	// Grid scheduler asks for the load of this resource manager
+	private void onRequestLoad(ControlMessage controlMessage) {
+		//logger.info("RM: " + this.cluster.getName() + " received a request load from GS: " + controlMessage.getSource());
 
-			replyMessage.setSource(this.cluster.getName());
-			replyMessage.setDestination(controlMessage.getSource()); // send back to the issuer of message
-			replyMessage.setLoad(getNumberOfNonReplicatedJobsWaiting()); // TODO check for defects
+		ControlMessage replyMessage = ControlMessagePool.acquire(ControlMessageType.ReplyLoad);
 
-			syncSocket.sendMessage(replyMessage, "localsocket://" + controlMessage.getSource());
+		replyMessage.setSource(this.cluster.getName());
+		replyMessage.setDestination(controlMessage.getSource()); // send back to the issuer of message
+		replyMessage.setReplyTo(controlMessage);
+		replyMessage.setLoad(getNumberOfNonReplicatedJobsWaiting()); // TODO check for defects
 
-		}
+		syncSocket.sendMessage(replyMessage);
+	}
 
-		// Grid scheduler asks for a job of this resource manager
-		if (controlMessage.getType() == ControlMessageType.RequestJob){
+	// Grid scheduler queries the load of all its resource managers at once
+	private void onLoadQuery(ControlMessage controlMessage) {
+		LoadVector loadVector = controlMessage.getLoadVector();
+		int load = getNumberOfNonReplicatedJobsWaiting();
 
-			//logger.info("RM: " + this.cluster.getName() + " received a job request from GS: " + controlMessage.getSource());
-			ControlMessage replyMessage = new ControlMessage(ControlMessageType.ReplyJob);
+		if (loadVector == null) {
+			// the query came over the network, answer it like a RequestLoad
+			ControlMessage replyMessage = ControlMessagePool.acquire(ControlMessageType.ReplyLoad);
 			replyMessage.setSource(this.cluster.getName());
 			replyMessage.setDestination(controlMessage.getSource());
+			replyMessage.setReplyTo(controlMessage);
+			replyMessage.setLoad(load);
 
+			syncSocket.sendMessage(replyMessage);
+		} else if (loadVector.report(Endpoints.idOf(this.cluster.getName()), load)) {
+			// this was the last missing load, send the whole vector back
+			ControlMessage replyMessage = ControlMessagePool.acquire(ControlMessageType.ReplyLoadVector);
+			replyMessage.setSource(this.cluster.getName());
+			replyMessage.setDestination(controlMessage.getSource());
+			replyMessage.setLoadVector(loadVector);
 
-			Job job = extractNonReplicatedJob();
+			syncSocket.sendMessage(replyMessage);
+		}
+	}
 
-			if(job != null) {
+	// Grid scheduler asks for a job of this resource manager
+	private void onRequestJob(ControlMessage controlMessage) {
+		//logger.info("RM: " + this.cluster.getName() + " received a job request from GS: " + controlMessage.getSource());
+		ControlMessage replyMessage = new ControlMessage(ControlMessageType.ReplyJob);
+		replyMessage.setSource(this.cluster.getName());
+		replyMessage.setDestination(controlMessage.getSource());
+		replyMessage.setReplyTo(controlMessage);
 
-				job.addClusterToVisited(this.cluster.getName());
-				// retrieve and remove the head of the jobQueue in order to be sent to GS node
-				replyMessage.setJob(job);
 
-				syncSocket.sendMessage(replyMessage, "localsocket://" + controlMessage.getSource());
-			}
+		Job job = extractNonReplicatedJob();
+
+		if(job != null) {
+
+			job.addClusterToVisited(this.cluster.getName());
+			// retrieve and remove the head of the jobQueue in order to be sent to GS node
+			replyMessage.setJob(job);
+
+			syncSocket.sendMessage(replyMessage, "localsocket://" + controlMessage.getSource());
+		}
+	}
+
+	// another RM completed a job; a copy of it may be queued here without the GS knowing, e.g.
+	// when the job was submitted to several clusters directly, so it is removed by id
+	private void onNotifyJobCompletion(ControlMessage controlMessage) {
+		cancel(controlMessage.getJob().getId());
+	}
+
+	// Grid Scheduler asks this RM to drop its copy of a job that completed elsewhere
+	private void onCancelJob(ControlMessage controlMessage) {
+		cancel(controlMessage.getJob().getId());
+	}
+
+	// the copy only leaves the index here and is dropped from the queue by the next scan
+	private void cancel(long jobId) {
+		Job job = queuedJobs.remove(jobId);
+		if (job != null) {
+			cancelledJobs.put(job.getId(), job);
+			//logger.warn("RM: " + this.cluster.getName() + " removed job " + job.getId() + " from its queue.");
 		}
+	}
 
-		// Grid Scheduler asks this RM to remove a pending job from its queue
-		if (controlMessage.getType() == ControlMessageType.NotifyJobCompletion){
-			for(Job job:jobQueue){
-				if(job.getId() == controlMessage.getJob().getId()){
-					jobQueue.remove(job);
-					//logger.warn("RM: " + this.cluster.getName() + " removed job " + job.getId() + " from its queue.");
-					break;
-				}
+	// Grid scheduler lets this RM offload more jobs
+	private void onGrantCredits(ControlMessage controlMessage) {
+		offloadFlowControl = true;
+		offloadCredits.addAndGet(controlMessage.getLoad());
+
+		// offload the jobs held while there were no credits
+		while (getQueuedJobCount() > jobQueueSize && takeOffloadCredit()) {
+			Job job = extractNonReplicatedJob();
+			if (job == null) {
+				offloadCredits.incrementAndGet();
+				break;
 			}
+			offloadJob(job);
 		}
+	}
 
+	/**
+	 * @return the dispatcher of the incoming messages, which counts them per type
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
 	}
 
 
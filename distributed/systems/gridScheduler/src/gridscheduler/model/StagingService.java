@@ -0,0 +1,204 @@
+package gridscheduler.model;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the data files of jobs between the spool directories of the clusters.
+ * <p>
+ * Every cluster has a spool directory, named after the cluster, under the root directory of
+ * the service. A job names its data files relative to the spool directory of the cluster
+ * holding them (see <CODE>Job.getDataLocation</CODE>); when the job lands on another cluster
+ * the files are copied into the spool directory of that cluster. Copies are made with
+ * <CODE>FileChannel.transferTo</CODE>, so the kernel moves the bytes between the files
+ * without copying them through the heap, and jobs read their data through read-only
+ * memory mappings for the same reason. The source files are left in place, since other
+ * copies of a replicated job may still need them.
+ * <p>
+ * The service measures the throughput of its transfers, so that schedulers can weigh the
+ * cost of moving a job's data against the benefit of moving the job.
+ */
+public class StagingService {
+
+	// throughput assumed until the first transfer was measured, in bytes per second
+	public static final long DEFAULT_THROUGHPUT = 200L * 1024 * 1024;
+	// weight of the last transfer in the throughput estimate
+	private static final double THROUGHPUT_SMOOTHING = 0.2;
+
+	private final File root;
+
+	// statistics
+	private final AtomicLong stagedJobs = new AtomicLong();
+	private final AtomicLong transferredFiles = new AtomicLong();
+	private final AtomicLong transferredBytes = new AtomicLong();
+	private final AtomicLong transferTime = new AtomicLong();
+	private volatile double throughput = DEFAULT_THROUGHPUT / 1e9;
+
+	private final static Logger logger = Logger.getLogger(StagingService.class.getName());
+
+	/**
+	 * Creates a staging service whose spool directories live under <CODE>root</CODE>.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>parameter <CODE>root</CODE> cannot be null
+	 * </DL>
+	 * @param root the parent directory of the spool directories
+	 */
+	public StagingService(File root) {
+		assert(root != null) : "parameter 'root' cannot be null";
+		this.root = root;
+	}
+
+	/**
+	 * @param cluster the name of a cluster
+	 * @return the spool directory of that cluster, created if needed
+	 */
+	public File getSpoolDirectory(String cluster) {
+		File directory = new File(root, cluster);
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			logger.error("Could not create the spool directory " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Copies the data files of <CODE>job</CODE> into the spool directory of <CODE>cluster</CODE>,
+	 * unless they are there already, and makes that cluster the data location of the job.
+	 * @param job the job
+	 * @param cluster the cluster the job is going to run on
+	 * @return the time the transfer took, in nanoseconds
+	 * @throws IOException if a file could not be copied; the data location is left unchanged
+	 */
+	public long stage(Job job, String cluster) throws IOException {
+		String location = job.getDataLocation();
+		if (!job.hasData() || location == null || location.equals(cluster)) {
+			return 0;
+		}
+
+		File source = getSpoolDirectory(location);
+		File destination = getSpoolDirectory(cluster);
+		ArrayList<String> files = job.getDataFiles();
+
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < files.size(); i++) {
+			bytes += transfer(new File(source, files.get(i)), new File(destination, files.get(i)));
+		}
+		long elapsed = System.nanoTime() - start;
+
+		job.setDataLocation(cluster);
+		recordTransfer(files.size(), bytes, elapsed);
+		return elapsed;
+	}
+
+	// copy a file within the kernel
+	private static long transfer(File from, File to) throws IOException {
+		try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					 StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			return size;
+		}
+	}
+
+	private void recordTransfer(int files, long bytes, long elapsed) {
+		stagedJobs.incrementAndGet();
+		transferredFiles.addAndGet(files);
+		transferredBytes.addAndGet(bytes);
+		transferTime.addAndGet(elapsed);
+		if (bytes > 0 && elapsed > 0) {
+			throughput = (1 - THROUGHPUT_SMOOTHING) * throughput + THROUGHPUT_SMOOTHING * bytes / elapsed;
+		}
+	}
+
+	/**
+	 * Maps a data file of <CODE>job</CODE> into memory, read-only, from the spool directory
+	 * of the job's data location.
+	 * @param job the job
+	 * @param file the name of one of the data files of the job
+	 * @return the contents of the file
+	 * @throws IOException if the file could not be mapped
+	 */
+	public MappedByteBuffer map(Job job, String file) throws IOException {
+		assert(job.getDataLocation() != null) : "the job has no data location";
+
+		File path = new File(getSpoolDirectory(job.getDataLocation()), file);
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * @param job the job
+	 * @return the total size of the data files of the job at its data location, in bytes
+	 */
+	public long getDataSize(Job job) {
+		if (!job.hasData() || job.getDataLocation() == null) {
+			return 0;
+		}
+		File directory = getSpoolDirectory(job.getDataLocation());
+		long size = 0;
+		for (String file : job.getDataFiles()) {
+			size += new File(directory, file).length();
+		}
+		return size;
+	}
+
+	/**
+	 * Estimates the time it would take to stage the data of <CODE>job</CODE> on
+	 * <CODE>cluster</CODE>, from the throughput of the transfers made so far.
+	 * @param job the job
+	 * @param cluster the cluster the job may be sent to
+	 * @return the estimated transfer time, in nanoseconds, 0 if the data is there already
+	 */
+	public long estimateTransferTime(Job job, String cluster) {
+		if (cluster.equals(job.getDataLocation())) {
+			return 0;
+		}
+		return (long) (getDataSize(job) / throughput);
+	}
+
+	public long getStagedJobs() {
+		return stagedJobs.get();
+	}
+
+	public long getTransferredFiles() {
+		return transferredFiles.get();
+	}
+
+	public long getTransferredBytes() {
+		return transferredBytes.get();
+	}
+
+	/**
+	 * @return the total time spent transferring files, in nanoseconds
+	 */
+	public long getTransferTime() {
+		return transferTime.get();
+	}
+
+	/**
+	 * @return the smoothed throughput of the transfers, in bytes per second
+	 */
+	public long getThroughput() {
+		return (long) (throughput * 1e9);
+	}
+
+	public String toString() {
+		return "StagingService {jobs = " + getStagedJobs() + ", files = " + getTransferredFiles()
+				+ ", bytes = " + getTransferredBytes() + ", throughput = " + getThroughput() / (1024 * 1024) + "MB/s}";
+	}
+}
@@ -1,12 +1,26 @@
 package gridscheduler.model;
 
-import core.IMessageReceivedHandler;
+import core.ExecutionModel;
+import core.PeriodicTask;
+import core.PhiAccrualFailureDetector;
 import core.Socket;
+import core.Topic;
+import example.LocalSocket;
+import example.SharedMemorySocket;
 
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
-public class Supervisor implements IMessageReceivedHandler, Runnable {
+public class Supervisor {
 
     // a hashmap linking each grid scheduler to an estimated load
     private ConcurrentHashMap<String, Integer> gridSchedulersLoad = null;
@@ -29,9 +43,34 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
     // polling frequency, 0.05hz for hot swapping
     private long pollSleep = 5;//1000
 
-    // polling thread
-    private Thread pollingThread;
-    private boolean running;
+    // polling task, on the threads of the execution model the supervisor was created with
+    private PeriodicTask pollingTask;
+    private volatile boolean running;
+
+    // suspects the primary GS nodes whose heartbeats stopped, whose replicas then take over
+    private volatile PhiAccrualFailureDetector gsFailureDetector =
+            new PhiAccrualFailureDetector(PhiAccrualFailureDetector.DEFAULT_THRESHOLD, GridSchedulerNode.POLL_PERIOD,
+                    this::onGridSchedulerNodeSuspected, address -> { });
+
+    // failover statistics of the last failover, in nanoseconds
+    private volatile long lastTimeToDetect = 0;
+    private volatile long lastTimeToRecover = 0;
+    private volatile int failovers = 0;
+
+    // moves the data of the jobs between the clusters, if set
+    private StagingService stagingService = null;
+
+    // the GS node every resource manager was bound to, kept across restarts by the checkpoints
+    private final ConcurrentHashMap<String, String> resourceManagerBindings = new ConcurrentHashMap<>();
+    private final AtomicLong bindingChanges = new AtomicLong();
+    // the checkpoints of the bindings, in the journal directory, and the task taking them
+    private volatile CheckpointFile checkpointFile = null;
+    private volatile long checkpointPeriod = 0;
+    private PeriodicTask checkpointTask = null;
+    private long checkpointedChanges = 0;
+    private ByteBuffer checkpointImage = ByteBuffer.allocate(4096);
+
+    private final static Logger logger = Logger.getLogger(Supervisor.class.getName());
 
     /**
      * Constructor of supervisor named @param address, which creates @param noOfGsNodes
@@ -50,11 +89,14 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
         // initialize the grid scheduler nodes that this supervisor is coordinating
         gridSchedulerNodes = new ArrayList<>(2 * noOfGsNodes);
         for(int i = 0; i < noOfGsNodes; i++){
-            GridSchedulerNode replica = new GridSchedulerNode("gridSchedulerNode" + (i + 1), jobReplicationEnabled);
-            gridSchedulerNodes.add(new GridSchedulerNode("gridSchedulerNode" + i, replica, jobReplicationEnabled));
+            GridSchedulerNode replica = new GridSchedulerNode("gridSchedulerNode" + (2 * i + 1), jobReplicationEnabled);
+            gridSchedulerNodes.add(new GridSchedulerNode("gridSchedulerNode" + (2 * i), replica, jobReplicationEnabled));
             gridSchedulerNodes.add(replica);
         }
 
+        // make every primary GS node reachable from the sockets of the other ones
+        connectGridSchedulerNodes();
+
         // register supervisor to the global socket
         Socket.addMessageReceivedHandler(this);
         //Socket.register(address); // possibly redundant
@@ -75,9 +117,27 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
 
         // start the polling thread
         running = true;
-        pollingThread = new Thread(this);
-        pollingThread.start();
+        pollingTask = ExecutionModel.getDefault().schedule(address, pollSleep, () -> running, this::poll);
+
+    }
 
+    // add a route to every other GS node (and its replica) to the socket of each primary GS node
+    // and subscribe the other sockets to the job completions
+    private void connectGridSchedulerNodes(){
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(gsNode.getIsReplicaStatus()){
+                continue;
+            }
+            for(GridSchedulerNode peer:gridSchedulerNodes){
+                if(peer.getSyncSocket() != gsNode.getSyncSocket()){
+                    gsNode.getSyncSocket().addPeerGridSchedulerNode(peer.getAddress(), peer.getSyncSocket());
+                    if(!peer.getIsReplicaStatus()){
+                        // one subscription per peer socket, so that it relays every completion once
+                        gsNode.getSyncSocket().subscribe(Topic.JobCompletion, peer.getAddress());
+                    }
+                }
+            }
+        }
     }
 
     // calculate the average load for all grid scheduler nodes
@@ -125,7 +185,8 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
         return null;
     }
 
-    private void sendJobToLeastLoadedGsNode(Job job) {
+    // returns the node the job was sent to, null if there was none
+    private GridSchedulerNode sendJobToLeastLoadedGsNode(Job job) {
         String targetAddress = getLeastLoadedGsNodeAddress();
         //System.out.println("targetGSNodeAddress: " + targetAddress);
         GridSchedulerNode targetGsNode = getLeastLoadedJobQueueGsNode(targetAddress);
@@ -133,6 +194,7 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
             //System.out.println("Adresa gs target: " + targetGsNode.getAddress());
             targetGsNode.addJob(job);
         }
+        return targetGsNode;
     }
 
     /**
@@ -149,7 +211,10 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
 
                     if(job != null){
                         //System.out.println("Job id: " + job.getId());
-                        sendJobToLeastLoadedGsNode(job);
+                        GridSchedulerNode targetGsNode = sendJobToLeastLoadedGsNode(job);
+                        if(targetGsNode != null){
+                            gsNode.confirmMigration(job, targetGsNode);
+                        }
                     }
                 }
             }
@@ -158,37 +223,28 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
 
 
 
-    @Override
-    public void run() {
-        while (running) {
-
-            // request load from GS nodes & request jobs from highest
-            // loaded and send them to least loaded GS node
-            for (GridSchedulerNode gsNode : gridSchedulerNodes) {
-                if(!gsNode.getIsReplicaStatus()) {
-                    // ask each primary gs node for their load
-                    int load = gsNode.getNumberOfNonReplicatedJobs();
-                    gridSchedulersLoad.put(gsNode.getAddress(), load);
-                }else{
-                    gridSchedulersLoad.remove(gsNode.getAddress());
-                }
-            }
-
-            averageLoad = calculateAverageLoad();
-
-            requestJobFromGSnodeWithHigherThanAverageLoad(averageLoad);
-            // reset average load in order to not be poluted by old values
-            averageLoad = 0;
+    // one cycle of the polling task
+    private void poll() {
+        // promote the replicas of the GS nodes whose heartbeats stopped
+        gsFailureDetector.check();
 
-            // sleep
-            try
-            {
-                Thread.sleep(pollSleep);
-            } catch (InterruptedException ex) {
-                assert(false) : "Supervisor runtread was interrupted";
+        // request load from GS nodes & request jobs from highest
+        // loaded and send them to least loaded GS node
+        for (GridSchedulerNode gsNode : gridSchedulerNodes) {
+            if(!gsNode.getIsReplicaStatus()) {
+                // ask each primary gs node for their load
+                int load = gsNode.getNumberOfNonReplicatedJobs();
+                gridSchedulersLoad.put(gsNode.getAddress(), load);
+            }else{
+                gridSchedulersLoad.remove(gsNode.getAddress());
             }
         }
 
+        averageLoad = calculateAverageLoad();
+
+        requestJobFromGSnodeWithHigherThanAverageLoad(averageLoad);
+        // reset average load in order to not be poluted by old values
+        averageLoad = 0;
     }
 
 
@@ -202,8 +258,14 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
      */
     public void bindResourceManagerToGsNode(ResourceManager resourceManager){
 
-        // get the grid scheduler node that has the least resource managers connected to it
-        GridSchedulerNode targetGridSchedulerNode = getLeastLoadedGridSchedulerNode();
+        // get the grid scheduler node the resource manager was bound to before a restart, whose
+        // journal knows it, or else the one that has the least resource managers connected to it
+        GridSchedulerNode targetGridSchedulerNode = getBoundGridSchedulerNode(resourceManager.getName());
+        if(targetGridSchedulerNode == null){
+            targetGridSchedulerNode = getLeastLoadedGridSchedulerNode();
+        }
+        resourceManagerBindings.put(resourceManager.getName(), targetGridSchedulerNode.getAddress());
+        bindingChanges.incrementAndGet();
 
         // add +1 to the number of connected RMs of the target grid scheduler node
         int load = gridSchedulerNodeConnectedRMs.get(targetGridSchedulerNode);
@@ -217,7 +279,29 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
         // to it order to balance the distribution.
         targetGridSchedulerNode.getSyncSocket().addMessageReceivedHandler(resourceManager);
 
+        // the resource manager publishes its load if its grid scheduler node does not poll it.
+        // This happens after the join so that the first load is not overwritten by the join.
+        if(targetGridSchedulerNode.getLoadReportPolicy() != null){
+            resourceManager.setLoadReportPolicy(targetGridSchedulerNode.getLoadReportPolicy());
+        }
+
+        resourceManager.setStagingService(stagingService);
 
+
+    }
+
+    // the active node of the pair the resource manager was bound to, null if it was not bound
+    private GridSchedulerNode getBoundGridSchedulerNode(String rmName){
+        String gsAddress = resourceManagerBindings.get(rmName);
+        if(gsAddress == null){
+            return null;
+        }
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(gsNode.getAddress().equals(gsAddress)){
+                return gsNode.getIsReplicaStatus() ? gsNode.getReplica() : gsNode;
+            }
+        }
+        return null;
     }
 
     /**
@@ -262,9 +346,373 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
         return String.valueOf(noOfWaitingJobs);
     }
 
+    /**
+     * Makes the active node of the first GS node pair fail, or brings the failed one back up
+     * as a replica. The failure is detected and its replica promoted automatically.
+     * @param status true to make the node fail, false to bring it back up
+     */
     public void injectGSnodeFault(boolean status){
-        //gridSchedulerNodes.get(0).setIsReplicaStatus(status);
-        gridSchedulerNodes.get(0).toggleStatus();
+        for(GridSchedulerNode gsNode:gridSchedulerNodes.subList(0, 2)){
+            if(status && !gsNode.getIsReplicaStatus() && !gsNode.hasFailed()){
+                gsNode.fail();
+                return;
+            }
+            if(!status && gsNode.hasFailed()){
+                gsNode.recover();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the volume and latencies of the messages of every grid scheduler node socket, per
+     * endpoint and type, see SynchronizedSocket.getTelemetryReport
+     */
+    public String getTelemetryReport(){
+        StringBuilder builder = new StringBuilder();
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            // a primary and its replica share their socket
+            if(!gsNode.getIsReplicaStatus() && gsNode.getSyncSocket() != null){
+                builder.append(gsNode.getSyncSocket().getTelemetryReport());
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Makes the resource managers connected from now on stage the data of the jobs they
+     * receive, see StagingService.
+     * @param stagingService the staging service, or null to leave the data where it is
+     */
+    public void setStagingService(StagingService stagingService){
+        this.stagingService = stagingService;
+    }
+
+    public StagingService getStagingService(){
+        return stagingService;
+    }
+
+    /**
+     * Makes every primary grid scheduler node, and its replica, journal the changes to their
+     * job queue in a file named after the primary in <CODE>directory</CODE>, after recovering
+     * the queue a previous run left in that file, see JobJournal.
+     * <p>
+     * If checkpoints are taken (see setCheckpointPeriod), or a previous run took some, the
+     * journals are cut at the checkpoints of their nodes, and the supervisor checkpoints the
+     * grid scheduler node every resource manager is bound to, so that the resource managers are
+     * bound to the same nodes again after a restart.
+     * @param directory the directory of the journals and checkpoints, created if needed
+     * @throws IOException if a journal or a checkpoint could not be opened
+     */
+    public void setJournalDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create the journal directory " + directory);
+        }
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(!gsNode.getIsReplicaStatus()){
+                CheckpointFile checkpoint = new CheckpointFile(new File(directory, gsNode.getAddress() + ".checkpoint"));
+                if(checkpointPeriod == 0 && checkpoint.getGeneration() == 0){
+                    checkpoint.close();
+                    checkpoint = null;
+                }
+                gsNode.setJournal(new JobJournal(new File(directory, gsNode.getAddress() + ".journal"), checkpoint));
+            }
+        }
+
+        CheckpointFile checkpoint = new CheckpointFile(new File(directory, address + ".checkpoint"));
+        ByteBuffer image = checkpoint.getRecoveredImage();
+        if(image != null){
+            CRC32 checksum = new CRC32();
+            for(ByteBuffer record = QueueRecords.next(image, checksum); record != null; record = QueueRecords.next(image, checksum)){
+                if(record.get() == QueueRecords.BINDING){
+                    String rmAddress = QueueRecords.readString(record);
+                    resourceManagerBindings.putIfAbsent(rmAddress, QueueRecords.readString(record));
+                }
+            }
+            logger.warn("Supervisor " + address + " recovered the bindings of " + resourceManagerBindings.size()
+                    + " RMs from checkpoint " + checkpoint.getGeneration());
+        }
+        checkpointFile = checkpoint;
+    }
+
+    /**
+     * Makes the supervisor and every grid scheduler node checkpoint their state every
+     * <CODE>periodMillis</CODE> milliseconds, see GridSchedulerNode.setCheckpointPeriod. The
+     * checkpoints are written to the journal directory, so this is called before
+     * setJournalDirectory.
+     * <p>
+     * <DL>
+     * <DT><B>Preconditions:</B>
+     * <DD>parameter <CODE>periodMillis</CODE> cannot be negative
+     * </DL>
+     * @param periodMillis the time between two checkpoints, 0 to take none
+     */
+    public synchronized void setCheckpointPeriod(long periodMillis) {
+        assert(periodMillis >= 0) : "parameter 'periodMillis' cannot be negative";
+
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setCheckpointPeriod(periodMillis);
+        }
+        if(periodMillis == checkpointPeriod){
+            return;
+        }
+        // the running task ends on its own
+        checkpointPeriod = periodMillis;
+        if(periodMillis > 0){
+            checkpointTask = ExecutionModel.getDefault().schedule(address + "-checkpoint", periodMillis,
+                    () -> checkpointPeriod == periodMillis, this::checkpoint);
+        }
+    }
+
+    // one checkpoint of the bindings, if they changed since the last one
+    private void checkpoint(){
+        CheckpointFile checkpoint = checkpointFile;
+        long changes = bindingChanges.get();
+        if(checkpoint == null || changes == checkpointedChanges){
+            return;
+        }
+
+        ByteBuffer scratch = ByteBuffer.allocate(256);
+        ByteBuffer records = ByteBuffer.allocate(checkpointImage.capacity());
+        CRC32 checksum = new CRC32();
+        for(Map.Entry<String, String> binding:resourceManagerBindings.entrySet()){
+            scratch = QueueRecords.encodeBinding(scratch, binding.getKey(), binding.getValue());
+            records = QueueRecords.frame(QueueRecords.BINDING, scratch, records, checksum);
+        }
+        // the image lies at the start of a ring of a power of two bytes
+        if(checkpointImage.capacity() < records.position()){
+            checkpointImage = ByteBuffer.allocate(Integer.highestOneBit(records.position() - 1) << 1);
+        }
+        int length = records.position();
+        records.flip();
+        checkpointImage.clear();
+        checkpointImage.put(records);
+        try{
+            checkpoint.write(checkpoint.getGeneration() + 1, checkpointImage, 0, length);
+            checkpointedChanges = changes;
+        }catch(IOException ex){
+            logger.error("Supervisor " + address + " could not write the checkpoint of the bindings", ex);
+        }
+    }
+
+    /**
+     * @return the checkpoints of the bindings of the resource managers, null if there are none
+     */
+    public CheckpointFile getCheckpointFile(){
+        return checkpointFile;
+    }
+
+    /**
+     * Records the heartbeat of a grid scheduler node, received through the global socket.
+     * @param address the address of the grid scheduler node
+     */
+    public void onHeartbeat(String address){
+        gsFailureDetector.heartbeat(address);
+    }
+
+    // the heartbeats of a GS node stopped: its replica takes over, if it is the primary
+    private void onGridSchedulerNodeSuspected(String address){
+        long detectionTime = System.nanoTime();
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(!gsNode.getAddress().equals(address) || gsNode.getIsReplicaStatus()){
+                continue;
+            }
+            GridSchedulerNode replica = gsNode.getReplica();
+            if(replica == null || replica.hasFailed()){
+                logger.fatal("GS node " + address + " failed and has no replica to take over");
+                return;
+            }
+            replica.promote(gsNode);
+
+            // measured from the failure when it was injected, from the last heartbeat otherwise
+            long failureTime = gsNode.getFailureTime() != 0 ? gsNode.getFailureTime() : detectionTime - gsFailureDetector.getLastDetectionTime();
+            lastTimeToDetect = detectionTime - failureTime;
+            lastTimeToRecover = System.nanoTime() - failureTime;
+            failovers++;
+            logger.warn("GS node " + address + " failed, detected after " + lastTimeToDetect / 1000000
+                    + " ms, GS node " + replica.getAddress() + " took over after " + lastTimeToRecover / 1000000 + " ms");
+            return;
+        }
+    }
+
+    /**
+     * Sets the suspicion level at which a GS node is considered failed and replaced by its
+     * replica, and at which the GS nodes consider an RM failed.
+     * @param threshold the phi threshold, see PhiAccrualFailureDetector
+     */
+    public void setFailureDetectionThreshold(double threshold){
+        gsFailureDetector = new PhiAccrualFailureDetector(threshold, GridSchedulerNode.POLL_PERIOD,
+                this::onGridSchedulerNodeSuspected, address -> { });
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setFailureDetectionThreshold(threshold);
+        }
+    }
+
+    /**
+     * @return the time from the last failure of a GS node until it was suspected, in nanoseconds
+     */
+    public long getLastTimeToDetect(){
+        return lastTimeToDetect;
+    }
+
+    /**
+     * @return the time from the last failure of a GS node until its replica was active, in nanoseconds
+     */
+    public long getLastTimeToRecover(){
+        return lastTimeToRecover;
+    }
+
+    public int getFailovers(){
+        return failovers;
+    }
+
+    /**
+     * Makes every grid scheduler node socket deliver its messages through per-endpoint
+     * mailboxes instead of running the receiver on the sender's thread.
+     * @param enabled true to enable asynchronous delivery
+     */
+    public void setAsynchronousDelivery(boolean enabled) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(gsNode.getSyncSocket() != null) {
+                gsNode.getSyncSocket().setAsynchronousDelivery(enabled);
+            }
+        }
+    }
+
+    /**
+     * Makes every grid scheduler node dispatch its queued jobs as soon as a job, a load or a
+     * resource manager arrives instead of once per poll cycle.
+     * @param enabled true to dispatch on events
+     */
+    public void setEventDrivenDispatch(boolean enabled) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setEventDrivenDispatch(enabled);
+        }
+    }
+
+    /**
+     * Makes every grid scheduler node assign its whole queue at once each poll cycle, leveling
+     * the loads per node of its resource managers, instead of one job at a time.
+     * @param enabled true to assign the queue in batches
+     */
+    public void setBatchDispatch(boolean enabled) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setBatchDispatch(enabled);
+        }
+    }
+
+    /**
+     * Makes every grid scheduler node send the jobs it dispatches one at a time to the least
+     * loaded of <CODE>choices</CODE> resource managers sampled at random.
+     * @param choices the number of resource managers sampled per job, or 0 to pick the least loaded one
+     */
+    public void setDispatchChoices(int choices) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setDispatchChoices(choices);
+        }
+    }
+
+    /**
+     * Bounds the number of changes to its job queue the replica of every grid scheduler node
+     * may lag behind.
+     * @param maxLag the number of changes
+     */
+    public void setReplicationMaxLag(int maxLag) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setReplicationMaxLag(maxLag);
+        }
+    }
+
+    /**
+     * Gives the mailboxes of every grid scheduler node socket a lane per priority class, so
+     * that control messages overtake the jobs queued for the same endpoint.
+     * @param enabled true to separate the priority classes
+     * @param controlLaneWeight the number of control messages delivered for every job while
+     * both lanes are backed up, or 0 to always deliver the control messages first
+     */
+    public void setPriorityLanes(boolean enabled, int controlLaneWeight) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(gsNode.getSyncSocket() != null) {
+                gsNode.getSyncSocket().setPriorityLanes(enabled, controlLaneWeight);
+            }
+        }
+    }
+
+    /**
+     * Makes every grid scheduler node poll the load of its resource managers with a single
+     * multicast query per poll cycle.
+     * @param enabled true to enable batched load polling
+     */
+    public void setBatchedLoadPolling(boolean enabled) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setBatchedLoadPolling(enabled);
+        }
+    }
+
+    /**
+     * Enables credit-based flow control of the jobs the resource managers offload to the grid
+     * scheduler nodes, see GridSchedulerNode.
+     * @param limit the maximum number of jobs queued at a grid scheduler node, or 0 to disable flow control
+     */
+    public void setOffloadCreditLimit(int limit) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setOffloadCreditLimit(limit);
+        }
+    }
+
+    /**
+     * Makes every grid scheduler node query all its resource managers concurrently and wait
+     * until <CODE>quorum</CODE> of them answered before scheduling, see GridSchedulerNode.
+     * @param quorum the fraction of resource managers to wait for, or 0 to disable quorum polling
+     */
+    public void setLoadPollQuorum(double quorum) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setLoadPollQuorum(quorum);
+        }
+    }
+
+    /**
+     * Makes the resource managers publish their load to their grid scheduler node as decided by
+     * <CODE>policy</CODE>, instead of being polled. Applies to the resource managers that
+     * connect afterwards, so it has to be called before the clusters are created.
+     * @param policy the load report policy, or null to poll for loads
+     */
+    public void setLoadReportPolicy(LoadReportPolicy policy) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            gsNode.setLoadReportPolicy(policy);
+        }
+    }
+
+    /**
+     * Makes the primary grid scheduler nodes reachable from other JVMs. The transport of the
+     * i-th primary node listens on <CODE>basePort</CODE> + i of <CODE>host</CODE>.
+     * @param host the local interface to listen on, e.g. the loopback address
+     * @param basePort the port of the first primary grid scheduler node
+     * @throws IOException if one of the ports cannot be bound
+     */
+    public void listen(String host, int basePort) throws IOException {
+        int port = basePort;
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(!gsNode.getIsReplicaStatus()){
+                LocalSocket lSocket = new LocalSocket();
+                lSocket.bind(new InetSocketAddress(host, port++));
+                gsNode.getSyncSocket().setTransport(lSocket);
+            }
+        }
+    }
+
+    /**
+     * Makes the primary grid scheduler nodes reachable from other JVMs on the same host through
+     * shared memory rings in <CODE>directory</CODE>. The transport of every primary node is
+     * named after the node, so remote clusters address its process by the node's name.
+     * @param directory the directory holding the ring files, preferably on a tmpfs such as /dev/shm
+     */
+    public void listen(File directory) {
+        for(GridSchedulerNode gsNode:gridSchedulerNodes){
+            if(!gsNode.getIsReplicaStatus()){
+                gsNode.getSyncSocket().setTransport(new SharedMemorySocket(directory, gsNode.getAddress()));
+            }
+        }
     }
 
     public ArrayList<GridSchedulerNode> getGridSchedulerNodes() {
@@ -275,6 +723,24 @@ public class Supervisor implements IMessageReceivedHandler, Runnable {
      * Stop all the grid scheduler nodes that the supervisor is coordinating.
      */
     public void stopPollThread() {
+        running = false;
+        PeriodicTask task;
+        synchronized (this) {
+            task = checkpointTask;
+            checkpointTask = null;
+            checkpointPeriod = 0;
+        }
+        try {
+            pollingTask.join();
+            if (task != null) {
+                task.join();
+            }
+        } catch (InterruptedException ex) {
+            assert(false) : "Supervisor stopPollThread was interrupted";
+        }
+        if (checkpointFile != null) {
+            checkpointFile.close();
+        }
         for(GridSchedulerNode gsNode:gridSchedulerNodes){
             gsNode.stopPollThread();
         }
@@ -0,0 +1,137 @@
+package gridscheduler.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Assigns a batch of jobs to resource managers in one pass, so that their loads per node end
+ * up as level as the room of each resource manager allows (water-filling).
+ * <p>
+ * Every resource manager is a vessel with a floor of its current load and a width of its
+ * capacity; the jobs are poured in until they are used up, so the least loaded resource
+ * managers per node are raised to a common level first. The level is found by bisection, as
+ * the number of jobs below a level only grows with it, and the few jobs left over because
+ * several resource managers reach the next job at the same level go to those that stay the
+ * lowest. An assignment costs O(n log n) for n resource managers, whatever the number of jobs.
+ */
+public final class WaterFilling {
+
+	// bisection steps, enough to separate the levels of any two job counts below a million nodes
+	private static final int MAX_STEPS = 64;
+
+	private WaterFilling() {
+	}
+
+	/**
+	 * Computes how many jobs every resource manager gets.
+	 * <p>
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>the parameters <CODE>loads</CODE>, <CODE>capacities</CODE> and <CODE>room</CODE> must have the same length
+	 * <DD>the capacities must be positive and the room cannot be negative
+	 * </DL>
+	 * @param loads the current load of every resource manager
+	 * @param capacities the number of nodes of every resource manager
+	 * @param room the maximum number of jobs every resource manager can take
+	 * @param jobs the number of jobs to assign
+	 * @return the number of jobs of every resource manager, at most <CODE>jobs</CODE> in total
+	 */
+	public static int[] assign(int[] loads, int[] capacities, int[] room, int jobs) {
+		assert(loads.length == capacities.length && loads.length == room.length) : "the parameters must have the same length";
+
+		int n = loads.length;
+		int[] assigned = new int[n];
+		long totalRoom = 0;
+		for (int i = 0; i < n; i++) {
+			assert(capacities[i] > 0 && room[i] >= 0) : "capacities must be positive and the room cannot be negative";
+			totalRoom += room[i];
+		}
+		if (jobs <= 0 || totalRoom == 0) {
+			return assigned;
+		}
+		if (jobs >= totalRoom) {
+			// everyone is filled up to the brim
+			return Arrays.copyOf(room, n);
+		}
+
+		// the highest level reached with at most 'jobs' jobs
+		double low = 0;
+		double high = 0;
+		for (int i = 0; i < n; i++) {
+			high = Math.max(high, (loads[i] + (double) room[i]) / capacities[i]);
+		}
+		for (int step = 0; step < MAX_STEPS && low < high; step++) {
+			double level = (low + high) / 2;
+			long filled = fill(loads, capacities, room, level, null);
+			if (filled == jobs) {
+				low = level;
+				break;
+			}
+			if (filled < jobs) {
+				low = level;
+			} else {
+				high = level;
+			}
+		}
+		int left = jobs - (int) fill(loads, capacities, room, low, assigned);
+
+		// the jobs left over go to the resource managers that are the lowest with one more job
+		if (left > 0) {
+			Integer[] order = new Integer[n];
+			int candidates = 0;
+			for (int i = 0; i < n; i++) {
+				if (assigned[i] < room[i]) {
+					order[candidates++] = i;
+				}
+			}
+			Arrays.sort(order, 0, candidates, Comparator.comparingDouble(
+					i -> (loads[i] + assigned[i] + 1.0) / capacities[i]));
+			for (int c = 0; c < candidates && left > 0; c++, left--) {
+				assigned[order[c]]++;
+			}
+		}
+		return assigned;
+	}
+
+	// the number of jobs below 'level', stored per resource manager in 'assigned' if not null
+	private static long fill(int[] loads, int[] capacities, int[] room, double level, int[] assigned) {
+		long filled = 0;
+		for (int i = 0; i < loads.length; i++) {
+			long below = (long) Math.floor(level * capacities[i]) - loads[i];
+			int jobs = (int) Math.max(0, Math.min(room[i], below));
+			if (assigned != null) {
+				assigned[i] = jobs;
+			}
+			filled += jobs;
+		}
+		return filled;
+	}
+
+	/**
+	 * <DL>
+	 * <DT><B>Preconditions:</B>
+	 * <DD>the parameters must have the same length, <CODE>added</CODE> may be null
+	 * </DL>
+	 * @param loads the load of every resource manager
+	 * @param capacities the number of nodes of every resource manager
+	 * @param added the jobs added to every resource manager, or null for none
+	 * @return the variance of the loads per node, 0 if there are no resource managers
+	 */
+	public static double variance(int[] loads, int[] capacities, int[] added) {
+		assert(loads.length == capacities.length && (added == null || added.length == loads.length)) : "the parameters must have the same length";
+
+		int n = loads.length;
+		if (n == 0) {
+			return 0;
+		}
+		double sum = 0;
+		double sumOfSquares = 0;
+		for (int i = 0; i < n; i++) {
+			double perNode = (loads[i] + (added != null ? added[i] : 0)) / (double) capacities[i];
+			sum += perNode;
+			sumOfSquares += perNode * perNode;
+		}
+		double mean = sum / n;
+		return Math.max(0, sumOfSquares / n - mean * mean);
+	}
+}